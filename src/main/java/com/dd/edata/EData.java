@@ -6,6 +6,7 @@ import com.dd.edata.redis.RedisPool;
 import com.dd.edata.redis.RedisService;
 import com.dd.edata.utils.FileMonitor;
 import com.dd.edata.utils.Util;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Tuple;
@@ -99,6 +100,7 @@ public final class EData {
         ClassLoader classLoader = cl != null ? cl : Thread.currentThread().getContextClassLoader();
         ((AbstractDBServiceProxy) dbProxy).init(pkg, classLoader, props);
         redisService = new RedisService(new RedisPool(sid, props));
+        ((AbstractDBServiceProxy) dbProxy).setRedisService(props.containsKey("redis.ip") ? redisService : null);
     }
 
     private void propertiesReload(Properties props) {
@@ -106,6 +108,7 @@ public final class EData {
         IRedisService newRs = new RedisService(new RedisPool(sid, props));
         IRedisService oldRs = redisService;
         redisService = newRs;
+        ((AbstractDBServiceProxy) dbProxy).setRedisService(props.containsKey("redis.ip") ? newRs : null);
         if (oldRs != null) {
             ((RedisService) oldRs).shutdown();
         }
@@ -141,6 +144,81 @@ public final class EData {
         }
     }
 
+    /**
+     * 获取实体类（@TableCache）的缓存统计
+     *
+     * @param clazz 对象class
+     * @return 命中、未命中、淘汰次数等，没有缓存时返回null
+     */
+    public CacheStats getCacheStats(Class<?> clazz) {
+        return ((AbstractDBServiceProxy) dbProxy).getCacheStats(clazz);
+    }
+
+    /**
+     * 获取所有实体类（@TableCache）的缓存统计
+     *
+     * @return
+     */
+    public Map<Class<?>, CacheStats> getCacheStats() {
+        return ((AbstractDBServiceProxy) dbProxy).getCacheStats();
+    }
+
+    /**
+     * 清空实体类的缓存（例如在其他进程中直接修改了数据库）
+     *
+     * @param clazz 对象class
+     */
+    public void invalidateCache(Class<?> clazz) {
+        ((AbstractDBServiceProxy) dbProxy).invalidateCache(clazz);
+    }
+
+    /**
+     * 所有执行线程排队（包括正在执行）的任务数
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return ((AbstractDBServiceProxy) dbProxy).getQueueDepth();
+    }
+
+    /**
+     * 该class的写操作所在的执行线程排队的任务数
+     *
+     * @param clazz 对象class
+     * @return
+     */
+    public int getQueueDepth(Class<?> clazz) {
+        return ((AbstractDBServiceProxy) dbProxy).getQueueDepth(clazz);
+    }
+
+    /**
+     * 所有执行线程排队的写操作估算的字节数（配置了db.lane.maxBytes时才统计）
+     *
+     * @return
+     */
+    public long getQueueBytes() {
+        return ((AbstractDBServiceProxy) dbProxy).getQueueBytes();
+    }
+
+    /**
+     * 溢出日志（db.lane.overflow=spill）中等待重新执行的写操作数量
+     *
+     * @return
+     */
+    public int getSpillBacklog() {
+        return ((AbstractDBServiceProxy) dbProxy).getSpillBacklog();
+    }
+
+    /**
+     * 该class的写操作是否会被限制（等待、失败或者转入溢出日志），可以用来推迟不重要的写操作
+     *
+     * @param clazz 对象class
+     * @return
+     */
+    public boolean isOverloaded(Class<?> clazz) {
+        return ((AbstractDBServiceProxy) dbProxy).isOverloaded(clazz);
+    }
+
     private EData retain() {
         refCount.incrementAndGet();
         return this;
@@ -350,6 +428,147 @@ public final class EData {
         return dbProxy.selectListAsync(callback, callbackExecutor, clazz, columns, wheres);
     }
 
+    /**
+     * 按一组主键查询对象，主键数量很多时分批并行查询
+     *
+     * @param clazz 对象class
+     * @param ids   主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return 按ids的顺序排列的 主键-&gt;对象，不存在的主键不包含在内
+     * @throws Exception
+     */
+    public <T> Map<Object, T> selectByIds(Class<T> clazz, Collection<?> ids) throws Exception {
+        return dbProxy.selectByIds(clazz, ids);
+    }
+
+    /**
+     * 异步按一组主键查询对象
+     *
+     * @param clazz 对象class
+     * @param ids   主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return
+     */
+    public <T> Future<Map<Object, T>> selectByIdsAsync(Class<T> clazz, Collection<?> ids) {
+        return selectByIdsAsync(null, null, clazz, ids);
+    }
+
+    /**
+     * 异步按一组主键查询对象
+     *
+     * @param callback 查询回调接口
+     * @param clazz    对象class
+     * @param ids      主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return
+     */
+    public <T> Future<Map<Object, T>> selectByIdsAsync(Consumer<Map<Object, T>> callback, Class<T> clazz, Collection<?> ids) {
+        return selectByIdsAsync(callback, null, clazz, ids);
+    }
+
+    /**
+     * 异步按一组主键查询对象
+     *
+     * @param callback         查询回调接口
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param ids              主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return
+     */
+    public <T> Future<Map<Object, T>> selectByIdsAsync(Consumer<Map<Object, T>> callback, Executor callbackExecutor, Class<T> clazz, Collection<?> ids) {
+        return dbProxy.selectByIdsAsync(callback, callbackExecutor, clazz, ids);
+    }
+
+    /**
+     * 流式查询一组对象，逐行回调，适合遍历大表（例如按天建表的日志表）
+     *
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口
+     * @param wheres   查询条件
+     * @return 处理的数据行数
+     * @throws Exception
+     */
+    public <T> int selectForEach(Class<T> clazz, Consumer<? super T> consumer, DBWhere... wheres) throws Exception {
+        return selectForEach(clazz, consumer, null, wheres);
+    }
+
+    /**
+     * 流式查询一组对象，逐行回调，适合遍历大表（例如按天建表的日志表）
+     *
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口
+     * @param columns  只查询指定列
+     * @param wheres   查询条件
+     * @return 处理的数据行数
+     * @throws Exception
+     */
+    public <T> int selectForEach(Class<T> clazz, Consumer<? super T> consumer, List<String> columns, DBWhere... wheres) throws Exception {
+        return dbProxy.selectForEach(clazz, consumer, columns, wheres);
+    }
+
+    /**
+     * 异步流式查询一组对象，逐行回调
+     *
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口
+     * @param wheres   查询条件
+     * @return 处理的数据行数
+     */
+    public <T> Future<Integer> selectForEachAsync(Class<T> clazz, Consumer<? super T> consumer, DBWhere... wheres) {
+        return selectForEachAsync(null, null, clazz, consumer, null, wheres);
+    }
+
+    /**
+     * 异步流式查询一组对象，逐行回调
+     *
+     * @param callback 查询结束的回调接口，参数为处理的数据行数
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口
+     * @param wheres   查询条件
+     * @return 处理的数据行数
+     */
+    public <T> Future<Integer> selectForEachAsync(Consumer<Integer> callback, Class<T> clazz, Consumer<? super T> consumer, DBWhere... wheres) {
+        return selectForEachAsync(callback, null, clazz, consumer, null, wheres);
+    }
+
+    /**
+     * 异步流式查询一组对象，逐行回调
+     *
+     * @param callback         查询结束的回调接口，参数为处理的数据行数
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param consumer         每一行数据的处理接口
+     * @param columns          只查询指定列
+     * @param wheres           查询条件
+     * @return 处理的数据行数
+     */
+    public <T> Future<Integer> selectForEachAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, Consumer<? super T> consumer, List<String> columns, DBWhere... wheres) {
+        return dbProxy.selectForEachAsync(callback, callbackExecutor, clazz, consumer, columns, wheres);
+    }
+
+    /**
+     * 按主键顺序分页遍历一张表，下一页在处理当前页时异步预取
+     *
+     * @param clazz    对象class
+     * @param pageSize 每页数据条数
+     * @param wheres   查询条件（不能包含排序和LIMIT）
+     * @return 分页迭代器
+     */
+    public <T> PagedQuery<T> pagedQuery(Class<T> clazz, int pageSize, DBWhere... wheres) {
+        return pagedQuery(clazz, pageSize, true, null, wheres);
+    }
+
+    /**
+     * 按主键顺序分页遍历一张表
+     *
+     * @param clazz    对象class
+     * @param pageSize 每页数据条数
+     * @param prefetch 是否在处理当前页时异步预取下一页
+     * @param columns  只查询指定列（必须包含主键）
+     * @param wheres   查询条件（不能包含排序和LIMIT）
+     * @return 分页迭代器
+     */
+    public <T> PagedQuery<T> pagedQuery(Class<T> clazz, int pageSize, boolean prefetch, List<String> columns, DBWhere... wheres) {
+        return new PagedQuery<>(dbProxy, clazz, pageSize, prefetch, columns, wheres);
+    }
+
     /**
      * 查询对象数量
      *
@@ -873,6 +1092,214 @@ public final class EData {
         return dbProxy.replaceBatchAsync(callback, callbackExecutor, objs);
     }
 
+    /**
+     * 插入或更新一条数据（INSERT ... ON DUPLICATE KEY UPDATE），冲突时更新所有非主键字段
+     *
+     * @param t 数据
+     * @return 执行成功返回true
+     * @throws Exception
+     */
+    public <T> boolean upsert(T t) throws Exception {
+        return dbProxy.upsert(t, null);
+    }
+
+    /**
+     * 插入或更新一条数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param t       数据
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return 执行成功返回true
+     * @throws Exception
+     */
+    public <T> boolean upsert(T t, List<String> columns) throws Exception {
+        return dbProxy.upsert(t, columns);
+    }
+
+    /**
+     * 异步插入或更新一条数据，冲突时更新所有非主键字段
+     *
+     * @param t 数据
+     * @return
+     */
+    public <T> Future<Boolean> upsertAsync(T t) {
+        return upsertAsync(null, null, t, null);
+    }
+
+    /**
+     * 异步插入或更新一条数据，冲突时更新所有非主键字段
+     *
+     * @param callback 回调接口
+     * @param t        数据
+     * @return
+     */
+    public <T> Future<Boolean> upsertAsync(Consumer<Boolean> callback, T t) {
+        return upsertAsync(callback, null, t, null);
+    }
+
+    /**
+     * 异步插入或更新一条数据
+     *
+     * @param callback         回调接口
+     * @param callbackExecutor 回调接口执行器
+     * @param t                数据
+     * @param columns          主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return
+     */
+    public <T> Future<Boolean> upsertAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t, List<String> columns) {
+        return dbProxy.upsertAsync(callback, callbackExecutor, t, columns);
+    }
+
+    /**
+     * 插入或更新一组数据，冲突时更新所有非主键字段
+     *
+     * @param objs 数据列表
+     * @return 每条数据影响的行数：1表示插入，2表示更新，0表示已存在并且没有变化
+     * @throws Exception
+     */
+    public <T> int[] upsertBatch(List<T> objs) throws Exception {
+        return upsertBatch(objs, null);
+    }
+
+    /**
+     * 插入或更新一组数据
+     *
+     * @param objs    数据列表
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return 每条数据影响的行数：1表示插入，2表示更新，0表示已存在并且没有变化
+     * @throws Exception
+     */
+    public <T> int[] upsertBatch(List<T> objs, List<String> columns) throws Exception {
+        if (objs == null || objs.isEmpty()) {
+            return null;
+        }
+        return dbProxy.upsertBatch(objs, columns);
+    }
+
+    /**
+     * 异步插入或更新一组数据，冲突时更新所有非主键字段
+     *
+     * @param objs 数据列表
+     * @return
+     */
+    public <T> Future<int[]> upsertBatchAsync(List<T> objs) {
+        return upsertBatchAsync(null, null, objs, null);
+    }
+
+    /**
+     * 异步插入或更新一组数据，冲突时更新所有非主键字段
+     *
+     * @param callback 回调接口
+     * @param objs     数据列表
+     * @return
+     */
+    public <T> Future<int[]> upsertBatchAsync(Consumer<int[]> callback, List<T> objs) {
+        return upsertBatchAsync(callback, null, objs, null);
+    }
+
+    /**
+     * 异步插入或更新一组数据
+     *
+     * @param callback         回调接口
+     * @param callbackExecutor 回调接口执行器
+     * @param objs             数据列表
+     * @param columns          主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return
+     */
+    public <T> Future<int[]> upsertBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs, List<String> columns) {
+        if (objs == null || objs.isEmpty()) {
+            return null;
+        }
+        return dbProxy.upsertBatchAsync(callback, callbackExecutor, objs, columns);
+    }
+
+    /**
+     * 在同一个连接、同一个事务中执行一组写操作，例如：
+     * <pre>
+     * transaction(tx -&gt; tx.update(player).insert(item).insert(log));
+     * </pre>
+     *
+     * @param work 添加事务中的操作
+     * @return 每个操作影响的行数，事务回滚时返回null
+     * @throws Exception
+     */
+    public int[] transaction(Consumer<DBTransaction> work) throws Exception {
+        DBTransaction transaction = new DBTransaction();
+        work.accept(transaction);
+        return dbProxy.transaction(transaction);
+    }
+
+    /**
+     * 异步在同一个连接、同一个事务中执行一组写操作
+     *
+     * @param work 添加事务中的操作
+     * @return
+     */
+    public Future<int[]> transactionAsync(Consumer<DBTransaction> work) {
+        return transactionAsync(null, null, work);
+    }
+
+    /**
+     * 异步在同一个连接、同一个事务中执行一组写操作
+     *
+     * @param callback 回调接口，参数为每个操作影响的行数，事务回滚时为null
+     * @param work     添加事务中的操作
+     * @return
+     */
+    public Future<int[]> transactionAsync(Consumer<int[]> callback, Consumer<DBTransaction> work) {
+        return transactionAsync(callback, null, work);
+    }
+
+    /**
+     * 异步在同一个连接、同一个事务中执行一组写操作
+     *
+     * @param callback         回调接口，参数为每个操作影响的行数，事务回滚时为null
+     * @param callbackExecutor 回调接口执行器
+     * @param work             添加事务中的操作
+     * @return
+     */
+    public Future<int[]> transactionAsync(Consumer<int[]> callback, Executor callbackExecutor, Consumer<DBTransaction> work) {
+        DBTransaction transaction = new DBTransaction();
+        work.accept(transaction);
+        return dbProxy.transactionAsync(callback, callbackExecutor, transaction);
+    }
+
+    /**
+     * 批量导入数据：用LOAD DATA LOCAL INFILE直接发送数据（需要开启db.bulkLoad.localInfile和服务器的local_infile），
+     * 不支持时分段批量REPLACE；主键或唯一索引冲突时替换已有数据，用于数据迁移，不写日志，执行结束后清空该表的缓存
+     *
+     * @param clazz 表映射的class
+     * @param rows  数据
+     * @return 导入的行数，出错时返回-1
+     * @throws Exception
+     */
+    public <T> long bulkLoad(Class<T> clazz, Iterator<? extends T> rows) throws Exception {
+        return dbProxy.bulkLoad(clazz, rows);
+    }
+
+    /**
+     * 异步批量导入数据
+     *
+     * @param clazz 表映射的class
+     * @param rows  数据，在执行线程中读取
+     * @return
+     */
+    public <T> Future<Long> bulkLoadAsync(Class<T> clazz, Iterator<? extends T> rows) {
+        return bulkLoadAsync(null, null, clazz, rows);
+    }
+
+    /**
+     * 异步批量导入数据
+     *
+     * @param callback         回调接口，参数为导入的行数，出错时为-1
+     * @param callbackExecutor 回调接口执行器
+     * @param clazz            表映射的class
+     * @param rows             数据，在执行线程中读取
+     * @return
+     */
+    public <T> Future<Long> bulkLoadAsync(Consumer<Long> callback, Executor callbackExecutor, Class<T> clazz, Iterator<? extends T> rows) {
+        return dbProxy.bulkLoadAsync(callback, callbackExecutor, clazz, rows);
+    }
+
     /**
      * 删除表中所有数据（慎重，再慎重！！！）
      *
@@ -1088,5 +1515,24 @@ public final class EData {
     public boolean exists(String key) {
         return redisService.exists(key);
     }
-}
 
+    public byte[] get(byte[] key) {
+        return redisService.get(key);
+    }
+
+    public void set(byte[] key, byte[] value, int cacheSeconds) {
+        redisService.set(key, value, cacheSeconds);
+    }
+
+    public boolean setIfAbsent(byte[] key, byte[] value, int cacheSeconds) {
+        return redisService.setIfAbsent(key, value, cacheSeconds);
+    }
+
+    public List<byte[]> getPipeline(List<byte[]> keys) {
+        return redisService.getPipeline(keys);
+    }
+
+    public long del(byte[] key) {
+        return redisService.del(key);
+    }
+}
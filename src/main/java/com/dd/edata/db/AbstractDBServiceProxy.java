@@ -1,15 +1,22 @@
 package com.dd.edata.db;
 
+import com.dd.edata.db.annotation.TableReadPrimary;
+import com.dd.edata.db.model.IDirtyModel;
+import com.dd.edata.redis.IRedisService;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
-import java.util.List;
-import java.util.Properties;
+import java.sql.Statement;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -18,6 +25,51 @@ import java.util.function.Supplier;
 public abstract class AbstractDBServiceProxy implements IDBProxy {
     private static final Logger logger = LoggerFactory.getLogger(AbstractDBServiceProxy.class);
     protected final ExecutorService[] executors;
+    private ExecutorService queryExecutor;
+    private int queryParallelism = 4;
+    /**
+     * 分段批量写入的线程池（db.batch.parallelism大于1时创建），为null时在执行线程中依次执行
+     */
+    private ExecutorService chunkExecutor;
+    /**
+     * 读线程池（db.read.pool），为null时读操作在该class的执行线程中执行
+     */
+    private ExecutorService readExecutor;
+    /**
+     * 延迟写（db.writeBehind.enable）的合并缓冲区，为null时update/replace立即提交
+     */
+    private WriteBehindBuffer writeBehind;
+    private ScheduledExecutorService writeBehindFlusher;
+    /**
+     * 单条写操作的微批（db.batch.size大于1时开启）
+     */
+    private LaneBatcher batcher;
+    /**
+     * 按主键分配执行线程（db.lane.keyAffinity）：单行的写操作按class和主键选择执行线程，
+     * 整个表的操作通过屏障在所有执行线程之后执行；为false时按class选择执行线程
+     */
+    private boolean keyAffinity;
+    private final LaneBarrier barrier;
+    /**
+     * 写操作的流量控制：每个执行线程排队的任务数和写操作估算的字节数的上限（db.lane.maxDepth、db.lane.maxBytes，0表示不限制），
+     * 以及超过上限时的处理方式（db.lane.overflow）
+     */
+    private int laneMaxDepth;
+    private long laneMaxBytes;
+    private Overflow overflow = Overflow.BLOCK;
+    /**
+     * db.lane.overflow=spill时写入溢出日志的接口
+     */
+    private SpillSink spillSink;
+    /**
+     * 每个class的写操作计数，读线程池模式下用来判断读到的数据能否写入缓存，配置了从库时用来判断能否读从库
+     */
+    private final ClassValue<WriteStamp> writeStamps = new ClassValue<WriteStamp>() {
+        @Override
+        protected WriteStamp computeValue(Class<?> type) {
+            return new WriteStamp();
+        }
+    };
     protected DBService dbService;
     protected int sid;
 
@@ -27,26 +79,61 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
         size = Math.max(8, ceilingPowerOfTwo(size << 1));
         ExecutorService[] ess = new ExecutorService[size];
         for (int i = 0; i < size; ++i) {
-            ess[i] = Executors.newSingleThreadExecutor(new ThreadFactoryImpl("Edata-Thread", sid, i));
+            ess[i] = new LaneExecutor(new ThreadFactoryImpl("Edata-Thread", sid, i), 500);
         }
         executors = ess;
+        barrier = new LaneBarrier(ess);
     }
 
     private static DataSource createDataSource(Properties props) {
+        return createDataSource(props, props.getProperty("db.url"), props.getProperty("db.user"), props.getProperty("db.password"),
+                Integer.parseInt(props.getProperty("db.maxPoolSize", "32")));
+    }
+
+    private static HikariDataSource createDataSource(Properties props, String url, String user, String password, int maxPoolSize) {
         HikariConfig config = new HikariConfig();
         config.setDriverClassName(props.getProperty("db.driver.class", "com.mysql.jdbc.Driver"));
-        config.setJdbcUrl(props.getProperty("db.url"));
-        config.setUsername(props.getProperty("db.user"));
-        config.setPassword(props.getProperty("db.password"));
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
         config.setAutoCommit(Boolean.parseBoolean(props.getProperty("db.autocommit", "true")));
         config.setConnectionTestQuery("select 1");
         config.setConnectionTimeout(Long.parseLong(props.getProperty("db.connectionTimeout", "1000")));
-        config.setMaximumPoolSize(Integer.parseInt(props.getProperty("db.maxPoolSize", "32")));
+        config.setMaximumPoolSize(maxPoolSize);
         config.setMinimumIdle(Integer.parseInt(props.getProperty("db.minIdle", "4")));
         config.setLeakDetectionThreshold(Long.parseLong(props.getProperty("db.leakDetectionThreshold", "30000")));
+        if (Boolean.parseBoolean(props.getProperty("db.bulkLoad.localInfile", "false"))) {
+            config.addDataSourceProperty("allowLoadLocalInfile", "true");
+        }
         return new HikariDataSource(config);
     }
 
+    /**
+     * 创建从库（db.replica.urls，多个用逗号分隔），用户名、密码和连接池大小默认与主库相同
+     *
+     * @return 没有配置从库时返回null
+     */
+    private ReplicaRouter createReplicaRouter(Properties props) {
+        List<String> urls = new ArrayList<>();
+        for (String url : props.getProperty("db.replica.urls", "").split(",")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        if (urls.isEmpty()) {
+            return null;
+        }
+        String user = props.getProperty("db.replica.user", props.getProperty("db.user"));
+        String password = props.getProperty("db.replica.password", props.getProperty("db.password"));
+        int maxPoolSize = Integer.parseInt(props.getProperty("db.replica.maxPoolSize", props.getProperty("db.maxPoolSize", "32")));
+        List<HikariDataSource> dataSources = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            dataSources.add(createDataSource(props, url, user, password, maxPoolSize));
+        }
+        logger.info("sid {} replicas {}", sid, urls);
+        return new ReplicaRouter(sid, urls, dataSources, Long.parseLong(props.getProperty("db.replica.checkMillis", "5000")));
+    }
+
     private static final int ceilingPowerOfTwo(int v) {
         if (v <= 0) return 1;
         int i = v - 1;
@@ -60,10 +147,79 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
 
     public void init(String pkg, ClassLoader cl, DataSource ds, boolean isCobar) {
         dbService = new DBService(this, pkg, cl, ds, isCobar);
+        AtomicInteger idx = new AtomicInteger();
+        queryExecutor = Executors.newFixedThreadPool(queryParallelism, r -> new Thread(r, "Edata-Query[" + sid + "-" + idx.getAndIncrement() + "]"));
     }
 
     public void init(String pkg, ClassLoader cl, Properties props) {
+        queryParallelism = Math.max(1, Integer.parseInt(props.getProperty("db.in.parallelism", "4")));
+        int chunkParallelism = Integer.parseInt(props.getProperty("db.batch.parallelism", "1"));
+        if (chunkParallelism > 1) {
+            AtomicInteger idx = new AtomicInteger();
+            chunkExecutor = Executors.newFixedThreadPool(chunkParallelism, r -> new Thread(r, "Edata-Chunk[" + sid + "-" + idx.getAndIncrement() + "]"));
+        }
+        if (Boolean.parseBoolean(props.getProperty("db.read.pool", "false"))) {
+            readExecutor = createReadExecutor(props);
+        }
+        if (Boolean.parseBoolean(props.getProperty("db.writeBehind.enable", "false"))) {
+            // 在init之前创建，从日志恢复的更新也会合并
+            long flushMillis = Math.max(1, Long.parseLong(props.getProperty("db.writeBehind.flushMillis", "1000")));
+            int maxBatch = Math.max(1, Integer.parseInt(props.getProperty("db.writeBehind.maxBatch", "1000")));
+            writeBehind = new WriteBehindBuffer(this::flushWriteBehind, maxBatch);
+            writeBehindFlusher = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Edata-WriteBehind[" + sid + "]"));
+            writeBehindFlusher.scheduleWithFixedDelay(() -> {
+                try {
+                    writeBehind.flushAll();
+                } catch (Exception e) {
+                    logger.error("sid {} writeBehind flush error!", sid, e);
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+            logger.info("sid {} write behind enabled, flush millis {}, max batch {}", sid, flushMillis, maxBatch);
+        }
+        setPriorityMaxWait(props);
+        if (Boolean.parseBoolean(props.getProperty("db.lane.keyAffinity", "false"))) {
+            keyAffinity = true;
+            logger.info("sid {} key affinity lanes enabled, lanes {}", sid, executors.length);
+        }
+        int batchSize = Integer.parseInt(props.getProperty("db.batch.size", "0"));
+        if (batchSize > 1) {
+            long lingerMillis = Long.parseLong(props.getProperty("db.batch.lingerMillis", "0"));
+            batcher = new LaneBatcher(sid, batchSize, lingerMillis, this::executeBatched);
+            logger.info("sid {} lane batch enabled, batch size {}, linger millis {}", sid, batchSize, lingerMillis);
+        }
         init(pkg, cl, createDataSource(props), Boolean.parseBoolean(props.getProperty("db.cobar", "false")));
+        dbService.setReplicaRouter(createReplicaRouter(props));
+        dbService.configure(props);
+        // 在init之后读取，从日志恢复的写操作不受限制
+        laneMaxDepth = Integer.parseInt(props.getProperty("db.lane.maxDepth", "0"));
+        laneMaxBytes = Long.parseLong(props.getProperty("db.lane.maxBytes", "0"));
+        overflow = Overflow.valueOf(props.getProperty("db.lane.overflow", "block").trim().toUpperCase());
+        spillSink = overflow == Overflow.SPILL ? getSpillSink() : null;
+        if (overflow == Overflow.SPILL && spillSink == null) {
+            logger.warn("sid {} db.lane.overflow=spill needs db log, use block", sid);
+            overflow = Overflow.BLOCK;
+        }
+        if (laneMaxDepth > 0 || laneMaxBytes > 0) {
+            logger.info("sid {} lane limit enabled, max depth {}, max bytes {}, overflow {}", sid, laneMaxDepth, laneMaxBytes, overflow);
+        }
+    }
+
+    /**
+     * 创建读线程池：线程数默认为连接池大小的一半（至少2个，不超过连接池大小），
+     * 队列有界，队列满时由调用线程执行
+     */
+    private ExecutorService createReadExecutor(Properties props) {
+        int maxPoolSize = Integer.parseInt(props.getProperty("db.maxPoolSize", "32"));
+        int threads = Integer.parseInt(props.getProperty("db.read.threads", "0"));
+        if (threads <= 0) {
+            threads = Math.max(2, maxPoolSize >> 1);
+        }
+        threads = Math.max(1, Math.min(threads, maxPoolSize));
+        int queueSize = Math.max(1, Integer.parseInt(props.getProperty("db.read.queueSize", "10000")));
+        AtomicInteger idx = new AtomicInteger();
+        logger.info("sid {} read pool enabled, threads {}, queue size {}", sid, threads, queueSize);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "Edata-Read[" + sid + "-" + idx.getAndIncrement() + "]"), new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     @Override
@@ -72,6 +228,18 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
     }
 
     public void shutdown() {
+        if (writeBehindFlusher != null) {
+            writeBehindFlusher.shutdown();
+            try {
+                writeBehindFlusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                logger.error("executor {} shutdown error!", writeBehindFlusher, e);
+            }
+            writeBehind.flushAll();
+        }
+        if (batcher != null) {
+            batcher.shutdown();
+        }
         for (ExecutorService es : executors) {
             try {
                 es.shutdown();
@@ -80,10 +248,40 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
                 logger.error("executor {} shutdown error!", es, e);
             }
         }
+        if (readExecutor != null) {
+            try {
+                readExecutor.shutdown();
+                readExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                logger.error("executor {} shutdown error!", readExecutor, e);
+            }
+        }
+        // 执行线程中的按主键批量查询会用到查询线程池，最后关闭
+        if (queryExecutor != null) {
+            queryExecutor.shutdown();
+        }
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdown();
+        }
+        ReplicaRouter router = dbService == null ? null : dbService.getReplicaRouter();
+        if (router != null) {
+            router.close();
+        }
     }
 
     public void propertiesReload(Properties props) {
         this.dbService.propertiesReload(props);
+        setPriorityMaxWait(props);
+    }
+
+    /**
+     * 执行线程中低优先级任务最多被插队的毫秒数（db.lane.priority.maxWaitMillis），0表示按提交顺序执行
+     */
+    private void setPriorityMaxWait(Properties props) {
+        long maxWaitMillis = Long.parseLong(props.getProperty("db.lane.priority.maxWaitMillis", "500"));
+        for (ExecutorService lane : executors) {
+            ((LaneExecutor) lane).setMaxWaitMillis(maxWaitMillis);
+        }
     }
 
     protected <T> Future<T> execute(Supplier<T> supplier, Executor executor, Consumer<? super T> callback, Executor callbackExecutor) {
@@ -95,6 +293,279 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
         return future;
     }
 
+    /**
+     * 写操作的执行，见{@link #durable}
+     *
+     * @param tx 写日志的事务id
+     */
+    protected <T> Future<T> execute(long tx, Supplier<T> supplier, Executor executor, Consumer<? super T> callback, Executor callbackExecutor) {
+        return attach(durable(tx, CompletableFuture.supplyAsync(supplier, executor)), callback, callbackExecutor);
+    }
+
+    /**
+     * 不需要访问数据库的结果（例如命中缓存），回调方式与{@link #execute}相同
+     */
+    protected <T> Future<T> complete(T value, Consumer<? super T> callback, Executor callbackExecutor) {
+        return attach(CompletableFuture.completedFuture(value), callback, callbackExecutor);
+    }
+
+    /**
+     * 给已有的结果（例如合并后的延迟写）加上回调，回调方式与{@link #execute}相同
+     */
+    protected <T> Future<T> attach(CompletableFuture<T> future, Consumer<? super T> callback, Executor callbackExecutor) {
+        if (callback != null) {
+            if (callbackExecutor != null) future.thenAcceptAsync(callback, callbackExecutor);
+            else future.thenAcceptAsync(callback);
+        }
+        return future;
+    }
+
+    /**
+     * 写操作提交前的流量控制：执行线程排队的任务数或者估算的字节数达到上限时，db.lane.overflow=block时等待，
+     * fail时抛出异常（写日志、修改缓存之前）；在执行线程中提交时不等待
+     *
+     * @param es    写操作的执行器，屏障按所有执行线程计算
+     * @param clazz 写操作的表，涉及多个表时为null
+     * @param data  写日志的数据，用来估算字节数
+     * @return 提交任务的执行器，见{@link #tagged}
+     * @throws RejectedExecutionException 队列已满并且db.lane.overflow=fail，或者等待时被中断
+     */
+    private Executor admit(Executor es, Class<?> clazz, Object data) {
+        if (laneMaxDepth <= 0 && laneMaxBytes <= 0) {
+            return tagged(es, clazz, 0);
+        }
+        final long size = laneMaxBytes > 0 ? estimateSize(data) : 0;
+        for (LaneExecutor lane : lanesOf(es)) {
+            if (lane.hasCapacity(laneMaxDepth, laneMaxBytes, size)) {
+                continue;
+            }
+            if (overflow == Overflow.FAIL) {
+                throw new RejectedExecutionException("sid " + sid + " lane overloaded, depth " + lane.getDepth() + ", bytes " + lane.getBytes());
+            }
+            if (lane.inLane()) {
+                continue;
+            }
+            try {
+                lane.awaitCapacity(laneMaxDepth, laneMaxBytes, size);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("sid " + sid + " interrupted while waiting for lane", e);
+            }
+        }
+        return tagged(es, clazz, size);
+    }
+
+    /**
+     * 提交到单个执行线程的任务记录表（同一个表的任务按提交顺序执行）、优先级（提交时的{@link DBPriority}），
+     * 以及执行结束前计入该执行线程的字节数；屏障等其他执行器不变
+     *
+     * @param clazz 任务的表，null表示不能与其他任务交换顺序
+     */
+    private Executor tagged(Executor es, Class<?> clazz, long size) {
+        if (!(es instanceof LaneExecutor)) {
+            return es;
+        }
+        final LaneExecutor lane = (LaneExecutor) es;
+        final DBPriority priority = DBPriority.current();
+        return task -> lane.execute(task, size, clazz, priority);
+    }
+
+    /**
+     * db.lane.overflow=spill时，执行线程已满或者溢出日志中还有等待重新执行的写操作（保持提交顺序），写操作转入溢出日志，
+     * 不修改缓存，之后按顺序重新执行，返回重新执行的结果；
+     * 重新执行的对象见{@link #keepsReference}，其他写操作重新执行的是序列化后的副本，
+     * 副本上的修改（例如失败时恢复的修改记录）不会反映到调用者的对象
+     *
+     * @param es   写操作的执行器
+     * @param op   日志的操作类型
+     * @param data 写日志的数据
+     * @return 没有转入溢出日志时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private <R> CompletableFuture<R> spill(Executor es, byte op, Object data) {
+        if (overflow != Overflow.SPILL || isReplayingSpill()) {
+            return null;
+        }
+        if (getSpillBacklog() == 0) {
+            long size = laneMaxBytes > 0 ? estimateSize(data) : 0;
+            boolean full = false;
+            for (LaneExecutor lane : lanesOf(es)) {
+                if (!lane.hasCapacity(laneMaxDepth, laneMaxBytes, size)) {
+                    full = true;
+                    break;
+                }
+            }
+            if (!full) {
+                return null;
+            }
+        }
+        return (CompletableFuture<R>) spillSink.spill(op, data, keepsReference(op, data));
+    }
+
+    /**
+     * 转入溢出日志的写操作重新执行时是否使用调用者原来的对象（不序列化，保留在内存中）：
+     * 有一级缓存的表（重新执行时写入缓存的必须是调用者的对象），以及自增主键的表的insert/replace/upsert（生成的主键写回调用者的对象）
+     */
+    private boolean keepsReference(byte op, Object data) {
+        if (data instanceof DBServiceWithLogProxy.UpsertData) {
+            data = ((DBServiceWithLogProxy.UpsertData) data).value;
+        }
+        boolean insert = op == DBService.DB_INSERT || op == DBService.DB_INSERT_BATCH || op == DBService.DB_REPLACE
+                || op == DBService.DB_REPLACE_BATCH || op == DBService.DB_UPSERT || op == DBService.DB_UPSERT_BATCH;
+        if (data instanceof List) {
+            for (Object o : (List<?>) data) {
+                if (o instanceof DBTransaction.Op) {
+                    DBTransaction.Op txOp = (DBTransaction.Op) o;
+                    boolean txInsert = txOp.kind == DBTransaction.INSERT || txOp.kind == DBTransaction.REPLACE || txOp.kind == DBTransaction.UPSERT;
+                    if (txOp.bean != null && keepsReference(txOp.bean.getClass(), txInsert)) {
+                        return true;
+                    }
+                } else {
+                    // 批量操作中都是同一个class
+                    return o != null && keepsReference(o.getClass(), insert);
+                }
+            }
+            return false;
+        }
+        if (data == null || data instanceof Class || data instanceof DBServiceWithLogProxy.OperateData) {
+            return false;
+        }
+        return keepsReference(data.getClass(), insert);
+    }
+
+    private boolean keepsReference(Class<?> clazz, boolean insert) {
+        return getCache(clazz) != null || (insert && dbService.hasGeneratedKey(clazz));
+    }
+
+    /**
+     * 执行器对应的执行线程，屏障（以及多个执行线程的事务）对应所有执行线程
+     */
+    private List<LaneExecutor> lanesOf(Executor es) {
+        if (es instanceof LaneExecutor) {
+            return Collections.singletonList((LaneExecutor) es);
+        }
+        List<LaneExecutor> lanes = new ArrayList<>(executors.length);
+        for (ExecutorService lane : executors) {
+            lanes.add((LaneExecutor) lane);
+        }
+        return lanes;
+    }
+
+    /**
+     * 估算写日志的数据占用的字节数
+     */
+    private long estimateSize(Object data) {
+        if (data instanceof List) {
+            long size = 16;
+            for (Object o : (List<?>) data) {
+                size += estimateSize(o instanceof DBTransaction.Op ? ((DBTransaction.Op) o).bean : o);
+            }
+            return size;
+        }
+        if (data instanceof DBServiceWithLogProxy.UpsertData) {
+            return estimateSize(((DBServiceWithLogProxy.UpsertData) data).value);
+        }
+        if (data == null || data instanceof Class || data instanceof DBServiceWithLogProxy.OperateData) {
+            return 64;
+        }
+        return dbService.getEntityMeta(data.getClass()).estimateSize(data);
+    }
+
+    /**
+     * 溢出日志的写入接口
+     *
+     * @return 不支持db.lane.overflow=spill（需要写日志）时返回null
+     */
+    protected SpillSink getSpillSink() {
+        return null;
+    }
+
+    protected interface SpillSink {
+        /**
+         * 写操作写入日志后转入溢出日志，之后按顺序重新执行
+         *
+         * @param op            日志的操作类型
+         * @param data          写日志的数据
+         * @param keepReference 重新执行时是否使用原来的对象，否则重新执行反序列化的副本
+         * @return 重新执行的结果
+         */
+        CompletableFuture<Object> spill(byte op, Object data, boolean keepReference);
+    }
+
+    /**
+     * 当前线程是否在重新执行溢出日志中的写操作（重新执行时只等待，不再转入溢出日志）
+     */
+    protected boolean isReplayingSpill() {
+        return false;
+    }
+
+    /**
+     * 溢出日志中等待重新执行的写操作数量
+     *
+     * @return
+     */
+    public int getSpillBacklog() {
+        return 0;
+    }
+
+    /**
+     * 所有执行线程排队（包括正在执行）的任务数
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ExecutorService lane : executors) {
+            depth += ((LaneExecutor) lane).getDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * 该class的写操作所在的执行线程排队的任务数，按主键分配执行线程时为最多的执行线程的任务数
+     *
+     * @param clazz 对象class
+     * @return
+     */
+    public int getQueueDepth(Class<?> clazz) {
+        int depth = 0;
+        for (LaneExecutor lane : lanesOf(getExecutor(clazz))) {
+            depth = Math.max(depth, lane.getDepth());
+        }
+        return depth;
+    }
+
+    /**
+     * 所有执行线程排队的写操作估算的字节数（配置了db.lane.maxBytes时才统计）
+     *
+     * @return
+     */
+    public long getQueueBytes() {
+        long bytes = 0;
+        for (ExecutorService lane : executors) {
+            bytes += ((LaneExecutor) lane).getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 该class的写操作是否会被限制（执行线程已满，或者溢出日志中还有等待重新执行的写操作），可以用来推迟不重要的写操作
+     *
+     * @param clazz 对象class
+     * @return
+     */
+    public boolean isOverloaded(Class<?> clazz) {
+        if (getSpillBacklog() > 0) {
+            return true;
+        }
+        for (LaneExecutor lane : lanesOf(getExecutor(clazz))) {
+            if (!lane.hasCapacity(laneMaxDepth, laneMaxBytes, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * 查询一个对象
      *
@@ -121,10 +592,31 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
      */
     @Override
     public <T> Future<T> selectAsync(Consumer<T> callback, Executor callbackExecutor, Class<T> clazz, List<String> columns, DBWhere... wheres) {
-        ExecutorService es = getExecutor(clazz);
+        EntityCache<T> cache = getCache(clazz);
+        RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        Object key = (cache == null && redisCache == null && writeBehind == null) || (columns != null && !columns.isEmpty()) ? null : dbService.getEntityMeta(clazz).primaryKeyOf(wheres);
+        if (key != null) {
+            T t = cache == null ? null : cache.get(key);
+            if (t == null && writeBehind != null) {
+                // 合并中的延迟写是该主键最新的数据
+                t = clazz.cast(writeBehind.get(clazz, key));
+            }
+            if (t != null) {
+                return complete(t, callback, callbackExecutor);
+            }
+            return execute(() -> {
+                try {
+                    return loadByKey(clazz, key, cache, redisCache, wheres);
+                } catch (Exception e) {
+                    logger.error("sid {} getAsync {{}} error!", sid, clazz.getName(), e);
+                }
+                return null;
+            }, getReadExecutor(clazz, key), callback, callbackExecutor);
+        }
+        Executor es = getReadExecutor(clazz);
         return execute(() -> {
             try {
-                return dbService.select(clazz, columns, wheres);
+                return dbService.select(clazz, columns, readReplica(clazz, wheres), wheres);
             } catch (Exception e) {
                 logger.error("sid {} getAsync {{}} error!", sid, clazz.getName(), e);
             }
@@ -132,6 +624,113 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
         }, es, callback, callbackExecutor);
     }
 
+    /**
+     * 按主键加载：一级缓存未命中时依次查询redis和数据库（主库），并写入缓存
+     */
+    private <T> T loadByKey(Class<T> clazz, Object key, EntityCache<T> cache, RedisEntityCache<T> redisCache, DBWhere... wheres) throws Exception {
+        T t = cache == null ? null : cache.get(key);
+        if (t != null) {
+            return t;
+        }
+        long stamp = readStamp(clazz);
+        t = redisCache == null ? null : redisCache.get(key);
+        if (t == null) {
+            t = dbService.select(clazz, null, false, wheres);
+            if (t != null && redisCache != null && canPopulate(clazz, stamp)) {
+                redisCache.putIfAbsent(t);
+            }
+        }
+        if (t != null && cache != null && canPopulate(clazz, stamp)) {
+            cache.putIfAbsent(key, t);
+        }
+        return t;
+    }
+
+    /**
+     * 按一组主键加载：一级缓存未命中的key先从redis中批量读取，剩余的再分批用IN查询数据库
+     *
+     * @return 按keys的顺序（去重）排列的数据，不存在的key不包含在内
+     */
+    private <T> Map<Object, T> loadByKeys(Class<T> clazz, Collection<Object> keys, EntityCache<T> cache, RedisEntityCache<T> redisCache) throws Exception {
+        long stamp = readStamp(clazz);
+        Set<Object> misses = new LinkedHashSet<>(keys);
+        Map<Object, T> found = new HashMap<>();
+        if (cache != null) {
+            for (Iterator<Object> it = misses.iterator(); it.hasNext(); ) {
+                Object key = it.next();
+                T t = cache.get(key);
+                if (t != null) {
+                    found.put(key, t);
+                    it.remove();
+                }
+            }
+        }
+        if (!misses.isEmpty() && redisCache != null) {
+            Map<Object, T> hits = redisCache.getAll(misses);
+            for (Map.Entry<Object, T> e : hits.entrySet()) {
+                found.put(e.getKey(), e.getValue());
+                misses.remove(e.getKey());
+                if (cache != null && canPopulate(clazz, stamp)) {
+                    cache.putIfAbsent(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (!misses.isEmpty()) {
+            EntityMeta<T> meta = dbService.getEntityMeta(clazz);
+            List<T> rows = selectByKeys(clazz, new ArrayList<>(misses));
+            boolean populate = canPopulate(clazz, stamp);
+            for (T t : rows) {
+                Object key = meta.primaryKeyOf(t);
+                found.put(key, t);
+                if (cache != null && populate) {
+                    cache.putIfAbsent(key, t);
+                }
+            }
+            if (redisCache != null && populate) {
+                redisCache.putAllIfAbsent(rows);
+            }
+        }
+        Map<Object, T> ret = new LinkedHashMap<>();
+        for (Object key : keys) {
+            T t = found.get(key);
+            if (t != null) {
+                ret.put(key, t);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 按一组主键查询数据库，超过db.in.chunkSize时拆分成多条IN语句，在查询线程池中并行执行
+     */
+    private <T> List<T> selectByKeys(Class<T> clazz, List<Object> keys) throws Exception {
+        int chunkSize = dbService.getInChunkSize();
+        if (keys.size() <= chunkSize) {
+            return dbService.selectByKeys(clazz, keys);
+        }
+        List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += chunkSize) {
+            List<Object> chunk = keys.subList(i, Math.min(keys.size(), i + chunkSize));
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return dbService.selectByKeys(clazz, chunk);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, queryExecutor));
+        }
+        List<T> rows = new ArrayList<>(keys.size());
+        try {
+            for (CompletableFuture<List<T>> f : futures) {
+                rows.addAll(f.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        return rows;
+    }
+
     /**
      * 查询一组对象
      *
@@ -159,10 +758,39 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
      */
     @Override
     public <T> Future<List<T>> selectListAsync(Consumer<List<T>> callback, Executor callbackExecutor, Class<T> clazz, List<String> columns, DBWhere... wheres) {
-        ExecutorService es = getExecutor(clazz);
+        EntityCache<T> cache = getCache(clazz);
+        RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        if ((cache != null || redisCache != null) && (columns == null || columns.isEmpty())) {
+            EntityMeta<T> meta = dbService.getEntityMeta(clazz);
+            Object key = meta.primaryKeyOf(wheres);
+            List<Object> keys = key != null ? Collections.singletonList(key) : meta.primaryKeysOf(wheres);
+            if (keys != null) {
+                Map<Object, T> hits = cache == null ? null : cache.getAll(keys);
+                if (hits != null) {
+                    return complete(new ArrayList<>(hits.values()), callback, callbackExecutor);
+                }
+                return execute(() -> {
+                    try {
+                        if (key != null) {
+                            List<T> ret = new ArrayList<>(1);
+                            T t = loadByKey(clazz, key, cache, redisCache, wheres);
+                            if (t != null) {
+                                ret.add(t);
+                            }
+                            return ret;
+                        }
+                        return new ArrayList<>(loadByKeys(clazz, keys, cache, redisCache).values());
+                    } catch (Exception e) {
+                        logger.error("sid {} getListAsync {{}} error!", sid, clazz.getName(), e);
+                    }
+                    return null;
+                }, getReadExecutor(clazz), callback, callbackExecutor);
+            }
+        }
+        Executor es = getReadExecutor(clazz);
         return execute(() -> {
             try {
-                return dbService.selectList(clazz, columns, wheres);
+                return dbService.selectList(clazz, columns, readReplica(clazz, wheres), wheres);
             } catch (Exception e) {
                 logger.error("sid {} getListAsync {{}} error!", sid, clazz.getName(), e);
             }
@@ -171,79 +799,206 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
     }
 
     /**
-     * 查询对象数量
+     * 按一组主键查询对象
      *
-     * @param clazz  对象class
-     * @param wheres 查询条件
-     * @return
+     * @param clazz 对象class
+     * @param ids   主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return 按ids的顺序排列的 主键-&gt;对象，不存在的主键不包含在内
      * @throws Exception
      */
     @Override
-    public <T> int count(Class<T> clazz, DBWhere... wheres) throws Exception {
-        return countAsync(null, null, clazz, wheres).get();
+    public <T> Map<Object, T> selectByIds(Class<T> clazz, Collection<?> ids) throws Exception {
+        return selectByIdsAsync(null, null, clazz, ids).get();
     }
 
     /**
-     * 异步查询对象数量
+     * 异步按一组主键查询对象，先查询缓存，未命中的主键分批并行查询数据库
      *
      * @param callback         查询回调接口
      * @param callbackExecutor 回调方法执行器
      * @param clazz            对象class
-     * @param wheres           查询条件
-     * @return
+     * @param ids              主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return 按ids的顺序排列的 主键-&gt;对象，主键转换成了字段的类型（联合主键为List），不存在的主键不包含在内
      */
     @Override
-    public <T> Future<Integer> countAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, DBWhere... wheres) {
-        ExecutorService es = getExecutor(clazz);
+    public <T> Future<Map<Object, T>> selectByIdsAsync(Consumer<Map<Object, T>> callback, Executor callbackExecutor, Class<T> clazz, Collection<?> ids) {
+        EntityMeta<T> meta = dbService.getEntityMeta(clazz);
+        Set<Object> keys = new LinkedHashSet<>();
+        for (Object id : ids) {
+            keys.add(meta.toKey(id));
+        }
+        EntityCache<T> cache = getCache(clazz);
+        RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        Map<Object, T> hits = cache == null ? null : cache.getAll(keys);
+        if (hits != null || keys.isEmpty()) {
+            return complete(hits != null ? hits : new LinkedHashMap<>(), callback, callbackExecutor);
+        }
+        // 在该class的执行线程中开始，保证能读到之前提交的写操作（读线程池模式下不保证）
+        Executor es = getReadExecutor(clazz);
         return execute(() -> {
             try {
-                return dbService.count(clazz, wheres);
+                return loadByKeys(clazz, keys, cache, redisCache);
             } catch (Exception e) {
-                logger.error("sid {} countAsync {{}} error!", sid, clazz.getName(), e);
+                logger.error("sid {} selectByIdsAsync {{}} error!", sid, clazz.getName(), e);
             }
             return null;
         }, es, callback, callbackExecutor);
     }
 
     /**
-     * 删除一条数据
+     * 流式查询一组对象，逐行回调，内存占用与数据量无关
      *
-     * @param t 待删除数据对象
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口（在该class的执行线程中调用，读线程池模式下在读线程中调用）
+     * @param columns  只查询指定列
+     * @param wheres   查询条件
+     * @return 处理的数据行数
      * @throws Exception
      */
     @Override
-    public <T> boolean delete(T t) throws Exception {
-        return deleteAsync(null, null, t).get();
+    public <T> int selectForEach(Class<T> clazz, Consumer<? super T> consumer, List<String> columns, DBWhere... wheres) throws Exception {
+        return selectForEachAsync(null, null, clazz, consumer, columns, wheres).get();
     }
 
-
     /**
-     * 批量删除一组数据
+     * 异步流式查询一组对象，逐行回调，内存占用与数据量无关
      *
-     * @param objs 待删除的数据列表
-     * @throws Exception
+     * @param callback         查询结束的回调接口，参数为处理的数据行数，出错时为-1
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param consumer         每一行数据的处理接口（在该class的执行线程中调用，读线程池模式下在读线程中调用）
+     * @param columns          只查询指定列
+     * @param wheres           查询条件
+     * @return
      */
     @Override
-    public <T> int[] deleteBatch(List<T> objs) throws Exception {
-        return deleteBatchAsync(null, null, objs).get();
+    public <T> Future<Integer> selectForEachAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, Consumer<? super T> consumer, List<String> columns, DBWhere... wheres) {
+        Executor es = getReadExecutor(clazz);
+        return execute(() -> {
+            try {
+                return dbService.selectForEach(clazz, consumer, columns, readReplica(clazz, wheres), wheres);
+            } catch (Exception e) {
+                logger.error("sid {} selectForEachAsync {{}} error!", sid, clazz.getName(), e);
+            }
+            return -1;
+        }, es, callback, callbackExecutor);
     }
 
-
     /**
-     * 更新一条数据
+     * 按主键顺序（keyset分页）查询一页对象
      *
-     * @param t 待更新数据
+     * @param clazz    对象class
+     * @param after    上一页的最后一条数据，null表示查询第一页
+     * @param pageSize 每页数据条数
+     * @param columns  只查询指定列（必须包含主键）
+     * @param wheres   查询条件（不能包含排序和LIMIT）
+     * @return
      * @throws Exception
      */
     @Override
-    public <T> int update(T t) throws Exception {
-        return updateAsync(null, null, t).get();
+    public <T> List<T> selectPage(Class<T> clazz, T after, int pageSize, List<String> columns, DBWhere... wheres) throws Exception {
+        return selectPageAsync(null, null, clazz, after, pageSize, columns, wheres).get();
     }
 
     /**
-     * 同步更新一组数据
+     * 异步按主键顺序（keyset分页）查询一页对象
      *
-     * @param objs 待更新数据列表
+     * @param callback         查询回调接口，出错时参数为null
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param after            上一页的最后一条数据，null表示查询第一页
+     * @param pageSize         每页数据条数
+     * @param columns          只查询指定列（必须包含主键）
+     * @param wheres           查询条件（不能包含排序和LIMIT）
+     * @return
+     */
+    @Override
+    public <T> Future<List<T>> selectPageAsync(Consumer<List<T>> callback, Executor callbackExecutor, Class<T> clazz, T after, int pageSize, List<String> columns, DBWhere... wheres) {
+        Executor es = getReadExecutor(clazz);
+        return execute(() -> {
+            try {
+                return dbService.selectPage(clazz, after, pageSize, columns, readReplica(clazz, wheres), wheres);
+            } catch (Exception e) {
+                logger.error("sid {} selectPageAsync {{}} error!", sid, clazz.getName(), e);
+            }
+            return null;
+        }, es, callback, callbackExecutor);
+    }
+
+    /**
+     * 查询对象数量
+     *
+     * @param clazz  对象class
+     * @param wheres 查询条件
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public <T> int count(Class<T> clazz, DBWhere... wheres) throws Exception {
+        return countAsync(null, null, clazz, wheres).get();
+    }
+
+    /**
+     * 异步查询对象数量
+     *
+     * @param callback         查询回调接口
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param wheres           查询条件
+     * @return
+     */
+    @Override
+    public <T> Future<Integer> countAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, DBWhere... wheres) {
+        Executor es = getReadExecutor(clazz);
+        return execute(() -> {
+            try {
+                return dbService.count(clazz, readReplica(clazz, wheres), wheres);
+            } catch (Exception e) {
+                logger.error("sid {} countAsync {{}} error!", sid, clazz.getName(), e);
+            }
+            return null;
+        }, es, callback, callbackExecutor);
+    }
+
+    /**
+     * 删除一条数据
+     *
+     * @param t 待删除数据对象
+     * @throws Exception
+     */
+    @Override
+    public <T> boolean delete(T t) throws Exception {
+        return deleteAsync(null, null, t).get();
+    }
+
+
+    /**
+     * 批量删除一组数据
+     *
+     * @param objs 待删除的数据列表
+     * @throws Exception
+     */
+    @Override
+    public <T> int[] deleteBatch(List<T> objs) throws Exception {
+        return deleteBatchAsync(null, null, objs).get();
+    }
+
+
+    /**
+     * 更新一条数据
+     *
+     * @param t 待更新数据
+     * @throws Exception
+     */
+    @Override
+    public <T> int update(T t) throws Exception {
+        return updateAsync(null, null, t).get();
+    }
+
+    /**
+     * 同步更新一组数据
+     *
+     * @param objs 待更新数据列表
      * @return
      * @throws Exception
      */
@@ -301,6 +1056,31 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
         return replaceBatchAsync(null, null, objs).get();
     }
 
+    /**
+     * 插入或更新一条数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param t       数据
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @throws Exception
+     */
+    @Override
+    public <T> boolean upsert(T t, List<String> columns) throws Exception {
+        return upsertAsync(null, null, t, columns).get();
+    }
+
+    /**
+     * 插入或更新一组数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param objs    数据列表
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public <T> int[] upsertBatch(List<T> objs, List<String> columns) throws Exception {
+        return upsertBatchAsync(null, null, objs, columns).get();
+    }
+
 
     /**
      * 删除表中所有数据（慎重，再慎重！！！）
@@ -313,6 +1093,31 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
         return truncateAsync(null, null, clazz).get();
     }
 
+    /**
+     * 在同一个连接、同一个事务中执行一组写操作
+     *
+     * @param transaction 事务中的操作
+     * @return 每个操作影响的行数，事务回滚时返回null
+     * @throws Exception
+     */
+    @Override
+    public int[] transaction(DBTransaction transaction) throws Exception {
+        return transactionAsync(null, null, transaction).get();
+    }
+
+    /**
+     * 批量导入数据
+     *
+     * @param clazz 表映射的class
+     * @param rows  数据
+     * @return 导入的行数，出错时返回-1
+     * @throws Exception
+     */
+    @Override
+    public <T> long bulkLoad(Class<T> clazz, Iterator<? extends T> rows) throws Exception {
+        return bulkLoadAsync(null, null, clazz, rows).get();
+    }
+
     @Override
     public <T> boolean delete(Class<T> clazz, DBWhere... wheres) throws Exception {
         return deleteAsync(null, null, clazz, wheres).get();
@@ -323,10 +1128,1199 @@ public abstract class AbstractDBServiceProxy implements IDBProxy {
         return updateAsync(null, null, clazz, name, value, wheres).get();
     }
 
-    protected ExecutorService getExecutor(Class<?> clazz) {
+    /**
+     * 写操作提交前调用（例如写日志）
+     *
+     * @param op   操作类型
+     * @param data 操作数据
+     * @return 事务id
+     */
+    protected long writeDBLog(byte op, Object data) {
+        return 0;
+    }
+
+    /**
+     * 写操作执行结束后调用
+     *
+     * @param tx 事务id
+     */
+    protected void dbSyncSuccess(long tx) {
+    }
+
+    /**
+     * 写操作的结果，开启db.log.durableAck时在日志刷盘之后才完成
+     *
+     * @param tx     事务id
+     * @param future 执行结果
+     */
+    protected <T> CompletableFuture<T> durable(long tx, CompletableFuture<T> future) {
+        return future;
+    }
+
+    /**
+     * 获取实体类的主键缓存
+     *
+     * @param clazz 对象class
+     * @return 没有缓存时返回null
+     */
+    protected <T> EntityCache<T> getCache(Class<T> clazz) {
+        return dbService.getEntityCache(clazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> EntityCache<T> getCache(T t) {
+        return getCache((Class<T>) t.getClass());
+    }
+
+    /**
+     * 获取实体类的redis二级缓存
+     *
+     * @param clazz 对象class
+     * @return 没有缓存时返回null
+     */
+    protected <T> RedisEntityCache<T> getRedisCache(Class<T> clazz) {
+        return dbService.getRedisCache(clazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> RedisEntityCache<T> getRedisCache(T t) {
+        return getRedisCache((Class<T>) t.getClass());
+    }
+
+    /**
+     * 设置二级缓存（@TableRedisCache）使用的redis服务
+     *
+     * @param redisService 没有配置redis时为null
+     */
+    public void setRedisService(IRedisService redisService) {
+        dbService.setRedisService(redisService);
+    }
+
+    /**
+     * 获取实体类的缓存统计（命中、未命中、淘汰次数等）
+     *
+     * @param clazz 对象class
+     * @return 没有缓存时返回null
+     */
+    public CacheStats getCacheStats(Class<?> clazz) {
+        EntityCache<?> cache = getCache(clazz);
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * 获取所有实体类的缓存统计
+     *
+     * @return
+     */
+    public Map<Class<?>, CacheStats> getCacheStats() {
+        Map<Class<?>, CacheStats> stats = new HashMap<>();
+        for (Map.Entry<Class<?>, EntityCache<?>> e : dbService.getEntityCaches().entrySet()) {
+            stats.put(e.getKey(), e.getValue().stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 清空实体类的缓存（例如在其他进程中直接修改了数据库）
+     *
+     * @param clazz 对象class
+     */
+    public void invalidateCache(Class<?> clazz) {
+        EntityCache<?> cache = dbService.getEntityCaches().get(clazz);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public <T> Future<Boolean> deleteAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
+        Executor es = getRowExecutor(t);
+        CompletableFuture<Boolean> spilled = spill(es, DBService.DB_DELETE, t);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, t.getClass(), t);
+        final long tx = writeDBLog(DBService.DB_DELETE, t);
+        final EntityCache<T> cache = getCache(t);
+        final RedisEntityCache<T> redisCache = getRedisCache(t);
+        if (cache != null) {
+            cache.invalidate(t);
+        }
+        final IntConsumer finish = rows -> {
+            if (cache != null) {
+                cache.invalidate(t);
+            }
+            if (redisCache != null) {
+                redisCache.evict(t);
+            }
+            dbSyncSuccess(tx);
+            endWrite(t.getClass());
+        };
+        if (batcher != null) {
+            return attach(durable(tx, submitBatched(t.getClass(), LaneBatcher.DELETE, t, null, finish).thenApply(rows -> rows > 0)), callback, callbackExecutor);
+        }
+        beginWrite(t.getClass());
+        return execute(tx, () -> {
+            boolean ret = false;
+            try {
+                ret = dbService.delete(t);
+            } catch (Exception e) {
+                logger.error("sid {} deleteAsync error!", sid, e);
+            } finally {
+                finish.accept(ret ? 1 : 0);
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<int[]> deleteBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
+        Executor es = getExecutor(objs.get(0).getClass());
+        CompletableFuture<int[]> spilled = spill(es, DBService.DB_DELETE_BATCH, objs);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, objs.get(0).getClass(), objs);
+        final long tx = writeDBLog(DBService.DB_DELETE_BATCH, objs);
+        final EntityCache<T> cache = getCache(objs.get(0));
+        final RedisEntityCache<T> redisCache = getRedisCache(objs.get(0));
+        invalidate(cache, objs);
+        beginWrite(objs.get(0).getClass());
+        return execute(tx, () -> {
+            try {
+                return executeChunked(objs, (chunk, from) -> dbService.batchDelete(chunk));
+            } catch (Exception e) {
+                logger.error("sid {} deleteBatchAsync error!", sid, e);
+            } finally {
+                invalidate(cache, objs);
+                if (redisCache != null) {
+                    redisCache.evictAll(objs);
+                }
+                dbSyncSuccess(tx);
+                endWrite(objs.get(0).getClass());
+            }
+            return null;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<Integer> updateAsync(Consumer<Integer> callback, Executor callbackExecutor, T t) {
+        Executor es = getRowExecutor(t);
+        CompletableFuture<Integer> spilled = spill(es, DBService.DB_UPDATE, t);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        CompletableFuture<Integer> merged = writeBehind == null ? null : writeBehind(es, t, false);
+        if (merged != null) {
+            return attach(merged, callback, callbackExecutor);
+        }
+        es = admit(es, t.getClass(), t);
+        // 只更新修改过的列，修改记录在提交时取出
+        final Set<String> dirtyFields = takeDirtyFields(t);
+        final BitSet columns = updateColumnsOf(dbService.getEntityMeta(t.getClass()), t, dirtyFields);
+        final long tx = writeDBLog(DBService.DB_UPDATE, t);
+        final EntityCache<T> cache = getCache(t);
+        final RedisEntityCache<T> redisCache = getRedisCache(t);
+        if (cache != null) {
+            cache.put(t);
+        }
+        final IntConsumer finish = ret -> {
+            if (ret <= 0) {
+                markDirty(t, dirtyFields);
+            }
+            if (cache != null && ret <= 0) {
+                cache.invalidate(t);
+            }
+            if (redisCache != null) {
+                if (ret > 0) {
+                    redisCache.put(t);
+                } else {
+                    redisCache.evict(t);
+                }
+            }
+            dbSyncSuccess(tx);
+            endWrite(t.getClass());
+        };
+        if (batcher != null) {
+            return attach(durable(tx, submitBatched(t.getClass(), LaneBatcher.UPDATE, t, columns, finish)), callback, callbackExecutor);
+        }
+        beginWrite(t.getClass());
+        return execute(tx, () -> {
+            int ret = 0;
+            try {
+                ret = dbService.update(t, columns);
+            } catch (Exception e) {
+                logger.error("sid {} updateAsync error!", sid, e);
+            } finally {
+                finish.accept(ret);
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<int[]> updateBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
+        Executor es = getExecutor(objs.get(0).getClass());
+        CompletableFuture<int[]> spilled = spill(es, DBService.DB_UPDATE_BATCH, objs);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, objs.get(0).getClass(), objs);
+        final List<Set<String>> dirtyFields = new ArrayList<>(objs.size());
+        final List<BitSet> columns = new ArrayList<>(objs.size());
+        EntityMeta<?> meta = dbService.getEntityMeta(objs.get(0).getClass());
+        try {
+            for (T t : objs) {
+                Set<String> fields = takeDirtyFields(t);
+                dirtyFields.add(fields);
+                columns.add(meta.updateColumnsOf(fields));
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i < dirtyFields.size(); ++i) {
+                markDirty(objs.get(i), dirtyFields.get(i));
+            }
+            throw e;
+        }
+        final long tx = writeDBLog(DBService.DB_UPDATE_BATCH, objs);
+        final EntityCache<T> cache = getCache(objs.get(0));
+        final RedisEntityCache<T> redisCache = getRedisCache(objs.get(0));
+        put(cache, objs);
+        beginWrite(objs.get(0).getClass());
+        return execute(tx, () -> {
+            int[] ret = null;
+            try {
+                ret = executeChunked(objs, (chunk, from) -> dbService.batchUpdate(chunk, columns.subList(from, from + chunk.size())));
+            } catch (Exception e) {
+                logger.error("sid {} updateBatchAsync error!", sid, e);
+            } finally {
+                for (int i = 0; i < objs.size(); ++i) {
+                    if (isFailed(ret, objs.size(), i)) {
+                        markDirty(objs.get(i), dirtyFields.get(i));
+                    }
+                }
+                invalidateFailed(cache, objs, ret);
+                if (redisCache != null) {
+                    redisCache.evictAll(objs);
+                }
+                dbSyncSuccess(tx);
+                endWrite(objs.get(0).getClass());
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<Boolean> insertAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
+        return insertOrReplaceAsync(callback, callbackExecutor, t, false);
+    }
+
+    @Override
+    public <T> Future<Boolean> replaceAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
+        return insertOrReplaceAsync(callback, callbackExecutor, t, true);
+    }
+
+    /**
+     * 单条写操作加入该class的当前微批，在执行线程中与相邻的同类操作一起批量执行
+     *
+     * @param finish 执行结束后在执行线程中调用，参数为影响的行数，出错时为0
+     * @return 影响的行数，出错时为0
+     */
+    private CompletableFuture<Integer> submitBatched(Class<?> clazz, byte kind, Object bean, BitSet columns, IntConsumer finish) {
+        if (writeBehind != null) {
+            writeBehind.flush(clazz);
+        }
+        markWrite(clazz);
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        batcher.add(clazz, getRowExecutor(bean), new LaneBatcher.Op(kind, bean, columns, rows -> {
+            try {
+                finish.accept(rows);
+                future.complete(rows);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * 在执行线程中执行一组相邻的同类单条写操作（同一个事务），批量执行出错时逐条重新执行，每条操作得到自己的结果
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void executeBatched(Class<T> clazz, byte kind, List<LaneBatcher.Op> ops) {
+        int[] ret = null;
+        if (ops.size() > 1) {
+            List<T> objs = new ArrayList<>(ops.size());
+            List<BitSet> columns = new ArrayList<>(ops.size());
+            for (LaneBatcher.Op op : ops) {
+                objs.add((T) op.bean);
+                columns.add(op.columns);
+            }
+            try {
+                switch (kind) {
+                    case LaneBatcher.INSERT:
+                    case LaneBatcher.REPLACE:
+                        ret = dbService.batchInsertOrReplace(objs, kind == LaneBatcher.REPLACE);
+                        break;
+                    case LaneBatcher.UPDATE:
+                        ret = dbService.batchUpdate(objs, columns);
+                        break;
+                    case LaneBatcher.UPSERT:
+                        ret = dbService.batchUpsert(objs, ops.get(0).columns);
+                        break;
+                    default:
+                        ret = dbService.batchDelete(objs);
+                        break;
+                }
+            } catch (Exception e) {
+                logger.warn("sid {} {} batch {{}} of {} error, retry one by one!", sid, LaneBatcher.nameOf(kind), clazz.getName(), ops.size(), e);
+            }
+        }
+        boolean ok = ret != null && ret.length == ops.size();
+        for (int i = 0; i < ops.size(); ++i) {
+            LaneBatcher.Op op = ops.get(i);
+            int rows;
+            if (!ok) {
+                rows = executeSingle(kind, op);
+            } else if (kind == LaneBatcher.UPSERT) {
+                // upsert影响0行表示数据已存在并且没有变化
+                rows = ret[i] == Statement.EXECUTE_FAILED ? 0 : 1;
+            } else {
+                rows = ret[i] == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, ret[i]);
+            }
+            op.done.accept(rows);
+        }
+    }
+
+    private int executeSingle(byte kind, LaneBatcher.Op op) {
+        try {
+            switch (kind) {
+                case LaneBatcher.INSERT:
+                case LaneBatcher.REPLACE:
+                    return dbService.insertOrReplace(op.bean, kind == LaneBatcher.REPLACE) ? 1 : 0;
+                case LaneBatcher.UPDATE:
+                    return dbService.update(op.bean, op.columns);
+                case LaneBatcher.UPSERT:
+                    return dbService.upsert(op.bean, op.columns) ? 1 : 0;
+                default:
+                    return dbService.delete(op.bean) ? 1 : 0;
+            }
+        } catch (Exception e) {
+            logger.error("sid {} {} error!", sid, LaneBatcher.nameOf(kind), e);
+        }
+        return 0;
+    }
+
+    /**
+     * 延迟写：写日志、更新一级缓存后加入合并缓冲区，同一主键在合并窗口内的多次写入只执行最后一次；
+     * 只有新加入的主键才做流量控制（{@link #admit}），合并到已有数据时不增加执行线程的任务
+     *
+     * @param es 该对象的执行器
+     * @return 合并后的数据写入数据库的结果（影响行数，出错时为0），没有主键（或者replace自增主键的表）不能合并时返回null
+     */
+    private <T> CompletableFuture<Integer> writeBehind(Executor es, T t, boolean replace) {
+        Class<?> clazz = t.getClass();
+        EntityMeta<?> meta = dbService.getEntityMeta(clazz);
+        if (meta.getPrimaryKeys().length == 0 || (replace && dbService.hasGeneratedKey(clazz))) {
+            return null;
+        }
+        Object key = meta.primaryKeyOf(t);
+        if (key == null) {
+            return null;
+        }
+        if (writeBehind.get(clazz, key) == null) {
+            admit(es, clazz, t);
+        }
+        Set<String> dirtyFields = takeDirtyFields(t);
+        BitSet columns = replace ? null : updateColumnsOf(meta, t, dirtyFields);
+        final long tx = writeDBLog(replace ? DBService.DB_REPLACE : DBService.DB_UPDATE, t);
+        EntityCache<T> cache = getCache(t);
+        if (cache != null) {
+            cache.put(t);
+        }
+        markWrite(clazz);
+        return durable(tx, writeBehind.add(clazz, key, t, replace, tx, columns, dirtyFields).future);
+    }
+
+    /**
+     * 合并后的数据提交到所在的执行线程，每个执行线程的update和replace各执行一次批量写入
+     */
+    private void flushWriteBehind(Class<?> clazz, List<WriteBehindBuffer.Entry> entries) {
+        Map<Executor, List<WriteBehindBuffer.Entry>> lanes = new LinkedHashMap<>();
+        for (WriteBehindBuffer.Entry entry : entries) {
+            lanes.computeIfAbsent(getRowExecutor(entry.bean), k -> new ArrayList<>()).add(entry);
+        }
+        if (batcher != null) {
+            batcher.seal(clazz);
+        }
+        for (Map.Entry<Executor, List<WriteBehindBuffer.Entry>> lane : lanes.entrySet()) {
+            List<WriteBehindBuffer.Entry> updates = new ArrayList<>(lane.getValue().size());
+            List<WriteBehindBuffer.Entry> replaces = new ArrayList<>();
+            for (WriteBehindBuffer.Entry entry : lane.getValue()) {
+                (entry.replace ? replaces : updates).add(entry);
+            }
+            LaneExecutor.execute(lane.getKey(), () -> {
+                executeWriteBehind(clazz, updates, false);
+                executeWriteBehind(clazz, replaces, true);
+            }, clazz, DBPriority.NORMAL);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void executeWriteBehind(Class<T> clazz, List<WriteBehindBuffer.Entry> entries, boolean replace) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<T> objs = new ArrayList<>(entries.size());
+        List<BitSet> columns = new ArrayList<>(entries.size());
+        for (WriteBehindBuffer.Entry entry : entries) {
+            objs.add((T) entry.bean);
+            columns.add(entry.columns);
+        }
+        final EntityCache<T> cache = getCache(clazz);
+        final RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        int[] ret = null;
+        try {
+            ret = executeChunked(objs, (chunk, from) -> replace ? dbService.batchInsertOrReplace(chunk, true)
+                    : dbService.batchUpdate(chunk, columns.subList(from, from + chunk.size())));
+        } catch (Exception e) {
+            logger.error("sid {} writeBehind {{}} error!", sid, clazz.getName(), e);
+        } finally {
+            invalidateFailed(cache, objs, ret);
+            if (redisCache != null) {
+                redisCache.evictAll(objs);
+            }
+            boolean ok = ret != null && ret.length == objs.size();
+            for (int i = 0; i < entries.size(); ++i) {
+                WriteBehindBuffer.Entry entry = entries.get(i);
+                if (isFailed(ret, objs.size(), i)) {
+                    markDirty(entry.bean, entry.dirtyFields);
+                }
+                int rows = ok ? ret[i] : 0;
+                entry.future.complete(rows == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, rows));
+                for (long tx : entry.txs) {
+                    dbSyncSuccess(tx);
+                    endWrite(clazz);
+                }
+            }
+        }
+    }
+
+    private <T> Future<Boolean> insertOrReplaceAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t, boolean replace) {
+        Executor es = getRowExecutor(t);
+        CompletableFuture<Boolean> spilled = spill(es, replace ? DBService.DB_REPLACE : DBService.DB_INSERT, t);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        CompletableFuture<Integer> merged = replace && writeBehind != null ? writeBehind(es, t, true) : null;
+        if (merged != null) {
+            return attach(merged.thenApply(rows -> rows > 0), callback, callbackExecutor);
+        }
+        es = admit(es, t.getClass(), t);
+        final long tx = writeDBLog(replace ? DBService.DB_REPLACE : DBService.DB_INSERT, t);
+        final EntityCache<T> cache = getCache(t);
+        final RedisEntityCache<T> redisCache = getRedisCache(t);
+        // 自增主键在执行后才知道，执行成功后再写入缓存
+        final boolean generated = cache != null && dbService.hasGeneratedKey(t.getClass());
+        if (cache != null && !generated) {
+            cache.put(t);
+        }
+        final IntConsumer finish = rows -> {
+            boolean ret = rows > 0;
+            if (cache != null) {
+                if (!ret) {
+                    cache.invalidate(t);
+                } else if (generated) {
+                    cache.put(t);
+                }
+            }
+            if (redisCache != null) {
+                if (ret) {
+                    redisCache.put(t);
+                } else {
+                    redisCache.evict(t);
+                }
+            }
+            dbSyncSuccess(tx);
+            endWrite(t.getClass());
+        };
+        if (batcher != null) {
+            byte kind = replace ? LaneBatcher.REPLACE : LaneBatcher.INSERT;
+            return attach(durable(tx, submitBatched(t.getClass(), kind, t, null, finish).thenApply(rows -> rows > 0)), callback, callbackExecutor);
+        }
+        beginWrite(t.getClass());
+        return execute(tx, () -> {
+            boolean ret = false;
+            try {
+                ret = dbService.insertOrReplace(t, replace);
+            } catch (Exception e) {
+                logger.error("sid {} addAsync error!", sid, e);
+            } finally {
+                finish.accept(ret ? 1 : 0);
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<Boolean> upsertAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t, List<String> columns) {
+        final DBServiceWithLogProxy.UpsertData data = new DBServiceWithLogProxy.UpsertData(t, columns);
+        Executor es = getRowExecutor(t);
+        CompletableFuture<Boolean> spilled = spill(es, DBService.DB_UPSERT, data);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, t.getClass(), data);
+        final BitSet updateColumns = dbService.getEntityMeta(t.getClass()).updateColumnsOf(columns);
+        final long tx = writeDBLog(DBService.DB_UPSERT, data);
+        final EntityCache<T> cache = getCache(t);
+        final RedisEntityCache<T> redisCache = getRedisCache(t);
+        // 只更新部分列时数据库中的数据与对象不一致，不能写入缓存
+        final boolean full = updateColumns == null;
+        final boolean generated = dbService.hasGeneratedKey(t.getClass());
+        if (cache != null) {
+            if (full && !generated) {
+                cache.put(t);
+            } else {
+                cache.invalidate(t);
+            }
+        }
+        final IntConsumer finish = rows -> {
+            boolean ret = rows > 0;
+            if (cache != null) {
+                if (!ret || !full) {
+                    cache.invalidate(t);
+                } else if (generated) {
+                    cache.put(t);
+                }
+            }
+            if (redisCache != null) {
+                if (ret && full) {
+                    redisCache.put(t);
+                } else {
+                    redisCache.evict(t);
+                }
+            }
+            dbSyncSuccess(tx);
+            endWrite(t.getClass());
+        };
+        // 批量执行时不读取自增主键
+        if (batcher != null && !generated) {
+            return attach(durable(tx, submitBatched(t.getClass(), LaneBatcher.UPSERT, t, updateColumns, finish).thenApply(rows -> rows > 0)), callback, callbackExecutor);
+        }
+        beginWrite(t.getClass());
+        return execute(tx, () -> {
+            boolean ret = false;
+            try {
+                ret = dbService.upsert(t, updateColumns);
+            } catch (Exception e) {
+                logger.error("sid {} upsertAsync error!", sid, e);
+            } finally {
+                finish.accept(ret ? 1 : 0);
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<int[]> upsertBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs, List<String> columns) {
+        final DBServiceWithLogProxy.UpsertData data = new DBServiceWithLogProxy.UpsertData(objs, columns);
+        Executor es = getExecutor(objs.get(0).getClass());
+        CompletableFuture<int[]> spilled = spill(es, DBService.DB_UPSERT_BATCH, data);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, objs.get(0).getClass(), data);
+        final BitSet updateColumns = dbService.getEntityMeta(objs.get(0).getClass()).updateColumnsOf(columns);
+        final long tx = writeDBLog(DBService.DB_UPSERT_BATCH, data);
+        final EntityCache<T> cache = getCache(objs.get(0));
+        final RedisEntityCache<T> redisCache = getRedisCache(objs.get(0));
+        // 批量执行不读取自增主键，自增主键的表和只更新部分列时不写入缓存
+        final boolean cacheable = updateColumns == null && !dbService.hasGeneratedKey(objs.get(0).getClass());
+        if (cacheable) {
+            put(cache, objs);
+        } else {
+            invalidate(cache, objs);
+        }
+        beginWrite(objs.get(0).getClass());
+        return execute(tx, () -> {
+            int[] ret = null;
+            try {
+                ret = executeChunked(objs, (chunk, from) -> dbService.batchUpsert(chunk, updateColumns));
+            } catch (Exception e) {
+                logger.error("sid {} upsertBatchAsync error!", sid, e);
+            } finally {
+                if (ret == null || !cacheable) {
+                    invalidate(cache, objs);
+                } else if (cache != null) {
+                    // upsert影响0行表示数据已存在并且没有变化，只删除分段执行失败的数据
+                    for (int i = 0; i < objs.size(); ++i) {
+                        if (ret[i] == Statement.EXECUTE_FAILED) {
+                            cache.invalidate(objs.get(i));
+                        }
+                    }
+                }
+                if (redisCache != null) {
+                    redisCache.evictAll(objs);
+                }
+                dbSyncSuccess(tx);
+                endWrite(objs.get(0).getClass());
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<int[]> insertBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
+        return insertOrReplaceBatchAsync(callback, callbackExecutor, objs, false);
+    }
+
+    @Override
+    public <T> Future<int[]> replaceBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
+        return insertOrReplaceBatchAsync(callback, callbackExecutor, objs, true);
+    }
+
+    private <T> Future<int[]> insertOrReplaceBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs, boolean replace) {
+        final byte op = replace ? DBService.DB_REPLACE_BATCH : DBService.DB_INSERT_BATCH;
+        Executor es = getExecutor(objs.get(0).getClass());
+        CompletableFuture<int[]> spilled = spill(es, op, objs);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, objs.get(0).getClass(), objs);
+        final long tx = writeDBLog(op, objs);
+        final EntityCache<T> cache = getCache(objs.get(0));
+        final RedisEntityCache<T> redisCache = getRedisCache(objs.get(0));
+        final boolean generated = cache != null && dbService.hasGeneratedKey(objs.get(0).getClass());
+        if (!generated) {
+            put(cache, objs);
+        }
+        beginWrite(objs.get(0).getClass());
+        return execute(tx, () -> {
+            int[] ret = null;
+            try {
+                ret = executeChunked(objs, (chunk, from) -> dbService.batchInsertOrReplace(chunk, replace));
+            } catch (Exception e) {
+                logger.error("sid {} addBatchAsync error!", sid, e);
+            } finally {
+                if (generated && ret != null) {
+                    put(cache, objs);
+                }
+                invalidateFailed(cache, objs, ret);
+                if (redisCache != null) {
+                    redisCache.evictAll(objs);
+                }
+                dbSyncSuccess(tx);
+                endWrite(objs.get(0).getClass());
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    /**
+     * 异步执行事务：写一条日志，提交前从一级缓存中删除涉及的数据，在涉及的所有执行线程之后用一个连接执行，
+     * 提交成功后写入缓存，回滚时恢复update的修改记录
+     */
+    @Override
+    public Future<int[]> transactionAsync(Consumer<int[]> callback, Executor callbackExecutor, DBTransaction transaction) {
+        final List<DBTransaction.Op> ops = transaction.getOps();
+        if (ops.isEmpty()) {
+            return complete(new int[0], callback, callbackExecutor);
+        }
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        Set<Executor> lanes = new LinkedHashSet<>();
+        for (DBTransaction.Op op : ops) {
+            classes.add(op.type());
+            lanes.add(op.bean == null ? getExecutor(op.type()) : getRowExecutor(op.bean));
+        }
+        Executor es = lanes.size() == 1 ? lanes.iterator().next()
+                : lanes.contains(barrier) ? barrier : (Executor) task -> barrier.execute(new ArrayList<>(lanes), task);
+        CompletableFuture<int[]> spilled = spill(es, DBService.DB_TRANSACTION, ops);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, classes.size() == 1 ? classes.iterator().next() : null, ops);
+        try {
+            for (DBTransaction.Op op : ops) {
+                Class<?> clazz = op.type();
+                if (op.kind == DBTransaction.UPDATE) {
+                    op.dirtyFields = takeDirtyFields(op.bean);
+                    op.columns = dbService.getEntityMeta(clazz).updateColumnsOf(op.dirtyFields);
+                } else if (op.kind == DBTransaction.UPSERT) {
+                    op.columns = dbService.getEntityMeta(clazz).updateColumnsOf(op.columnNames);
+                }
+                invalidateBefore(op);
+            }
+        } catch (RuntimeException e) {
+            for (DBTransaction.Op op : ops) {
+                if (op.dirtyFields != null) {
+                    markDirty(op.bean, op.dirtyFields);
+                    op.dirtyFields = null;
+                }
+            }
+            throw e;
+        }
+        final long tx = writeDBLog(DBService.DB_TRANSACTION, ops);
+        for (Class<?> clazz : classes) {
+            beginWrite(clazz);
+        }
+        return execute(tx, () -> {
+            int[] ret = null;
+            try {
+                ret = dbService.transaction(ops);
+            } catch (Exception e) {
+                logger.error("sid {} transactionAsync error!", sid, e);
+            } finally {
+                for (int i = 0; i < ops.size(); ++i) {
+                    afterTransaction(ops.get(i), ret == null ? -1 : ret[i]);
+                }
+                dbSyncSuccess(tx);
+                for (Class<?> clazz : classes) {
+                    endWrite(clazz);
+                }
+            }
+            return ret;
+        }, es, callback, callbackExecutor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void invalidateBefore(DBTransaction.Op op) {
+        EntityCache<T> cache = getCache((Class<T>) op.type());
+        if (cache == null) {
+            return;
+        }
+        if (op.bean == null) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(op.bean);
+        }
+    }
+
+    /**
+     * 事务执行结束后更新缓存
+     *
+     * @param rows 操作影响的行数，事务回滚时为-1
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void afterTransaction(DBTransaction.Op op, int rows) {
+        Class<T> clazz = (Class<T>) op.type();
+        EntityCache<T> cache = getCache(clazz);
+        RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        if (op.bean == null) {
+            invalidateAll(cache, redisCache);
+            return;
+        }
+        T t = (T) op.bean;
+        boolean applied = op.kind == DBTransaction.UPSERT ? rows >= 0 : rows > 0;
+        if (op.kind == DBTransaction.UPDATE && !applied) {
+            markDirty(t, op.dirtyFields);
+        }
+        if (cache != null) {
+            // 删除的数据和只更新部分列的upsert不写入缓存
+            if (applied && op.kind != DBTransaction.DELETE && (op.kind != DBTransaction.UPSERT || op.columns == null)) {
+                cache.put(t);
+            } else {
+                cache.invalidate(t);
+            }
+        }
+        if (redisCache != null) {
+            redisCache.evict(t);
+        }
+    }
+
+    /**
+     * 异步批量导入：在该表的执行线程中执行，数据量大时不写日志，执行结束后清空该表的缓存
+     */
+    @Override
+    public <T> Future<Long> bulkLoadAsync(Consumer<Long> callback, Executor callbackExecutor, Class<T> clazz, Iterator<? extends T> rows) {
+        final EntityCache<T> cache = getCache(clazz);
+        final RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        // 不写日志，不能转入溢出日志
+        Executor es = admit(getExecutor(clazz), clazz, clazz);
+        beginWrite(clazz);
+        return execute(() -> {
+            try {
+                return dbService.bulkLoad(clazz, rows);
+            } catch (Exception e) {
+                logger.error("sid {} bulkLoadAsync {{}} error!", sid, clazz.getName(), e);
+            } finally {
+                invalidateAll(cache, redisCache);
+                endWrite(clazz);
+            }
+            return -1L;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<Boolean> truncateAsync(Consumer<Boolean> callback, Executor callbackExecutor, Class<T> clazz) {
+        Executor es = getExecutor(clazz);
+        CompletableFuture<Boolean> spilled = spill(es, DBService.DB_TRUNCATE, clazz);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, clazz, clazz);
+        final long tx = writeDBLog(DBService.DB_TRUNCATE, clazz);
+        final EntityCache<T> cache = getCache(clazz);
+        final RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        beginWrite(clazz);
+        return execute(tx, () -> {
+            try {
+                return dbService.truncate(clazz);
+            } catch (Exception e) {
+                logger.error("sid {} truncateAsync error!", sid, e);
+            } finally {
+                invalidateAll(cache, redisCache);
+                dbSyncSuccess(tx);
+                endWrite(clazz);
+            }
+            return false;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<Boolean> deleteAsync(Consumer<Boolean> callback, Executor callbackExecutor, Class<T> clazz, DBWhere... wheres) {
+        final DBServiceWithLogProxy.OperateData data = new DBServiceWithLogProxy.OperateData(clazz, wheres);
+        Executor es = getExecutor(clazz);
+        CompletableFuture<Boolean> spilled = spill(es, DBService.DB_DELETE_WHERE, data);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, clazz, data);
+        final long tx = writeDBLog(DBService.DB_DELETE_WHERE, data);
+        final EntityCache<T> cache = getCache(clazz);
+        final RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        beginWrite(clazz);
+        return execute(tx, () -> {
+            try {
+                return dbService.delete(clazz, wheres);
+            } catch (Exception e) {
+                logger.error("sid {} deleteAsync error!", sid, e);
+            } finally {
+                invalidateAll(cache, redisCache);
+                dbSyncSuccess(tx);
+                endWrite(clazz);
+            }
+            return false;
+        }, es, callback, callbackExecutor);
+    }
+
+    @Override
+    public <T> Future<Integer> updateAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, String name, Object value, DBWhere... wheres) {
+        final DBServiceWithLogProxy.OperateData data = new DBServiceWithLogProxy.OperateData(name, value, clazz, wheres);
+        Executor es = getExecutor(clazz);
+        CompletableFuture<Integer> spilled = spill(es, DBService.DB_UPDATE_WHERE, data);
+        if (spilled != null) {
+            return attach(spilled, callback, callbackExecutor);
+        }
+        es = admit(es, clazz, data);
+        final long tx = writeDBLog(DBService.DB_UPDATE_WHERE, data);
+        final EntityCache<T> cache = getCache(clazz);
+        final RedisEntityCache<T> redisCache = getRedisCache(clazz);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        beginWrite(clazz);
+        return execute(tx, () -> {
+            try {
+                return dbService.update(clazz, name, value, wheres);
+            } catch (Exception e) {
+                logger.error("sid {} updateAsync error!", sid, e);
+            } finally {
+                invalidateAll(cache, redisCache);
+                dbSyncSuccess(tx);
+                endWrite(clazz);
+            }
+            return -1;
+        }, es, callback, callbackExecutor);
+    }
+
+    /**
+     * 批量写入超过db.batch.chunkSize时分段执行，每段一个事务；db.batch.parallelism大于1时各段在分段线程池中并行执行，
+     * 此时同一批数据中不能有相同主键的数据
+     *
+     * @param call 执行一段数据，from为该段在objs中的起始位置
+     * @return 每条数据的结果，执行失败的段为{@link Statement#EXECUTE_FAILED}
+     * @throws Exception 所有段都执行失败时抛出第一个错误
+     */
+    private <T> int[] executeChunked(List<T> objs, ChunkCall<T> call) throws Exception {
+        int chunkSize = dbService.getBatchChunkSize();
+        if (chunkSize <= 0 || objs.size() <= chunkSize) {
+            return call.call(objs, 0);
+        }
+        Executor executor = chunkExecutor == null ? Runnable::run : chunkExecutor;
+        List<CompletableFuture<int[]>> futures = new ArrayList<>();
+        for (int from = 0; from < objs.size(); from += chunkSize) {
+            List<T> chunk = objs.subList(from, Math.min(objs.size(), from + chunkSize));
+            int start = from;
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call(chunk, start);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        int[] ret = new int[objs.size()];
+        Exception error = null;
+        int failed = 0;
+        for (int i = 0; i < futures.size(); ++i) {
+            int from = i * chunkSize;
+            int to = Math.min(objs.size(), from + chunkSize);
+            try {
+                int[] r = futures.get(i).get();
+                Arrays.fill(ret, from, to, Statement.EXECUTE_FAILED);
+                System.arraycopy(r, 0, ret, from, Math.min(r.length, to - from));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                logger.error("sid {} batch chunk [{}, {}) of {} error!", sid, from, to, objs.size(), cause);
+                Arrays.fill(ret, from, to, Statement.EXECUTE_FAILED);
+                if (error == null) {
+                    error = cause instanceof Exception ? (Exception) cause : e;
+                }
+                ++failed;
+            }
+        }
+        if (failed == futures.size()) {
+            throw error;
+        }
+        return ret;
+    }
+
+    private interface ChunkCall<T> {
+        int[] call(List<T> chunk, int from) throws Exception;
+    }
+
+    private static <T> void invalidateAll(EntityCache<T> cache, RedisEntityCache<T> redisCache) {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        if (redisCache != null) {
+            redisCache.clear();
+        }
+    }
+
+    private static <T> void put(EntityCache<T> cache, List<T> objs) {
+        if (cache != null) {
+            for (T t : objs) {
+                cache.put(t);
+            }
+        }
+    }
+
+    private static <T> void invalidate(EntityCache<T> cache, List<T> objs) {
+        if (cache != null) {
+            for (T t : objs) {
+                cache.invalidate(t);
+            }
+        }
+    }
+
+    /**
+     * 批量写入失败（整体失败或者单条影响0行）的数据从缓存中删除
+     */
+    private static <T> void invalidateFailed(EntityCache<T> cache, List<T> objs, int[] ret) {
+        if (cache == null) {
+            return;
+        }
+        for (int i = 0; i < objs.size(); ++i) {
+            if (isFailed(ret, objs.size(), i)) {
+                cache.invalidate(objs.get(i));
+            }
+        }
+    }
+
+    /**
+     * 批量写入中的一条是否失败（整体失败或者影响0行）
+     */
+    private static boolean isFailed(int[] ret, int size, int i) {
+        return ret == null || ret.length != size || ret[i] == 0 || ret[i] == Statement.EXECUTE_FAILED;
+    }
+
+    /**
+     * 取出{@link IDirtyModel}修改过的字段，其他对象返回null
+     */
+    private static Set<String> takeDirtyFields(Object t) {
+        return t instanceof IDirtyModel ? ((IDirtyModel) t).takeDirtyFields() : null;
+    }
+
+    /**
+     * 修改过的字段对应的列，字段名错误时先恢复修改记录再抛出异常
+     */
+    private static BitSet updateColumnsOf(EntityMeta<?> meta, Object t, Set<String> fields) {
+        try {
+            return meta.updateColumnsOf(fields);
+        } catch (RuntimeException e) {
+            markDirty(t, fields);
+            throw e;
+        }
+    }
+
+    /**
+     * 更新失败时恢复修改记录，下次update时重新写入
+     */
+    private static void markDirty(Object t, Set<String> fields) {
+        if (fields != null && !fields.isEmpty()) {
+            ((IDirtyModel) t).markDirty(fields);
+        }
+    }
+
+    /**
+     * 整个表的操作的执行器：按class选择执行线程，按主键分配执行线程时在所有执行线程的屏障处执行
+     *
+     * @param clazz 对象class
+     * @return
+     */
+    protected Executor getExecutor(Class<?> clazz) {
+        if (keyAffinity) {
+            return barrier;
+        }
         return executors[(executors.length - 1) & hash(clazz.hashCode())];
     }
 
+    /**
+     * 单行操作的执行器：按主键分配执行线程时按class和主键选择执行线程，同一行的操作按提交顺序执行
+     *
+     * @param clazz 对象class
+     * @param key   主键，见{@link EntityMeta#primaryKeyOf(Object)}，为null时与整个表的操作相同
+     * @return
+     */
+    protected Executor getExecutor(Class<?> clazz, Object key) {
+        if (keyAffinity && key != null) {
+            return executors[(executors.length - 1) & hash(31L * clazz.hashCode() + key.hashCode())];
+        }
+        return getExecutor(clazz);
+    }
+
+    private Executor getRowExecutor(Object t) {
+        return keyAffinity ? getExecutor(t.getClass(), dbService.getEntityMeta(t.getClass()).primaryKeyOf(t)) : getExecutor(t.getClass());
+    }
+
+    /**
+     * 读操作的执行器：开启读线程池（db.read.pool）时所有读操作并行执行，
+     * 不再等待该class之前提交的写操作执行完成（按主键的查询仍然可以从一级缓存读到最新数据）；
+     * 否则与写操作一样在该class的执行线程中按顺序执行
+     *
+     * @param clazz 对象class
+     * @return
+     */
+    protected Executor getReadExecutor(Class<?> clazz) {
+        return getReadExecutor(clazz, null);
+    }
+
+    /**
+     * 按主键查询的执行器，没有开启读线程池时在该主键的执行线程中执行
+     *
+     * @param clazz 对象class
+     * @param key   主键
+     * @return
+     */
+    protected Executor getReadExecutor(Class<?> clazz, Object key) {
+        if (readExecutor != null) {
+            return readExecutor;
+        }
+        // 在执行线程中读取时，先提交该class合并中的延迟写和微批，保证能读到之前提交的写操作；
+        // 按主键读取时已经检查过合并中的延迟写（见selectAsync），其他主键的延迟写不影响结果，不需要提交
+        if (writeBehind != null && key == null) {
+            writeBehind.flush(clazz);
+        }
+        if (batcher != null) {
+            batcher.seal(clazz);
+        }
+        return tagged(getExecutor(clazz, key), clazz, 0);
+    }
+
+    /**
+     * 写操作提交时调用，先提交该class合并中的延迟写和微批，保证执行顺序与提交顺序一致
+     */
+    private void beginWrite(Class<?> clazz) {
+        if (writeBehind != null) {
+            writeBehind.flush(clazz);
+        }
+        if (batcher != null) {
+            batcher.seal(clazz);
+        }
+        markWrite(clazz);
+    }
+
+    private void markWrite(Class<?> clazz) {
+        WriteStamp ws = writeStamps.get(clazz);
+        ws.pending.incrementAndGet();
+        ws.stamp.incrementAndGet();
+    }
+
+    /**
+     * 写操作执行结束时调用
+     */
+    private void endWrite(Class<?> clazz) {
+        WriteStamp ws = writeStamps.get(clazz);
+        ws.lastWriteTime = System.currentTimeMillis();
+        ws.stamp.incrementAndGet();
+        ws.pending.decrementAndGet();
+    }
+
+    /**
+     * 查询是否可以在从库执行：没有配置从库、声明了@TableReadPrimary、查询条件包含{@link DBWhere#PRIMARY()}、
+     * 该class有未执行完的写操作或者在db.replica.stickyMillis内执行过写操作时在主库执行
+     *
+     * @param clazz  对象class
+     * @param wheres 查询条件
+     * @return
+     */
+    protected boolean readReplica(Class<?> clazz, DBWhere[] wheres) {
+        if (dbService.getReplicaRouter() == null || DBWhere.isPrimary(wheres) || clazz.isAnnotationPresent(TableReadPrimary.class)) {
+            return false;
+        }
+        WriteStamp ws = writeStamps.get(clazz);
+        return ws.pending.get() == 0 && System.currentTimeMillis() - ws.lastWriteTime >= dbService.getReplicaStickyMillis();
+    }
+
+    /**
+     * 读操作开始时记录写操作计数，有未执行完的写操作时返回-1
+     */
+    private long readStamp(Class<?> clazz) {
+        if (readExecutor == null) {
+            return 0;
+        }
+        WriteStamp ws = writeStamps.get(clazz);
+        return ws.pending.get() > 0 ? -1 : ws.stamp.get();
+    }
+
+    /**
+     * 读线程池中读到的数据可能早于并行执行的写操作，读的过程中没有写操作时才能写入缓存
+     */
+    private boolean canPopulate(Class<?> clazz, long stamp) {
+        return readExecutor == null || (stamp >= 0 && writeStamps.get(clazz).stamp.get() == stamp);
+    }
+
+    /**
+     * 执行线程已满时写操作的处理方式
+     */
+    enum Overflow {
+        /**
+         * 等待到有空间
+         */
+        BLOCK,
+        /**
+         * 抛出RejectedExecutionException
+         */
+        FAIL,
+        /**
+         * 转入溢出日志，之后按顺序重新执行（需要写日志）
+         */
+        SPILL
+    }
+
+    private static final class WriteStamp {
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong stamp = new AtomicLong();
+        volatile long lastWriteTime;
+    }
+
     static class ThreadFactoryImpl implements ThreadFactory {
         private final String namePrefix;
         private final int sid;
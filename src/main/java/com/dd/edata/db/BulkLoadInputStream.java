@@ -0,0 +1,183 @@
+package com.dd.edata.db;
+
+import com.dd.edata.utils.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+
+/**
+ * 把实体对象逐行转换成LOAD DATA的默认格式（字段用\t分隔，行用\n分隔，转义字符为\，null为\N），
+ * 读取时才从迭代器中取数据，不写临时文件
+ *
+ * @author wangshupeng
+ */
+final class BulkLoadInputStream extends InputStream {
+    private static final int FILL_SIZE = 64 * 1024;
+
+    private final ColumnMeta[] columns;
+    private final Iterator<?> rows;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private byte[] buf = new byte[FILL_SIZE + 1024];
+    private int pos;
+    private int count;
+    private long rowCount;
+
+    /**
+     * @param columns 按顺序写入的列，与LOAD DATA语句中的列相同
+     * @param rows    数据
+     */
+    BulkLoadInputStream(ColumnMeta[] columns, Iterator<?> rows) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * 已经从迭代器中取出的行数
+     */
+    long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, count - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return count - pos;
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < count) {
+            return true;
+        }
+        pos = count = 0;
+        while (count < FILL_SIZE && rows.hasNext()) {
+            writeRow(rows.next());
+        }
+        return count > 0;
+    }
+
+    private void writeRow(Object bean) throws IOException {
+        ++rowCount;
+        for (int i = 0; i < columns.length; ++i) {
+            if (i > 0) {
+                write('\t');
+            }
+            ColumnMeta column = columns[i];
+            Object v;
+            try {
+                v = column.get(bean);
+            } catch (Throwable t) {
+                throw new IOException("error:read column " + column.getName() + " of " + bean, t);
+            }
+            writeValue(column, v);
+        }
+        write('\n');
+    }
+
+    private void writeValue(ColumnMeta column, Object v) {
+        if (column.getKind() == ColumnMeta.Kind.JSON) {
+            // 与绑定参数相同，null也写成json
+            writeEscaped(Util.toJson(v).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (v == null) {
+            write('\\');
+            write('N');
+            return;
+        }
+        switch (column.getKind()) {
+            case BOOLEAN:
+                write((Boolean) v ? '1' : '0');
+                break;
+            case DATE:
+                writeAscii(dateFormat.format((Date) v));
+                break;
+            case BYTES:
+                writeEscaped((byte[]) v);
+                break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                writeAscii(v.toString());
+                break;
+            default:
+                writeEscaped(v.toString().getBytes(StandardCharsets.UTF_8));
+                break;
+        }
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            write(s.charAt(i));
+        }
+    }
+
+    /**
+     * 转义\、\t、\n、\r和\0，UTF-8的多字节字符不会包含这些字节
+     */
+    private void writeEscaped(byte[] bytes) {
+        for (byte b : bytes) {
+            switch (b) {
+                case '\\':
+                    write('\\');
+                    write('\\');
+                    break;
+                case '\t':
+                    write('\\');
+                    write('t');
+                    break;
+                case '\n':
+                    write('\\');
+                    write('n');
+                    break;
+                case '\r':
+                    write('\\');
+                    write('r');
+                    break;
+                case 0:
+                    write('\\');
+                    write('0');
+                    break;
+                default:
+                    write(b);
+                    break;
+            }
+        }
+    }
+
+    private void write(int b) {
+        if (count == buf.length) {
+            byte[] n = new byte[buf.length << 1];
+            System.arraycopy(buf, 0, n, 0, count);
+            buf = n;
+        }
+        buf[count++] = (byte) b;
+    }
+}
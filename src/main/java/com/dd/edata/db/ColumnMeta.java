@@ -0,0 +1,316 @@
+package com.dd.edata.db;
+
+import com.dd.edata.db.annotation.Column;
+import com.dd.edata.utils.Util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+
+/**
+ * 实体类字段（@Column）的元数据及访问器
+ * <p>
+ * 访问器使用MethodHandle在启动时生成，读写基本类型字段时不装箱
+ *
+ * @author wangshupeng
+ */
+final class ColumnMeta {
+    enum Kind {
+        BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, DATE, BYTES, JSON, OBJECT
+    }
+
+    private final Field field;
+    private final String name;
+    private final int index;
+    private final boolean json;
+    private final boolean autoIncrement;
+    private final boolean primitive;
+    private final Kind kind;
+    private final int sqlType;
+    private final Type genericType;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    ColumnMeta(Field field, int index) throws IllegalAccessException {
+        Column ann = field.getAnnotation(Column.class);
+        this.field = field;
+        this.name = Util.getColName(field);
+        this.index = index;
+        this.json = ann.isJson();
+        this.autoIncrement = ann.autoIncrement();
+        this.genericType = field.getGenericType();
+        this.kind = kindOf(field.getType(), json);
+        this.sqlType = sqlTypeOf(kind);
+        Class<?> type = field.getType();
+        this.primitive = type.isPrimitive() && kind != Kind.OBJECT && kind != Kind.JSON;
+        Class<?> handleType = primitive ? type : Object.class;
+        field.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        this.getter = lookup.unreflectGetter(field).asType(MethodType.methodType(handleType, Object.class));
+        this.setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, handleType));
+    }
+
+    private static Kind kindOf(Class<?> type, boolean json) {
+        if (json) return Kind.JSON;
+        if (type == boolean.class || type == Boolean.class) return Kind.BOOLEAN;
+        if (type == byte.class || type == Byte.class) return Kind.BYTE;
+        if (type == short.class || type == Short.class) return Kind.SHORT;
+        if (type == int.class || type == Integer.class) return Kind.INT;
+        if (type == long.class || type == Long.class) return Kind.LONG;
+        if (type == float.class || type == Float.class) return Kind.FLOAT;
+        if (type == double.class || type == Double.class) return Kind.DOUBLE;
+        if (type == String.class) return Kind.STRING;
+        if (type == Date.class) return Kind.DATE;
+        if (type == byte[].class) return Kind.BYTES;
+        return Kind.OBJECT;
+    }
+
+    Field getField() {
+        return field;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * 字段在实体类所有@Column字段中的序号
+     */
+    int getIndex() {
+        return index;
+    }
+
+    boolean isJson() {
+        return json;
+    }
+
+    boolean isAutoIncrement() {
+        return autoIncrement;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * 读取字段值（基本类型会装箱，只用于非热点路径）
+     */
+    Object get(Object bean) throws Throwable {
+        if (!primitive) {
+            return (Object) getter.invokeExact(bean);
+        }
+        return field.get(bean);
+    }
+
+    /**
+     * 设置字段值（基本类型会拆箱，只用于非热点路径）
+     */
+    void set(Object bean, Object value) throws Throwable {
+        if (!primitive) {
+            setter.invokeExact(bean, value);
+        } else {
+            field.set(bean, value);
+        }
+    }
+
+    /**
+     * 从结果集的第idx列读取数据并写入bean，数据库中为null时保留字段的原值
+     */
+    void read(ResultSet rs, int idx, Object bean) throws Throwable {
+        switch (kind) {
+            case BOOLEAN: {
+                boolean v = rs.getBoolean(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Boolean.valueOf(v));
+                break;
+            }
+            case BYTE: {
+                byte v = rs.getByte(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Byte.valueOf(v));
+                break;
+            }
+            case SHORT: {
+                short v = rs.getShort(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Short.valueOf(v));
+                break;
+            }
+            case INT: {
+                int v = rs.getInt(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Integer.valueOf(v));
+                break;
+            }
+            case LONG: {
+                long v = rs.getLong(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Long.valueOf(v));
+                break;
+            }
+            case FLOAT: {
+                float v = rs.getFloat(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Float.valueOf(v));
+                break;
+            }
+            case DOUBLE: {
+                double v = rs.getDouble(idx);
+                if (rs.wasNull()) break;
+                if (primitive) setter.invokeExact(bean, v);
+                else setter.invokeExact(bean, (Object) Double.valueOf(v));
+                break;
+            }
+            case STRING: {
+                String v = rs.getString(idx);
+                if (v != null) setter.invokeExact(bean, (Object) v);
+                break;
+            }
+            case DATE: {
+                Timestamp v = rs.getTimestamp(idx);
+                if (v != null) setter.invokeExact(bean, (Object) new Date(v.getTime()));
+                break;
+            }
+            case BYTES: {
+                byte[] v = rs.getBytes(idx);
+                if (v != null) setter.invokeExact(bean, (Object) v);
+                break;
+            }
+            case JSON: {
+                String v = rs.getString(idx);
+                if (v != null) {
+                    Object o = Util.fromJson(v, genericType);
+                    setter.invokeExact(bean, o);
+                }
+                break;
+            }
+            default: {
+                Object v = rs.getObject(idx, boxed(field.getType()));
+                if (v != null) set(bean, v);
+                break;
+            }
+        }
+    }
+
+    /**
+     * 把bean中该字段的值绑定到语句的第idx个参数
+     */
+    void bind(PreparedStatement stmt, int idx, Object bean) throws Throwable {
+        if (primitive) {
+            switch (kind) {
+                case BOOLEAN:
+                    stmt.setBoolean(idx, (boolean) getter.invokeExact(bean));
+                    return;
+                case BYTE:
+                    stmt.setByte(idx, (byte) getter.invokeExact(bean));
+                    return;
+                case SHORT:
+                    stmt.setShort(idx, (short) getter.invokeExact(bean));
+                    return;
+                case INT:
+                    stmt.setInt(idx, (int) getter.invokeExact(bean));
+                    return;
+                case LONG:
+                    stmt.setLong(idx, (long) getter.invokeExact(bean));
+                    return;
+                case FLOAT:
+                    stmt.setFloat(idx, (float) getter.invokeExact(bean));
+                    return;
+                case DOUBLE:
+                    stmt.setDouble(idx, (double) getter.invokeExact(bean));
+                    return;
+                default:
+                    break;
+            }
+        }
+        Object v = (Object) getter.invokeExact(bean);
+        if (kind == Kind.JSON) {
+            stmt.setString(idx, Util.toJson(v));
+            return;
+        }
+        if (v == null) {
+            stmt.setNull(idx, sqlType);
+            return;
+        }
+        switch (kind) {
+            case BOOLEAN:
+                stmt.setBoolean(idx, (Boolean) v);
+                break;
+            case BYTE:
+                stmt.setByte(idx, (Byte) v);
+                break;
+            case SHORT:
+                stmt.setShort(idx, (Short) v);
+                break;
+            case INT:
+                stmt.setInt(idx, (Integer) v);
+                break;
+            case LONG:
+                stmt.setLong(idx, (Long) v);
+                break;
+            case FLOAT:
+                stmt.setFloat(idx, (Float) v);
+                break;
+            case DOUBLE:
+                stmt.setDouble(idx, (Double) v);
+                break;
+            case STRING:
+                stmt.setString(idx, (String) v);
+                break;
+            case DATE:
+                stmt.setTimestamp(idx, new Timestamp(((Date) v).getTime()));
+                break;
+            case BYTES:
+                stmt.setBytes(idx, (byte[]) v);
+                break;
+            default:
+                stmt.setObject(idx, v);
+                break;
+        }
+    }
+
+    private static int sqlTypeOf(Kind kind) {
+        switch (kind) {
+            case BOOLEAN:
+            case BYTE:
+                return Types.TINYINT;
+            case SHORT:
+                return Types.SMALLINT;
+            case INT:
+                return Types.INTEGER;
+            case LONG:
+                return Types.BIGINT;
+            case FLOAT:
+                return Types.FLOAT;
+            case DOUBLE:
+                return Types.DOUBLE;
+            case STRING:
+            case JSON:
+                return Types.VARCHAR;
+            case DATE:
+                return Types.TIMESTAMP;
+            case BYTES:
+                return Types.BLOB;
+            default:
+                return Types.NULL;
+        }
+    }
+
+    private static Class<?> boxed(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        return MethodType.methodType(type).wrap().returnType();
+    }
+}
@@ -0,0 +1,63 @@
+package com.dd.edata.db;
+
+import java.util.function.Supplier;
+
+/**
+ * 数据库操作在执行线程中的优先级
+ * <p>
+ * 优先级在提交时确定（{@link #with(DBPriority, Supplier)}范围内提交的异步操作），默认为{@link #NORMAL}；
+ * 执行线程中优先级高的操作可以排到其他表之前提交的操作前面，同一个表的操作仍然按提交顺序执行，
+ * 整个表的操作（屏障）之后提交的操作不会排到它前面；等待超过db.lane.priority.maxWaitMillis的操作不再被插队
+ *
+ * @author wangshupeng
+ */
+public enum DBPriority {
+    /**
+     * 影响玩家的操作，例如登录时的查询
+     */
+    INTERACTIVE,
+    NORMAL,
+    /**
+     * 后台维护，例如批量导入、定时清理
+     */
+    BACKGROUND;
+
+    private static final ThreadLocal<DBPriority> current = ThreadLocal.withInitial(() -> NORMAL);
+
+    /**
+     * 当前线程提交的操作的优先级
+     */
+    static DBPriority current() {
+        return current.get();
+    }
+
+    /**
+     * 以指定的优先级提交操作，例如DBPriority.with(DBPriority.BACKGROUND, () -&gt; edata.replaceBatchAsync(objs))
+     *
+     * @param priority 优先级
+     * @param action   提交操作（只影响当前线程中提交的操作，不影响回调）
+     * @return action的返回值
+     */
+    public static <R> R with(DBPriority priority, Supplier<R> action) {
+        DBPriority old = current.get();
+        current.set(priority);
+        try {
+            return action.get();
+        } finally {
+            current.set(old);
+        }
+    }
+
+    /**
+     * 以指定的优先级提交操作
+     *
+     * @param priority 优先级
+     * @param action   提交操作
+     */
+    public static void with(DBPriority priority, Runnable action) {
+        with(priority, () -> {
+            action.run();
+            return null;
+        });
+    }
+}
@@ -1,11 +1,11 @@
 package com.dd.edata.db;
 
-import com.dd.edata.db.DBWhere.WhereCond;
 import com.dd.edata.db.annotation.*;
+import com.dd.edata.redis.IRedisService;
 import com.dd.edata.utils.Util;
+import com.mysql.cj.jdbc.JdbcStatement;
 import com.zaxxer.hikari.HikariConfigMXBean;
 import com.zaxxer.hikari.HikariDataSource;
-import org.apache.commons.beanutils.BeanUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,6 +13,9 @@ import javax.sql.DataSource;
 import java.lang.reflect.Field;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 /**
  * 数据库服务类
@@ -31,12 +34,37 @@ final class DBService {
     static final byte DB_DELETE_WHERE = 8;
     static final byte DB_TRUNCATE = 9;
     static final byte DB_TX_COMMIT = 10;
+    static final byte DB_UPSERT = 11;
+    static final byte DB_UPSERT_BATCH = 12;
+    static final byte DB_TRANSACTION = 13;
+    /**
+     * replace单独记录（之前与insert相同，恢复时按insert执行），旧的日志文件仍然可以恢复
+     */
+    static final byte DB_REPLACE = 14;
+    static final byte DB_REPLACE_BATCH = 15;
+    /**
+     * 提交水位（代替每个写操作一条DB_TX_COMMIT）：txid为最小的未提交事务id，对象为{@link FileDBLog.Watermark}
+     */
+    static final byte DB_TX_WATERMARK = 16;
 
+    private static final int MAX_SQL_TEMPLATES = 4096;
     private static final Logger logger = LoggerFactory.getLogger(DBService.class);
     private static final ThreadLocal<Calendar> calHolder = ThreadLocal.withInitial(() -> Calendar.getInstance());
     private DataSource dataSource;
     private DBUtil dbUtil;
     private boolean isCobar;
+    private volatile int streamFetchSize = Integer.MIN_VALUE;
+    private volatile int inChunkSize = 500;
+    private volatile int batchChunkSize = 0;
+    private volatile boolean cacheEnabled = true;
+    private final Map<Class<?>, EntityCache<?>> entityCaches = new ConcurrentHashMap<>();
+    private final Map<Class<?>, RedisEntityCache<?>> redisCaches = new ConcurrentHashMap<>();
+    private volatile boolean redisCacheEnabled = true;
+    private volatile String redisCachePrefix = "edata";
+    private volatile IRedisService redisService;
+    private volatile ReplicaRouter replicaRouter;
+    private volatile long replicaStickyMillis = 1000;
+    private final ConcurrentMap<SqlTemplate.Key, SqlTemplate> sqlTemplates = new ConcurrentHashMap<>();
 
     DBService(IDBProxy proxy, String packagePath, ClassLoader cl, DataSource ds, boolean isCobar) {
         dataSource = ds;
@@ -51,6 +79,137 @@ final class DBService {
         bean.setMaximumPoolSize(Integer.parseInt(props.getProperty("db.maxPoolSize", "32")));
         bean.setMinimumIdle(Integer.parseInt(props.getProperty("db.minIdle", "4")));
         bean.setLeakDetectionThreshold(Long.parseLong(props.getProperty("db.leakDetectionThreshold", "30000")));
+        configure(props);
+    }
+
+    /**
+     * 读取连接池以外的配置
+     *
+     * @param props 配置
+     */
+    protected void configure(Properties props) {
+        // 0表示MySQL逐行流式读取，大于0时需要在url中配置useCursorFetch=true使用服务端游标
+        int fetchSize = Integer.parseInt(props.getProperty("db.stream.fetchSize", "0"));
+        streamFetchSize = fetchSize > 0 ? fetchSize : Integer.MIN_VALUE;
+        inChunkSize = Math.max(1, Integer.parseInt(props.getProperty("db.in.chunkSize", "500")));
+        batchChunkSize = Math.max(0, Integer.parseInt(props.getProperty("db.batch.chunkSize", "0")));
+        boolean enabled = Boolean.parseBoolean(props.getProperty("db.cache.enable", "true"));
+        if (!enabled) {
+            // 关闭期间写操作不再维护缓存，重新打开时不能读到旧数据
+            for (EntityCache<?> cache : entityCaches.values()) {
+                cache.invalidateAll();
+            }
+        }
+        cacheEnabled = enabled;
+        redisCacheEnabled = Boolean.parseBoolean(props.getProperty("db.redis.cache.enable", "true"));
+        redisCachePrefix = props.getProperty("db.redis.cache.prefix", "edata");
+        configureRedisCaches();
+        replicaStickyMillis = Long.parseLong(props.getProperty("db.replica.stickyMillis", "1000"));
+        ReplicaRouter router = replicaRouter;
+        if (router != null) {
+            router.setBalance(props.getProperty("db.replica.balance", ReplicaRouter.BALANCE_ROUND_ROBIN));
+        }
+    }
+
+    /**
+     * 设置从库，查询可以在从库执行
+     *
+     * @param router 没有配置从库时为null
+     */
+    protected void setReplicaRouter(ReplicaRouter router) {
+        this.replicaRouter = router;
+    }
+
+    protected ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    /**
+     * 写操作之后的这段时间内该class的查询只在主库执行，避免读到从库中还没有同步的旧数据
+     */
+    protected long getReplicaStickyMillis() {
+        return replicaStickyMillis;
+    }
+
+    /**
+     * 设置二级缓存使用的redis服务
+     *
+     * @param redisService 没有配置redis时为null
+     */
+    protected void setRedisService(IRedisService redisService) {
+        this.redisService = redisService;
+        configureRedisCaches();
+    }
+
+    private void configureRedisCaches() {
+        for (RedisEntityCache<?> cache : redisCaches.values()) {
+            cache.configure(redisCachePrefix, redisService);
+        }
+    }
+
+    /**
+     * 获取实体类的redis二级缓存
+     *
+     * @param clazz 对象class
+     * @return 没有声明@TableRedisCache、没有配置redis或者缓存已关闭时返回null
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> RedisEntityCache<T> getRedisCache(Class<T> clazz) {
+        if (!redisCacheEnabled) {
+            return null;
+        }
+        RedisEntityCache<T> cache = (RedisEntityCache<T>) redisCaches.get(clazz);
+        return cache != null && cache.isAvailable() ? cache : null;
+    }
+
+    protected <T> EntityMeta<T> getEntityMeta(Class<T> clazz) {
+        return dbUtil.getEntityMeta(clazz);
+    }
+
+    /**
+     * 扫描到的实体类（声明了@Table）
+     */
+    protected List<Class<?>> getTableClasses() {
+        return Collections.unmodifiableList(dbUtil.tableClasses);
+    }
+
+    /**
+     * 获取实体类的主键缓存
+     *
+     * @param clazz 对象class
+     * @return 没有声明@TableCache或者缓存已关闭时返回null
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> EntityCache<T> getEntityCache(Class<T> clazz) {
+        if (!cacheEnabled) {
+            return null;
+        }
+        return (EntityCache<T>) entityCaches.get(clazz);
+    }
+
+    /**
+     * 按主键查询时每条IN语句中主键的最大数量
+     */
+    protected int getInChunkSize() {
+        return inChunkSize;
+    }
+
+    /**
+     * 批量写入时每段（一个事务）的最大数量，0表示不分段
+     */
+    protected int getBatchChunkSize() {
+        return batchChunkSize;
+    }
+
+    /**
+     * 是否有数据库生成的自增主键
+     */
+    protected boolean hasGeneratedKey(Class<?> clazz) {
+        return dbUtil.getEntityMeta(clazz).getAutoIncrementColumn() != null;
+    }
+
+    protected Map<Class<?>, EntityCache<?>> getEntityCaches() {
+        return entityCaches;
     }
 
     /**
@@ -60,11 +219,11 @@ final class DBService {
      * @return
      * @throws Exception
      */
-    protected <T> T select(Class<T> clazz, List<String> columns, DBWhere... wheres) throws Exception {
+    protected <T> T select(Class<T> clazz, List<String> columns, boolean replica, DBWhere... wheres) throws Exception {
         DBWhere[] newWheres = new DBWhere[wheres.length + 1];
         System.arraycopy(wheres, 0, newWheres, 0, wheres.length);
         newWheres[wheres.length] = DBWhere.LIMIT(1);
-        List<T> l = selectList(clazz, columns, newWheres);
+        List<T> l = selectList(clazz, columns, replica, newWheres);
         if (l == null || l.isEmpty()) {
             return null;
         }
@@ -77,53 +236,19 @@ final class DBService {
      * @param clazz
      * @return
      */
-    protected <T> List<T> selectList(Class<T> clazz, List<String> columns, DBWhere... wheres) throws Exception {
-        Arrays.sort(wheres, DBWhere.comparator);
+    protected <T> List<T> selectList(Class<T> clazz, List<String> columns, boolean replica, DBWhere... wheres) throws Exception {
         List<T> retList = new ArrayList<>();
-        String sql = makeSelectSql(clazz, columns, wheres);
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+        SqlTemplate tpl = makeSelectSql(clazz, columns, wheres);
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        try (Connection conn = getConnection(replica); PreparedStatement stmt = conn.prepareStatement(sql)) {
             try {
-                if (wheres != null && wheres.length > 0) {
-                    int index = 1;
-                    for (DBWhere where : wheres) {
-                        if (where.getCond() == WhereCond.LIMIT || where.getCond() == WhereCond.ORDER_ASC || where.getCond() == WhereCond.ORDER_DESC) {
-                            break;
-                        }
-                        if (where.getCond() == WhereCond.IN) {
-                            List<?> values = (List<?>) where.getValue();
-                            for (int i = 0; i < values.size(); ++i) {
-                                stmt.setObject(index++, values.get(i));
-                            }
-                        } else {
-                            stmt.setObject(index++, where.getValue());
-                        }
-                    }
-                }
+                tpl.bindWheres(stmt, 1, wheres);
 
                 ResultSet rs = stmt.executeQuery();
                 if (rs != null) {
-                    ResultSetMetaData rsmd = rs.getMetaData();
+                    RowMapper<T> mapper = getRowMapper(tpl, clazz, columns);
                     while (rs.next()) {
-                        T bean = clazz.getDeclaredConstructor().newInstance();
-                        for (int i = 1; i <= rsmd.getColumnCount(); i++) {
-                            String columnName = rsmd.getColumnName(i);
-                            Object columnValue = rs.getObject(i);
-                            int type = rsmd.getColumnType(i);
-                            if (type == 93 && columnValue != null) {
-                                Calendar cl = Calendar.getInstance();
-                                cl.setTimeInMillis(rs.getTimestamp(i).getTime());
-                                columnValue = cl.getTime();
-                            }
-                            Map<String, Field> fields = dbUtil.getFields(clazz);
-                            for (Field field : fields.values()) {
-                                if (columnName.equalsIgnoreCase(Util.getColName(field)) && columnValue != null) {
-                                    Column ann = field.getAnnotation(Column.class);
-                                    BeanUtils.setProperty(bean, field.getName(), ann.isJson() ? Util.fromJson(columnValue.toString(), field.getGenericType()) : columnValue);
-                                    break;
-                                }
-                            }
-                        }
-                        retList.add(bean);
+                        retList.add(mapper.map(rs));
                     }
                 }
             } catch (Exception e) {
@@ -133,11 +258,221 @@ final class DBService {
         return retList;
     }
 
-    private String makeSelectSql(Class<?> clazz, List<String> columns, DBWhere... wheres) throws Exception {
+    /**
+     * 流式查询，逐行处理结果集，不会把所有数据加载到内存中
+     *
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口
+     * @param columns  只查询指定列
+     * @param replica  是否可以从从库读取
+     * @param wheres   查询条件
+     * @return 处理的数据行数
+     */
+    protected <T> int selectForEach(Class<T> clazz, Consumer<? super T> consumer, List<String> columns, boolean replica, DBWhere... wheres) throws Exception {
+        SqlTemplate tpl = makeSelectSql(clazz, columns, wheres);
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        int rows = 0;
+        try (Connection conn = getConnection(replica); PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(streamFetchSize);
+            tpl.bindWheres(stmt, 1, wheres);
+            try (ResultSet rs = stmt.executeQuery()) {
+                RowMapper<T> mapper = getRowMapper(tpl, clazz, columns);
+                while (rs.next()) {
+                    consumer.accept(mapper.map(rs));
+                    ++rows;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private <T> RowMapper<T> getRowMapper(SqlTemplate tpl, Class<T> clazz, List<String> columns) {
+        RowMapper<T> mapper = tpl.getRowMapper();
+        if (mapper == null) {
+            mapper = dbUtil.getEntityMeta(clazz).getRowMapper(columns);
+            tpl.setRowMapper(mapper);
+        }
+        return mapper;
+    }
+
+    /**
+     * 按主键顺序分页查询（keyset分页），每一页的查询代价与页的深度无关
+     *
+     * @param clazz    对象class
+     * @param after    上一页的最后一条数据，null表示查询第一页
+     * @param pageSize 每页数据条数
+     * @param columns  只查询指定列（必须包含主键）
+     * @param replica  是否可以从从库读取
+     * @param wheres   查询条件（不能包含排序和LIMIT）
+     * @return
+     */
+    protected <T> List<T> selectPage(Class<T> clazz, T after, int pageSize, List<String> columns, boolean replica, DBWhere... wheres) throws Exception {
+        EntityMeta<T> meta = dbUtil.getEntityMeta(clazz);
+        SqlTemplate tpl = makePageSql(clazz, columns, after != null, pageSize, wheres);
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        List<T> retList = new ArrayList<>(pageSize);
+        try (Connection conn = getConnection(replica); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int index = tpl.bindWheres(stmt, 1, wheres);
+            if (after != null) {
+                meta.bindKeyset(stmt, index, after);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                RowMapper<T> mapper = getRowMapper(tpl, clazz, columns);
+                while (rs.next()) {
+                    retList.add(mapper.map(rs));
+                }
+            }
+        }
+        return retList;
+    }
+
+    /**
+     * 按一组主键查询，单主键时为 pk IN (?, ...)，联合主键时为 (pk1, pk2) IN ((?, ?), ...)
+     *
+     * @param clazz 对象class
+     * @param keys  {@link EntityMeta#primaryKeyOf(Object)}形式的主键列表
+     * @return 查询到的数据（顺序不确定）
+     */
+    protected <T> List<T> selectByKeys(Class<T> clazz, List<?> keys) throws Exception {
+        List<T> retList = new ArrayList<>(keys.size());
+        if (keys.isEmpty()) {
+            return retList;
+        }
+        SqlTemplate tpl = makeSelectByKeysSql(clazz, keys.size());
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        boolean composite = dbUtil.getEntityMeta(clazz).getPrimaryKeys().length > 1;
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int index = 1;
+            for (Object key : keys) {
+                if (composite) {
+                    for (Object v : (List<?>) key) {
+                        stmt.setObject(index++, v);
+                    }
+                } else {
+                    stmt.setObject(index++, key);
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                RowMapper<T> mapper = getRowMapper(tpl, clazz, null);
+                while (rs.next()) {
+                    retList.add(mapper.map(rs));
+                }
+            }
+        }
+        return retList;
+    }
+
+    private SqlTemplate makeSelectByKeysSql(Class<?> clazz, int size) {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.SELECT_BY_KEYS, clazz, size, null);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
         String tableName = dbUtil.getTableName(clazz);
+        ColumnMeta[] pks = dbUtil.getEntityMeta(clazz).getPrimaryKeys();
+        if (pks.length == 0) {
+            throw new IllegalArgumentException("error:select by keys needs primary key @table " + tableName);
+        }
+        StringBuilder sb = new StringBuilder(" WHERE ");
+        StringBuilder tuple = new StringBuilder();
+        if (pks.length == 1) {
+            sb.append(pks[0].getName());
+            tuple.append("?");
+        } else {
+            sb.append("(");
+            tuple.append("(");
+            for (int i = 0; i < pks.length; ++i) {
+                sb.append(i > 0 ? ", " : "").append(pks[i].getName());
+                tuple.append(i > 0 ? ", ?" : "?");
+            }
+            sb.append(")");
+            tuple.append(")");
+        }
+        sb.append(" IN (");
+        for (int i = 0; i < size; ++i) {
+            sb.append(i > 0 ? ", " : "").append(tuple);
+        }
+        sb.append(")");
+        return cacheSqlTemplate(key, new SqlTemplate("SELECT " + dbUtil.getEntityMeta(clazz).getSelectList() + " FROM ", tableName, sb.toString()));
+    }
+
+    private <T> SqlTemplate makePageSql(Class<T> clazz, List<String> columns, boolean hasAfter, int pageSize, DBWhere... wheres) throws Exception {
+        List<Object> extra = Arrays.asList(columns == null || columns.isEmpty() ? null : new ArrayList<>(columns), hasAfter, pageSize);
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.SELECT_PAGE, clazz, extra, wheres);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        String tableName = dbUtil.getTableName(clazz);
+        ColumnMeta[] pks = dbUtil.getEntityMeta(clazz).getPrimaryKeys();
+        if (pks.length == 0) {
+            throw new IllegalArgumentException("error:keyset paging needs primary key @table " + tableName);
+        }
+        if (wheres != null) {
+            for (DBWhere where : wheres) {
+                switch (where.getCond()) {
+                    case ORDER_ASC:
+                    case ORDER_DESC:
+                    case LIMIT:
+                        throw new IllegalArgumentException("error:keyset paging can not use " + where.getCond() + " @table " + tableName);
+                    default:
+                        break;
+                }
+            }
+        }
+        if (columns != null && !columns.isEmpty()) {
+            for (ColumnMeta pk : pks) {
+                if (!columns.contains(pk.getField().getName()) && !columns.contains(pk.getName())) {
+                    throw new IllegalArgumentException("error:keyset paging columns must contain primary key " + pk.getName() + " @table " + tableName);
+                }
+            }
+        }
+        DBWhere[] sorted = sortWheres(wheres);
+        String head = makeSelectHead(clazz, columns);
+        StringBuilder sb = new StringBuilder();
+        String where = makeWhere(clazz, sorted);
+        sb.append(where.isEmpty() ? " WHERE 1 = 1 " : where);
+        if (hasAfter) {
+            // (pk1 > ?) OR (pk1 = ? AND pk2 > ?) OR ...
+            sb.append(" AND (");
+            for (int i = 0; i < pks.length; ++i) {
+                if (i > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append("(");
+                for (int j = 0; j < i; ++j) {
+                    sb.append(pks[j].getName()).append(" = ? AND ");
+                }
+                sb.append(pks[i].getName()).append(" > ?)");
+            }
+            sb.append(")");
+        }
+        sb.append(" ORDER BY ");
+        for (int i = 0; i < pks.length; ++i) {
+            sb.append(i > 0 ? ", " : "").append(pks[i].getName()).append(" ASC");
+        }
+        sb.append(" LIMIT ").append(pageSize);
+        return cacheSqlTemplate(key, new SqlTemplate(head, tableName, sb.toString(), sorted, wheres));
+    }
+
+    private SqlTemplate makeSelectSql(Class<?> clazz, List<String> columns, DBWhere... wheres) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.SELECT, clazz, columns == null || columns.isEmpty() ? null : columns, wheres);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        DBWhere[] sorted = sortWheres(wheres);
+        String head = makeSelectHead(clazz, columns);
+        if (columns != null && !columns.isEmpty()) {
+            key = new SqlTemplate.Key(SqlTemplate.SELECT, clazz, new ArrayList<>(columns), wheres);
+        }
+        return cacheSqlTemplate(key, new SqlTemplate(head, dbUtil.getTableName(clazz), makeWhere(clazz, sorted), sorted, wheres));
+    }
+
+    private String makeSelectHead(Class<?> clazz, List<String> columns) throws Exception {
         StringBuilder sb = new StringBuilder();
         if (columns == null || columns.isEmpty()) {
-            sb.append("SELECT * FROM ");
+            sb.append("SELECT ").append(dbUtil.getEntityMeta(clazz).getSelectList()).append(" FROM ");
         } else {
             Map<String, Field> fields = dbUtil.getFields(clazz);
             sb.append("SELECT ");
@@ -154,36 +489,39 @@ final class DBService {
             }
             sb.append(" FROM ");
         }
-        sb.append(tableName).append(makeWhere(clazz, wheres));
         return sb.toString();
     }
 
+    private SqlTemplate cacheSqlTemplate(SqlTemplate.Key key, SqlTemplate tpl) {
+        if (sqlTemplates.size() < MAX_SQL_TEMPLATES) {
+            SqlTemplate old = sqlTemplates.putIfAbsent(key, tpl);
+            if (old != null) {
+                return old;
+            }
+        }
+        return tpl;
+    }
+
+    private static DBWhere[] sortWheres(DBWhere[] wheres) {
+        if (wheres == null || wheres.length == 0) {
+            return wheres;
+        }
+        DBWhere[] sorted = wheres.clone();
+        Arrays.sort(sorted, DBWhere.comparator);
+        return sorted;
+    }
+
     /**
      * 查询返回数量
      *
      * @return
      */
-    protected <T> int count(Class<T> clazz, DBWhere... wheres) throws Exception {
-        Arrays.sort(wheres, DBWhere.comparator);
-        String sql = makeCountSql(clazz, wheres);
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
+    protected <T> int count(Class<T> clazz, boolean replica, DBWhere... wheres) throws Exception {
+        SqlTemplate tpl = makeCountSql(clazz, wheres);
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        try (Connection conn = getConnection(replica); PreparedStatement stmt = conn.prepareStatement(sql);) {
             try {
-                if (wheres != null && wheres.length > 0) {
-                    int index = 1;
-                    for (DBWhere where : wheres) {
-                        if (where.getCond() == WhereCond.LIMIT || where.getCond() == WhereCond.ORDER_ASC || where.getCond() == WhereCond.ORDER_DESC) {
-                            break;
-                        }
-                        if (where.getCond() == WhereCond.IN) {
-                            List<?> values = (List<?>) where.getValue();
-                            for (int i = 0; i < values.size(); ++i) {
-                                stmt.setObject(index++, values.get(i));
-                            }
-                        } else {
-                            stmt.setObject(index++, where.getValue());
-                        }
-                    }
-                }
+                tpl.bindWheres(stmt, 1, wheres);
 
                 ResultSet rs = stmt.executeQuery();
                 if (rs != null) {
@@ -196,12 +534,14 @@ final class DBService {
         return 0;
     }
 
-    private String makeCountSql(Class<?> clazz, DBWhere... wheres) throws Exception {
-        String tableName = dbUtil.getTableName(clazz);
-        StringBuilder sb = new StringBuilder();
-        sb.append("SELECT COUNT(*) FROM ").append(tableName);
-        sb.append(makeWhere(clazz, wheres));
-        return sb.toString();
+    private SqlTemplate makeCountSql(Class<?> clazz, DBWhere... wheres) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.COUNT, clazz, null, wheres);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        DBWhere[] sorted = sortWheres(wheres);
+        return cacheSqlTemplate(key, new SqlTemplate("SELECT COUNT(*) FROM ", dbUtil.getTableName(clazz), makeWhere(clazz, sorted), sorted, wheres));
     }
 
     private String makeWhere(Class<?> clazz, DBWhere... wheres) {
@@ -264,26 +604,17 @@ final class DBService {
      * 同步删除数据
      */
     protected <T> boolean delete(Class<T> clazz, DBWhere... wheres) throws Exception {
-        Arrays.sort(wheres, DBWhere.comparator);
-        String sql = makeDeleteSql(clazz, wheres);
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
+        try (Connection conn = getConnection()) {
+            return delete(conn, clazz, wheres);
+        }
+    }
+
+    private <T> boolean delete(Connection conn, Class<T> clazz, DBWhere... wheres) throws Exception {
+        SqlTemplate tpl = makeDeleteSql(clazz, wheres);
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        try (PreparedStatement stmt = conn.prepareStatement(sql);) {
             try {
-                if (wheres != null && wheres.length > 0) {
-                    int index = 1;
-                    for (DBWhere where : wheres) {
-                        if (where.getCond() == WhereCond.LIMIT || where.getCond() == WhereCond.ORDER_ASC || where.getCond() == WhereCond.ORDER_DESC) {
-                            break;
-                        }
-                        if (where.getCond() == WhereCond.IN) {
-                            List<?> values = (List<?>) where.getValue();
-                            for (int i = 0; i < values.size(); ++i) {
-                                stmt.setObject(index++, values.get(i));
-                            }
-                        } else {
-                            stmt.setObject(index++, where.getValue());
-                        }
-                    }
-                }
+                tpl.bindWheres(stmt, 1, wheres);
                 return stmt.executeUpdate() > 0;
             } catch (Exception e) {
                 throw e;
@@ -295,16 +626,16 @@ final class DBService {
      * 同步删除一条数据
      */
     protected <T> boolean delete(T t) throws Exception {
-        String sql = makeDeleteSql(t.getClass());
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
+        try (Connection conn = getConnection()) {
+            return delete(conn, t);
+        }
+    }
+
+    private <T> boolean delete(Connection conn, T t) throws Exception {
+        String sql = makeDeleteSql(t.getClass()).getSql(dbUtil.getTableName(t.getClass()));
+        try (PreparedStatement stmt = conn.prepareStatement(sql);) {
             try {
-                Iterator<Field> primaryKeyIter = dbUtil.getPrimaryKeys(t.getClass()).iterator();
-                int index = 1;
-                while (primaryKeyIter.hasNext()) {
-                    Field f = primaryKeyIter.next();
-                    Column ann = f.getAnnotation(Column.class);
-                    stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(t)) : f.get(t));
-                }
+                dbUtil.getEntityMeta(t.getClass()).bindPrimaryKeys(stmt, 1, t);
                 return stmt.executeUpdate() > 0;
             } catch (Exception e) {
                 throw e;
@@ -319,18 +650,13 @@ final class DBService {
         if (objs.isEmpty()) {
             return new int[]{};
         }
-        String sql = makeDeleteSql(objs.get(0).getClass());
+        String sql = makeDeleteSql(objs.get(0).getClass()).getSql(dbUtil.getTableName(objs.get(0).getClass()));
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
             try {
                 conn.setAutoCommit(false);
+                EntityMeta<?> meta = dbUtil.getEntityMeta(objs.get(0).getClass());
                 for (T o : objs) {
-                    Iterator<Field> primaryKeyIter = dbUtil.getPrimaryKeys(o.getClass()).iterator();
-                    int index = 1;
-                    while (primaryKeyIter.hasNext()) {
-                        Field f = primaryKeyIter.next();
-                        Column ann = f.getAnnotation(Column.class);
-                        stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(o)) : f.get(o));
-                    }
+                    meta.bindPrimaryKeys(stmt, 1, o);
                     stmt.addBatch();
                 }
                 int[] ret = stmt.executeBatch();
@@ -345,20 +671,23 @@ final class DBService {
         }
     }
 
-    private <T> String makeDeleteSql(Class<T> clazz, DBWhere... wheres) throws Exception {
-        String tableName = dbUtil.getTableName(clazz);
-        StringBuilder sb = new StringBuilder();
-        sb.append("DELETE FROM ").append(tableName);
-        sb.append(makeWhere(clazz, wheres));
-        return sb.toString();
+    private <T> SqlTemplate makeDeleteSql(Class<T> clazz, DBWhere... wheres) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.DELETE_WHERE, clazz, null, wheres);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        DBWhere[] sorted = sortWheres(wheres);
+        return cacheSqlTemplate(key, new SqlTemplate("DELETE FROM ", dbUtil.getTableName(clazz), makeWhere(clazz, sorted), sorted, wheres));
     }
 
-    private <T> String makeDeleteSql(Class<T> clazz) throws Exception {
-        String tableName = dbUtil.getTableName(clazz);
-        StringBuilder sb = new StringBuilder();
-        sb.append("DELETE FROM ").append(tableName);
-        sb.append(makePrimaryWhereCondition(clazz));
-        return sb.toString();
+    private <T> SqlTemplate makeDeleteSql(Class<T> clazz) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.DELETE, clazz);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        return cacheSqlTemplate(key, new SqlTemplate("DELETE FROM ", dbUtil.getTableName(clazz), makePrimaryWhereCondition(clazz)));
     }
 
     /**
@@ -396,27 +725,18 @@ final class DBService {
      * @throws Exception
      */
     protected <T> int update(Class<T> clazz, String name, Object value, DBWhere... wheres) throws Exception {
-        Arrays.sort(wheres, DBWhere.comparator);
-        String sql = makeUpdateSql(clazz, name, wheres);
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
+        try (Connection conn = getConnection()) {
+            return update(conn, clazz, name, value, wheres);
+        }
+    }
+
+    private <T> int update(Connection conn, Class<T> clazz, String name, Object value, DBWhere... wheres) throws Exception {
+        SqlTemplate tpl = makeUpdateSql(clazz, name, wheres);
+        String sql = tpl.getSql(dbUtil.getTableName(clazz));
+        try (PreparedStatement stmt = conn.prepareStatement(sql);) {
             try {
-                int index = 1;
-                stmt.setObject(index++, value);
-                if (wheres != null && wheres.length > 0) {
-                    for (DBWhere where : wheres) {
-                        if (where.getCond() == WhereCond.LIMIT || where.getCond() == WhereCond.ORDER_ASC || where.getCond() == WhereCond.ORDER_DESC) {
-                            break;
-                        }
-                        if (where.getCond() == WhereCond.IN) {
-                            List<?> values = (List<?>) where.getValue();
-                            for (int i = 0; i < values.size(); ++i) {
-                                stmt.setObject(index++, values.get(i));
-                            }
-                        } else {
-                            stmt.setObject(index++, where.getValue());
-                        }
-                    }
-                }
+                stmt.setObject(1, value);
+                tpl.bindWheres(stmt, 2, wheres);
                 return stmt.executeUpdate();
             } catch (Exception e) {
                 throw e;
@@ -428,25 +748,20 @@ final class DBService {
      * 同步更新数据
      *
      * @param t
+     * @param columns 更新的列序号，null表示所有列
      * @throws Exception
      */
-    protected <T> int update(T t) throws Exception {
-        String sql = makeUpdateSql(t.getClass());
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
-            try {
-                Map<String, Field> fieldMap = dbUtil.getFields(t.getClass());
-                int index = 1;
-                for (Field f : fieldMap.values()) {
-                    Column ann = f.getAnnotation(Column.class);
-                    stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(t)) : f.get(t));
-                }
+    protected <T> int update(T t, BitSet columns) throws Exception {
+        try (Connection conn = getConnection()) {
+            return update(conn, t, columns);
+        }
+    }
 
-                Iterator<Field> primaryKeyIter = dbUtil.getPrimaryKeys(t.getClass()).iterator();
-                while (primaryKeyIter.hasNext()) {
-                    Field f = primaryKeyIter.next();
-                    Column ann = f.getAnnotation(Column.class);
-                    stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(t)) : f.get(t));
-                }
+    private <T> int update(Connection conn, T t, BitSet columns) throws Exception {
+        String sql = makeUpdateSql(t.getClass(), columns).getSql(dbUtil.getTableName(t.getClass()));
+        try (PreparedStatement stmt = conn.prepareStatement(sql);) {
+            try {
+                dbUtil.getEntityMeta(t.getClass()).bindUpdate(stmt, t, columns);
                 return stmt.executeUpdate();
             } catch (Exception e) {
                 throw e;
@@ -455,34 +770,40 @@ final class DBService {
     }
 
     /**
-     * 批量更新
+     * 批量更新，按更新的列分组，每组一条语句批量执行（同一个事务）
+     *
+     * @param objs    待更新数据
+     * @param columns 每条数据更新的列序号，null（或者元素为null）表示所有列
      */
-    protected <T> int[] batchUpdate(List<T> objs) throws Exception {
+    protected <T> int[] batchUpdate(List<T> objs, List<BitSet> columns) throws Exception {
         if (objs.isEmpty()) {
             return new int[]{};
         }
 
-        String sql = makeUpdateSql(objs.get(0).getClass());
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
+        Class<?> clazz = objs.get(0).getClass();
+        Map<BitSet, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < objs.size(); ++i) {
+            groups.computeIfAbsent(columns == null ? null : columns.get(i), k -> new ArrayList<>()).add(i);
+        }
+        String tableName = dbUtil.getTableName(clazz);
+        EntityMeta<?> meta = dbUtil.getEntityMeta(clazz);
+        int[] ret = new int[objs.size()];
+        try (Connection conn = getConnection()) {
             try {
                 conn.setAutoCommit(false);
-                for (T o : objs) {
-                    Map<String, Field> fieldMap = dbUtil.getFields(o.getClass());
-                    int index = 1;
-                    for (Field f : fieldMap.values()) {
-                        Column ann = f.getAnnotation(Column.class);
-                        stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(o)) : f.get(o));
-                    }
-
-                    Iterator<Field> primaryKeyIter = dbUtil.getPrimaryKeys(o.getClass()).iterator();
-                    while (primaryKeyIter.hasNext()) {
-                        Field f = primaryKeyIter.next();
-                        Column ann = f.getAnnotation(Column.class);
-                        stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(o)) : f.get(o));
+                for (Map.Entry<BitSet, List<Integer>> group : groups.entrySet()) {
+                    String sql = makeUpdateSql(clazz, group.getKey()).getSql(tableName);
+                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                        for (int i : group.getValue()) {
+                            meta.bindUpdate(stmt, objs.get(i), group.getKey());
+                            stmt.addBatch();
+                        }
+                        int[] r = stmt.executeBatch();
+                        for (int j = 0; j < r.length; ++j) {
+                            ret[group.getValue().get(j)] = r[j];
+                        }
                     }
-                    stmt.addBatch();
                 }
-                int[] ret = stmt.executeBatch();
                 conn.commit();
                 return ret;
             } catch (Exception e) {
@@ -494,20 +815,57 @@ final class DBService {
         }
     }
 
-    private <T> String makeUpdateSql(Class<T> clazz, String name, DBWhere... wheres) throws Exception {
-        String tableName = dbUtil.getTableName(clazz);
+    private <T> SqlTemplate makeUpdateSql(Class<T> clazz, String name, DBWhere... wheres) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.UPDATE_WHERE, clazz, name, wheres);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        DBWhere[] sorted = sortWheres(wheres);
         StringBuilder sb = new StringBuilder();
-        sb.append("UPDATE ").append(tableName).append(" SET ");
+        sb.append(" SET ");
         Field f = dbUtil.getFields(clazz).get(name);
         sb.append(Util.getColName(f)).append(" = ? ");
-        sb.append(makeWhere(clazz, wheres));
-        return sb.toString();
+        sb.append(makeWhere(clazz, sorted));
+        return cacheSqlTemplate(key, new SqlTemplate("UPDATE ", dbUtil.getTableName(clazz), sb.toString(), sorted, wheres));
     }
 
-    private <T> String makeUpdateSql(Class<T> clazz) throws Exception {
-        String tableName = dbUtil.getTableName(clazz);
+    /**
+     * 只更新部分列的update语句
+     *
+     * @param columns 更新的列序号，null表示所有列
+     */
+    private <T> SqlTemplate makeUpdateSql(Class<T> clazz, BitSet columns) throws Exception {
+        if (columns == null) {
+            return makeUpdateSql(clazz);
+        }
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.UPDATE, clazz, columns, null);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        ColumnMeta[] metas = dbUtil.getEntityMeta(clazz).getColumns();
         StringBuilder sb = new StringBuilder();
-        sb.append("UPDATE ").append(tableName).append(" SET ");
+        sb.append(" SET ");
+        String separator = "";
+        for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+            sb.append(separator);
+            sb.append(metas[i].getName()).append(" = ?");
+            separator = ",";
+        }
+        sb.append(makePrimaryWhereCondition(clazz));
+        key = new SqlTemplate.Key(SqlTemplate.UPDATE, clazz, columns.clone(), null);
+        return cacheSqlTemplate(key, new SqlTemplate("UPDATE ", dbUtil.getTableName(clazz), sb.toString()));
+    }
+
+    private <T> SqlTemplate makeUpdateSql(Class<T> clazz) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.UPDATE, clazz);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(" SET ");
         Map<String, Field> fieldMap = dbUtil.getFields(clazz);
         String separator = "";
         for (Field f : fieldMap.values()) {
@@ -517,7 +875,7 @@ final class DBService {
         }
 
         sb.append(makePrimaryWhereCondition(clazz));
-        return sb.toString();
+        return cacheSqlTemplate(key, new SqlTemplate("UPDATE ", dbUtil.getTableName(clazz), sb.toString()));
     }
 
     /**
@@ -526,25 +884,22 @@ final class DBService {
      * @throws Exception
      */
     protected <T> boolean insertOrReplace(T t, boolean replace) throws Exception {
-        String sql = makeInsertOrReplaceSql(t.getClass(), replace);
-        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);) {
+        try (Connection conn = getConnection()) {
+            return insertOrReplace(conn, t, replace);
+        }
+    }
+
+    private <T> boolean insertOrReplace(Connection conn, T t, boolean replace) throws Exception {
+        String sql = makeInsertOrReplaceSql(t.getClass(), replace).getSql(dbUtil.getTableName(t.getClass()));
+        try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);) {
             try {
-                Map<String, Field> fieldMap = dbUtil.getFields(t.getClass());
-                int index = 1;
-                Field autoIncrField = null;
-                for (Field f : fieldMap.values()) {
-                    Column ann = f.getAnnotation(Column.class);
-                    if (ann.autoIncrement()) {
-                        autoIncrField = f;
-                        continue;
-                    }
-                    stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(t)) : f.get(t));
-                }
+                EntityMeta<?> meta = dbUtil.getEntityMeta(t.getClass());
+                meta.bindInsert(stmt, t);
                 boolean result = stmt.executeUpdate() > 0;
-                if (autoIncrField != null) {
+                if (meta.getAutoIncrementColumn() != null) {
                     ResultSet rs = stmt.getGeneratedKeys();
                     if (rs.next()) {
-                        BeanUtils.copyProperty(t, autoIncrField.getName(), rs.getObject(1));
+                        meta.readGeneratedKey(rs, t);
                     }
                 }
                 return result;
@@ -562,34 +917,25 @@ final class DBService {
             return new int[]{};
         }
 
-        String sql = makeInsertOrReplaceSql(objs.get(0).getClass(), replace);
+        String sql = makeInsertOrReplaceSql(objs.get(0).getClass(), replace).getSql(dbUtil.getTableName(objs.get(0).getClass()));
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);) {
             try {
                 conn.setAutoCommit(false);
-                Field autoIncrField = null;
+                EntityMeta<?> meta = dbUtil.getEntityMeta(objs.get(0).getClass());
                 for (T o : objs) {
-                    Map<String, Field> fieldMap = dbUtil.getFields(o.getClass());
-                    int index = 1;
-                    for (Field f : fieldMap.values()) {
-                        Column ann = f.getAnnotation(Column.class);
-                        if (ann.autoIncrement()) {
-                            autoIncrField = f;
-                            continue;
-                        }
-                        stmt.setObject(index++, ann.isJson() ? Util.toJson(f.get(o)) : f.get(o));
-                    }
+                    meta.bindInsert(stmt, o);
                     stmt.addBatch();
                 }
 
                 int[] ret = stmt.executeBatch();
                 conn.commit();
-                if (autoIncrField != null) {
+                if (meta.getAutoIncrementColumn() != null) {
                     ResultSet rs = stmt.getGeneratedKeys();
                     for (T o : objs) {
                         if (!rs.next()) {
                             break;
                         }
-                        BeanUtils.copyProperty(o, autoIncrField.getName(), rs.getObject(1));
+                        meta.readGeneratedKey(rs, o);
                     }
                 }
                 return ret;
@@ -602,14 +948,173 @@ final class DBService {
         }
     }
 
-    private <T> String makeInsertOrReplaceSql(Class<T> clazz, boolean replace) throws Exception {
+    /**
+     * 用LOAD DATA LOCAL INFILE批量导入，数据从迭代器中逐行转换后直接发送，不写临时文件；
+     * 需要连接开启allowLoadLocalInfile（db.bulkLoad.localInfile）并且服务器开启local_infile，
+     * 不支持时（还没有读取任何数据）改为分段批量REPLACE；两种方式都是主键或唯一索引冲突时替换已有数据
+     *
+     * @param clazz 表映射的class
+     * @param rows  数据
+     * @return 导入的行数
+     * @throws Exception
+     */
+    protected <T> long bulkLoad(Class<T> clazz, Iterator<? extends T> rows) throws Exception {
+        EntityMeta<T> meta = dbUtil.getEntityMeta(clazz);
         String tableName = dbUtil.getTableName(clazz);
+        BulkLoadInputStream in = new BulkLoadInputStream(meta.getInsertColumns(), rows);
+        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.unwrap(JdbcStatement.class).setLocalInfileInputStream(in);
+            return stmt.executeLargeUpdate(makeLoadDataSql(tableName, meta));
+        } catch (SQLException e) {
+            if (in.getRowCount() > 0 || !isLocalInfileDisabled(e)) {
+                throw e;
+            }
+            logger.warn("[DBService]: load data local infile {} unavailable, fallback to batch insert, {}", tableName, e.toString());
+        }
+        int chunkSize = batchChunkSize > 0 ? batchChunkSize : 1000;
+        long count = 0;
+        List<T> chunk = new ArrayList<>(chunkSize);
+        while (rows.hasNext()) {
+            chunk.add(rows.next());
+            if (chunk.size() == chunkSize || !rows.hasNext()) {
+                for (int r : batchInsertOrReplace(chunk, true)) {
+                    count += r == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, r);
+                }
+                chunk.clear();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * LOAD DATA LOCAL INFILE不可用：服务器没有开启local_infile（1148、3948），或者连接没有开启allowLoadLocalInfile
+     */
+    private static boolean isLocalInfileDisabled(SQLException e) {
+        int code = e.getErrorCode();
+        return code == 1148 || code == 3948 || (e.getMessage() != null && e.getMessage().contains("allowLoadLocalInfile"));
+    }
+
+    private static String makeLoadDataSql(String tableName, EntityMeta<?> meta) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("LOAD DATA LOCAL INFILE 'edata.tsv' REPLACE INTO TABLE ").append(tableName);
+        sb.append(" CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (");
+        String separator = "";
+        for (ColumnMeta column : meta.getInsertColumns()) {
+            sb.append(separator).append(column.getName());
+            separator = ", ";
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * 插入或更新（INSERT ... ON DUPLICATE KEY UPDATE），主键或唯一索引冲突时只更新指定的列，不会像REPLACE一样先删除再插入
+     *
+     * @param columns 冲突时更新的列序号，null表示所有非主键列
+     * @return 执行成功返回true（包括数据已存在并且没有变化）
+     * @throws Exception
+     */
+    protected <T> boolean upsert(T t, BitSet columns) throws Exception {
+        try (Connection conn = getConnection()) {
+            return upsert(conn, t, columns);
+        }
+    }
+
+    private <T> boolean upsert(Connection conn, T t, BitSet columns) throws Exception {
+        String sql = makeUpsertSql(t.getClass(), columns).getSql(dbUtil.getTableName(t.getClass()));
+        try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);) {
+            EntityMeta<?> meta = dbUtil.getEntityMeta(t.getClass());
+            meta.bindInsert(stmt, t);
+            // 1表示插入，2表示更新，0表示已存在并且没有变化
+            int rows = stmt.executeUpdate();
+            if (rows == 1 && meta.getAutoIncrementColumn() != null) {
+                ResultSet rs = stmt.getGeneratedKeys();
+                if (rs.next()) {
+                    meta.readGeneratedKey(rs, t);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 批量插入或更新（同一个事务），不读取自增主键
+     *
+     * @param columns 冲突时更新的列序号，null表示所有非主键列
+     * @return 每条数据影响的行数：1表示插入，2表示更新，0表示已存在并且没有变化
+     * @throws Exception
+     */
+    protected <T> int[] batchUpsert(List<T> objs, BitSet columns) throws Exception {
+        if (objs.isEmpty()) {
+            return new int[]{};
+        }
+
+        String sql = makeUpsertSql(objs.get(0).getClass(), columns).getSql(dbUtil.getTableName(objs.get(0).getClass()));
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql);) {
+            try {
+                conn.setAutoCommit(false);
+                EntityMeta<?> meta = dbUtil.getEntityMeta(objs.get(0).getClass());
+                for (T o : objs) {
+                    meta.bindInsert(stmt, o);
+                    stmt.addBatch();
+                }
+                int[] ret = stmt.executeBatch();
+                conn.commit();
+                return ret;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private <T> SqlTemplate makeUpsertSql(Class<T> clazz, BitSet columns) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(SqlTemplate.UPSERT, clazz, columns, null);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
+        EntityMeta<T> meta = dbUtil.getEntityMeta(clazz);
+        Set<ColumnMeta> pks = new HashSet<>(Arrays.asList(meta.getPrimaryKeys()));
+        StringBuilder sb = new StringBuilder();
+        StringBuilder sbValues = new StringBuilder();
+        StringBuilder sbUpdate = new StringBuilder();
+        sb.append(" (");
+        sbValues.append(") VALUES (");
+        String separator = "";
+        String updateSeparator = "";
+        for (ColumnMeta column : meta.getInsertColumns()) {
+            sb.append(separator);
+            sb.append(column.getName());
+            sbValues.append(separator);
+            sbValues.append("?");
+            separator = ",";
+            if (columns == null ? !pks.contains(column) : columns.get(column.getIndex())) {
+                sbUpdate.append(updateSeparator);
+                sbUpdate.append(column.getName()).append(" = VALUES(").append(column.getName()).append(")");
+                updateSeparator = ",";
+            }
+        }
+        if (sbUpdate.length() == 0) {
+            // 只有主键列，冲突时不需要更新
+            String name = meta.getInsertColumns()[0].getName();
+            sbUpdate.append(name).append(" = ").append(name);
+        }
+        sb.append(sbValues).append(") ON DUPLICATE KEY UPDATE ").append(sbUpdate);
+        key = new SqlTemplate.Key(SqlTemplate.UPSERT, clazz, columns == null ? null : columns.clone(), null);
+        return cacheSqlTemplate(key, new SqlTemplate("INSERT INTO ", dbUtil.getTableName(clazz), sb.toString()));
+    }
+
+    private <T> SqlTemplate makeInsertOrReplaceSql(Class<T> clazz, boolean replace) throws Exception {
+        SqlTemplate.Key key = new SqlTemplate.Key(replace ? SqlTemplate.REPLACE : SqlTemplate.INSERT, clazz);
+        SqlTemplate tpl = sqlTemplates.get(key);
+        if (tpl != null) {
+            return tpl;
+        }
         StringBuilder sb = new StringBuilder();
         StringBuilder sbValues = new StringBuilder();
-        if (replace)
-            sb.append("REPLACE INTO ").append(tableName).append(" (");
-        else
-            sb.append("INSERT INTO ").append(tableName).append(" (");
+        sb.append(" (");
         sbValues.append(") VALUES (");
         Map<String, Field> fieldMap = dbUtil.getFields(clazz);
         String separator = "";
@@ -626,10 +1131,59 @@ final class DBService {
         }
 
         sb.append(sbValues).append(")");
-        return sb.toString();
+        return cacheSqlTemplate(key, new SqlTemplate(replace ? "REPLACE INTO " : "INSERT INTO ", dbUtil.getTableName(clazz), sb.toString()));
     }
 
 
+    /**
+     * 在同一个连接、同一个事务中按顺序执行一组操作，只提交一次，出错时回滚
+     *
+     * @param ops 事务中的操作
+     * @return 每个操作影响的行数（insert/replace/delete/upsert/按条件删除成功时为1）
+     * @throws Exception
+     */
+    protected int[] transaction(List<DBTransaction.Op> ops) throws Exception {
+        int[] ret = new int[ops.size()];
+        try (Connection conn = getConnection()) {
+            try {
+                conn.setAutoCommit(false);
+                for (int i = 0; i < ops.size(); ++i) {
+                    DBTransaction.Op op = ops.get(i);
+                    switch (op.kind) {
+                        case DBTransaction.INSERT:
+                        case DBTransaction.REPLACE:
+                            ret[i] = insertOrReplace(conn, op.bean, op.kind == DBTransaction.REPLACE) ? 1 : 0;
+                            break;
+                        case DBTransaction.UPDATE:
+                            ret[i] = update(conn, op.bean, op.columns);
+                            break;
+                        case DBTransaction.DELETE:
+                            ret[i] = delete(conn, op.bean) ? 1 : 0;
+                            break;
+                        case DBTransaction.UPSERT:
+                            ret[i] = upsert(conn, op.bean, op.columns) ? 1 : 0;
+                            break;
+                        case DBTransaction.UPDATE_WHERE:
+                            ret[i] = update(conn, op.clazz, op.name, op.value, op.wheres);
+                            break;
+                        case DBTransaction.DELETE_WHERE:
+                            ret[i] = delete(conn, op.clazz, op.wheres) ? 1 : 0;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("error:unknown transaction operation " + op.kind);
+                    }
+                }
+                conn.commit();
+                return ret;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
     protected <T> boolean truncate(Class<T> clazz) throws Exception {
         String tableName = dbUtil.getTableName(clazz);
         try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement((isCobar ? "delete from " : "TRUNCATE TABLE ") + tableName);) {
@@ -646,8 +1200,26 @@ final class DBService {
         return dataSource.getConnection();
     }
 
+    /**
+     * 查询使用的连接
+     *
+     * @param replica 是否可以从从库读取，没有可用的从库时使用主库
+     */
+    private Connection getConnection(boolean replica) throws SQLException {
+        ReplicaRouter router = replicaRouter;
+        if (replica && router != null) {
+            Connection conn = router.getConnection();
+            if (conn != null) {
+                return conn;
+            }
+        }
+        return dataSource.getConnection();
+    }
+
     private class DBUtil {
         private Map<String, String> tableNames = new HashMap<>();
+        private Map<Class<?>, EntityMeta<?>> entityMetas = new ConcurrentHashMap<>();
+        private List<Class<?>> tableClasses = new ArrayList<>();
         private Map<Class<?>, Map<String, Field>> fields = new HashMap<>();
         private Map<Class<?>, Set<Field>> primaryKeys = new HashMap<>();
         private IDBProxy dbProxy;
@@ -667,6 +1239,47 @@ final class DBService {
             return tableNames.get(clazz.getName());
         }
 
+        @SuppressWarnings("unchecked")
+        private <T> EntityMeta<T> getEntityMeta(Class<T> clazz) {
+            EntityMeta<T> meta = (EntityMeta<T>) entityMetas.get(clazz);
+            if (meta == null) {
+                try {
+                    meta = new EntityMeta<>(clazz, getFields(clazz).values(), getPrimaryKeys(clazz));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("create entity meta of " + clazz.getName() + " error", e);
+                }
+                EntityMeta<T> old = (EntityMeta<T>) entityMetas.putIfAbsent(clazz, meta);
+                if (old != null) {
+                    meta = old;
+                }
+            }
+            return meta;
+        }
+
+        private <T> void initCache(Class<T> clazz) {
+            EntityMeta<T> meta = getEntityMeta(clazz);
+            TableCache conf = clazz.getAnnotation(TableCache.class);
+            TableRedisCache redisConf = clazz.getAnnotation(TableRedisCache.class);
+            if (conf == null && redisConf == null) {
+                return;
+            }
+            if (meta.getPrimaryKeys().length == 0) {
+                logger.warn("table {} has no primary key, @TableCache ignored!", clazz.getName());
+                return;
+            }
+            if (conf != null) {
+                entityCaches.put(clazz, new EntityCache<>(meta, conf));
+            }
+            if (redisConf != null) {
+                int policy = clazz.getAnnotation(Table.class).policy();
+                if (policy == Table.POLICY_YEAR_MONTH || policy == Table.POLICY_YEAR_MONTH_DAY) {
+                    logger.warn("table {} is split by date, @TableRedisCache ignored!", clazz.getName());
+                    return;
+                }
+                redisCaches.put(clazz, new RedisEntityCache<>(meta, getTableName(clazz), redisConf.expire()));
+            }
+        }
+
         private Set<Field> getPrimaryKeys(Class<?> clazz) {
             return primaryKeys.get(clazz);
         }
@@ -727,12 +1340,14 @@ final class DBService {
             if (clazz.getAnnotation(Table.class) == null) {
                 return false;
             }
+            tableClasses.add(clazz);
             // 创建基本表
             Calendar cal = calHolder.get();
             String tableName = getTableName(clazz, cal);
             tableNames.put(clazz.getName(), tableName);
             createTable(clazz, tableName);
             checkTable(clazz, tableName);
+            initCache(clazz);
 
             Table tna = clazz.getAnnotation(Table.class);
             switch (tna.policy()) {
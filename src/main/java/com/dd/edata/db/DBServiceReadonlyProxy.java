@@ -1,5 +1,6 @@
 package com.dd.edata.db;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -22,6 +23,22 @@ public final class DBServiceReadonlyProxy extends AbstractDBServiceProxy {
         return executors[(executors.length - 1) & idx.getAndIncrement()];
     }
 
+    /**
+     * 只读服务不需要保证同一行的执行顺序
+     */
+    @Override
+    protected ExecutorService getExecutor(Class<?> clazz, Object key) {
+        return getExecutor(clazz);
+    }
+
+    /**
+     * 只读服务的数据由其他进程写入，无法维护缓存的一致性
+     */
+    @Override
+    protected <T> EntityCache<T> getCache(Class<T> clazz) {
+        return null;
+    }
+
     @Override
     public <T> Future<Boolean> deleteAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
         throw new UnsupportedOperationException();
@@ -62,6 +79,26 @@ public final class DBServiceReadonlyProxy extends AbstractDBServiceProxy {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public <T> Future<Boolean> upsertAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t, List<String> columns) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> Future<int[]> upsertBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs, List<String> columns) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<int[]> transactionAsync(Consumer<int[]> callback, Executor callbackExecutor, DBTransaction transaction) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> Future<Long> bulkLoadAsync(Consumer<Long> callback, Executor callbackExecutor, Class<T> clazz, Iterator<? extends T> rows) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public <T> Future<Boolean> truncateAsync(Consumer<Boolean> callback, Executor callbackExecutor, Class<T> clazz) {
         throw new UnsupportedOperationException();
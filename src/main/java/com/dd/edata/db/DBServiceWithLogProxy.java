@@ -1,22 +1,30 @@
 package com.dd.edata.db;
 
-import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.io.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
 
 /**
  * @author wangshupeng
@@ -26,6 +34,33 @@ public final class DBServiceWithLogProxy extends AbstractDBServiceProxy {
     private FileDBLog logFile;
     private File logDir;
     private AtomicLong txid = new AtomicLong(0);
+    private ClassLoader classLoader;
+    /**
+     * 溢出日志（db.lane.overflow=spill），第一次溢出时创建，以及按顺序重新执行的线程
+     */
+    private volatile SpillLog spillLog;
+    private volatile Thread spillThread;
+    /**
+     * 已经转入溢出日志、还没有重新提交的写操作数量，大于0时之后的写操作也转入溢出日志，保持提交顺序
+     */
+    private final AtomicInteger spillBacklog = new AtomicInteger();
+    /**
+     * 事务id -&gt; 转入溢出日志的写操作的结果
+     */
+    private final Map<Long, CompletableFuture<Object>> spilled = new ConcurrentHashMap<>();
+    /**
+     * 事务id -&gt; 重新执行时使用的原来的对象（溢出日志中只记录事务id）
+     */
+    private final Map<Long, Object> spilledReferences = new ConcurrentHashMap<>();
+    /**
+     * 写操作的结果是否在日志刷盘之后才完成（db.log.durableAck），以及事务id -&gt; 日志刷盘的结果
+     */
+    private boolean durableAck;
+    private final Map<Long, CompletableFuture<Void>> durables = new ConcurrentHashMap<>();
+    /**
+     * 从日志恢复时一个批量操作的最大数量（db.log.recoverBatch）
+     */
+    private int recoverBatch = 500;
 
     public DBServiceWithLogProxy(int sid, String logPath) {
         super(sid);
@@ -36,14 +71,28 @@ public final class DBServiceWithLogProxy extends AbstractDBServiceProxy {
         logFile = new FileDBLog(sid, logDir);
     }
 
+    @Override
+    public void init(String pkg, ClassLoader cl, Properties props) {
+        // 从日志恢复之前读取，恢复的写操作也按配置写日志
+        logFile.configure(props);
+        durableAck = Boolean.parseBoolean(props.getProperty("db.log.durableAck", "false"));
+        recoverBatch = Math.max(1, Integer.parseInt(props.getProperty("db.log.recoverBatch", "500")));
+        super.init(pkg, cl, props);
+    }
+
     @Override
     public void init(String pkg, ClassLoader cl, DataSource ds, boolean isCobar) {
         super.init(pkg, cl, ds, isCobar);
+        this.classLoader = cl;
+        logFile.register(dbService.getTableClasses(), cl);
+        // 上次没有重新执行的溢出写操作从数据库日志恢复
+        new File(logDir, "spill." + sid + ".data").delete();
         this.recoverFromLog(cl);
     }
 
     @Override
     public void shutdown() {
+        closeSpill();
         super.shutdown();
         try {
             logFile.close();
@@ -52,265 +101,486 @@ public final class DBServiceWithLogProxy extends AbstractDBServiceProxy {
         }
     }
 
-    private long writeDBLog(byte op, Object t) {
+    @Override
+    protected long writeDBLog(byte op, Object t) {
         long tx = txid.incrementAndGet();
         try {
-            logFile.append(tx, op, t);
+            CompletableFuture<Void> synced = logFile.append(tx, op, t, durableAck);
+            if (synced != null) {
+                durables.put(tx, synced);
+            }
         } catch (Exception e) {
             logger.error("write data {} db log file error!", t, e);
         }
         return tx;
     }
 
-    private void dbSyncSuccess(long tx) {
+    @Override
+    protected void dbSyncSuccess(long tx) {
+        logFile.commit(tx);
+    }
+
+    @Override
+    protected <T> CompletableFuture<T> durable(long tx, CompletableFuture<T> future) {
+        CompletableFuture<Void> synced = durables.remove(tx);
+        return synced == null ? future : future.thenCombine(synced, (v, x) -> v);
+    }
+
+    @Override
+    protected SpillSink getSpillSink() {
+        return this::spillDBLog;
+    }
+
+    private CompletableFuture<Object> spillDBLog(byte op, Object data, boolean keepReference) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        long tx = writeDBLog(op, data);
+        // 重新执行时的写操作等待刷盘
+        durables.remove(tx);
+        spilled.put(tx, future);
+        if (keepReference) {
+            spilledReferences.put(tx, data);
+        }
+        spillBacklog.incrementAndGet();
         try {
-            logFile.append(tx, DBService.DB_TX_COMMIT);
+            spillLog().append(tx, op, keepReference ? null : data);
         } catch (Exception e) {
-            logger.error("write tx {} db log file error!", tx, e);
+            // 数据库日志中没有提交，下次启动时恢复
+            logger.error("sid {} spill tx {} error!", sid, tx, e);
+            spilled.remove(tx);
+            spilledReferences.remove(tx);
+            spillBacklog.decrementAndGet();
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
-    private void recoverFromLog(ClassLoader cl) {
-        Map<Long, Task> tasks = new LinkedHashMap<>();
-        SimpleDateFormat sdf = new SimpleDateFormat(".yyyy-MM-dd-HH-mm-ss");
-        String strDate = sdf.format(new Date());
-        // data file
-        String oldDataFileName = logDir.getAbsolutePath() + "/log." + sid + ".data";
-        File dataFile = new File(oldDataFileName);
-        File newDataFile = new File(oldDataFileName + strDate);
-        dataFile.renameTo(newDataFile);
-        try (Input dataIn = new Input(new BufferedInputStream(new FileInputStream(newDataFile)))) {
-            Kryo kryo = new Kryo();
-            kryo.setClassLoader(cl);
-            long tx;
-            while ((tx = dataIn.readLong()) != 0) {
-                byte op = dataIn.readByte();
-                if (op == DBService.DB_TX_COMMIT) {
-                    tasks.remove(tx);
-                } else {
-                    tasks.put(tx, new Task(op, kryo.readClassAndObject(dataIn)));
+    @Override
+    protected boolean isReplayingSpill() {
+        return Thread.currentThread() == spillThread;
+    }
+
+    @Override
+    public int getSpillBacklog() {
+        return spillBacklog.get();
+    }
+
+    private SpillLog spillLog() throws IOException {
+        SpillLog log = spillLog;
+        if (log == null) {
+            synchronized (this) {
+                if ((log = spillLog) == null) {
+                    spillLog = log = new SpillLog(new File(logDir, "spill." + sid + ".data"), classLoader);
+                    spillThread = new Thread(this::drainSpill, "Edata-Spill[" + sid + "]");
+                    spillThread.setDaemon(true);
+                    spillThread.start();
                 }
             }
-        } catch (FileNotFoundException e) {
-            logger.warn("server {} recover from log file error, not found file!!", sid);
-        } catch (Exception e) {
-            logger.error("server {} recover from log file error!", sid, e);
-            return;
         }
-        for (Task task : tasks.values()) {
-            byte op = task.getOp();
-            Object obj = task.getValue();
-            switch (op) {
-                case DBService.DB_INSERT:
-                    insertAsync(null, null, obj);
-                    break;
-                case DBService.DB_INSERT_BATCH:
-                    insertBatchAsync(null, null, (List<?>) obj);
-                    break;
-                case DBService.DB_UPDATE:
-                    updateAsync(null, null, obj);
-                    break;
-                case DBService.DB_UPDATE_BATCH:
-                    updateBatchAsync(null, null, (List<?>) obj);
-                    break;
-                case DBService.DB_UPDATE_WHERE:
-                    OperateData data = (OperateData) obj;
-                    updateAsync(null, null, data.clazz, data.name, data.value, data.wheres);
-                    break;
-                case DBService.DB_DELETE:
-                    deleteAsync(null, null, obj);
-                    break;
-                case DBService.DB_DELETE_BATCH:
-                    deleteBatchAsync(null, null, (List<?>) obj);
-                    break;
-                case DBService.DB_DELETE_WHERE:
-                    data = (OperateData) obj;
-                    this.deleteAsync(null, null, data.clazz, data.wheres);
-                    break;
-                case DBService.DB_TRUNCATE:
-                    truncateAsync(null, null, (Class) obj);
-                    break;
-                default:
-                    break;
-            }
-        }
-        logger.info("[{}] server [{}] tasks recovered from log file", sid, tasks.size());
+        return log;
     }
 
-    @Override
-    public <T> Future<Boolean> deleteAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
-        final long tx = writeDBLog(DBService.DB_DELETE, t);
-        ExecutorService es = getExecutor(t.getClass());
-        return execute(() -> {
+    /**
+     * 按顺序重新提交溢出日志中的写操作（执行线程已满时等待），新的写操作写入日志后提交原来的事务
+     */
+    @SuppressWarnings("unchecked")
+    private void drainSpill() {
+        while (true) {
+            SpillLog.Record record;
             try {
-                return dbService.delete(t);
-            } catch (Exception e) {
-                logger.error("sid {} deleteAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+                record = spillLog.take();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("sid {} read spill log error!", sid, e);
+                continue;
             }
-            return false;
-        }, es, callback, callbackExecutor);
-    }
-
-    @Override
-    public <T> Future<int[]> deleteBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
-        final long tx = writeDBLog(DBService.DB_DELETE_BATCH, objs);
-        ExecutorService es = getExecutor(objs.get(0).getClass());
-        return execute(() -> {
+            if (record == null) {
+                break;
+            }
+            CompletableFuture<Object> future = spilled.remove(record.tx);
+            Object reference = spilledReferences.remove(record.tx);
             try {
-                return dbService.batchDelete(objs);
+                if (record.error != null) {
+                    throw record.error;
+                }
+                Future<?> f = replay(record.op, reference != null ? reference : record.data);
+                dbSyncSuccess(record.tx);
+                if (f == null) {
+                    future.complete(null);
+                } else {
+                    ((CompletableFuture<Object>) f).whenComplete((v, e) -> {
+                        if (e != null) {
+                            future.completeExceptionally(e);
+                        } else {
+                            future.complete(v);
+                        }
+                    });
+                }
             } catch (Exception e) {
-                logger.error("sid {} deleteBatchAsync error!", sid, e);
+                logger.error("sid {} replay spilled tx {} error!", sid, record.tx, e);
+                future.completeExceptionally(e);
             } finally {
-                dbSyncSuccess(tx);
+                spillBacklog.decrementAndGet();
             }
-            return null;
-        }, es, callback, callbackExecutor);
+        }
     }
 
-    @Override
-    public <T> Future<Integer> updateAsync(Consumer<Integer> callback, Executor callbackExecutor, T t) {
-        final long tx = writeDBLog(DBService.DB_UPDATE, t);
-        ExecutorService es = getExecutor(t.getClass());
-        return execute(() -> {
-            try {
-                return dbService.update(t);
-            } catch (Exception e) {
-                logger.error("sid {} updateAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+    /**
+     * 停止重新执行溢出日志，剩余的写操作在下次启动时从数据库日志恢复
+     */
+    private void closeSpill() {
+        SpillLog log = spillLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+            spillThread.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (Exception e) {
+            logger.error("sid {} close spill log error!", sid, e);
+        }
+        spilledReferences.clear();
+        if (!spilled.isEmpty()) {
+            logger.warn("sid {} {} spilled writes left in db log, recover at next start", sid, spilled.size());
+            for (CompletableFuture<Object> future : spilled.values()) {
+                future.completeExceptionally(new IllegalStateException("shutdown, recover from db log at next start"));
             }
-            return 0;
-        }, es, callback, callbackExecutor);
+        }
     }
 
-    @Override
-    public <T> Future<int[]> updateBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
-        final long tx = writeDBLog(DBService.DB_UPDATE_BATCH, objs);
-        ExecutorService es = getExecutor(objs.get(0).getClass());
-        return execute(() -> {
-            try {
-                return dbService.batchUpdate(objs);
-            } catch (Exception e) {
-                logger.error("sid {} updateBatchAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+    /**
+     * 从日志恢复没有提交的写操作：并行解码各个日志文件，合并同一行连续的update、replace后按执行线程批量重新执行，等待全部执行完
+     */
+    private void recoverFromLog(ClassLoader cl) {
+        long begin = System.nanoTime();
+        List<File> files = logFile.recoveryFiles();
+        List<Decoded> decoded = decode(files, cl);
+        if (decoded == null) {
+            logFile.keepRecovered(files);
+            return;
+        }
+        Map<Long, Task> tasks = uncommitted(decoded);
+        long maxTx = 0;
+        long records = 0;
+        for (Decoded d : decoded) {
+            maxTx = Math.max(maxTx, d.maxTx);
+            records += d.records;
+        }
+        // 事务id接着之前的日志，不同次启动写入的段中事务id不重复
+        txid.set(maxTx);
+        logFile.setFirstTx(maxTx + 1);
+        List<Task> replays = coalesce(tasks.values());
+        int submitted = replayAll(replays);
+        try {
+            logFile.discardRecovered();
+        } catch (IOException e) {
+            logger.error("server {} sync recovered tasks to log file error!", sid, e);
+            logFile.keepRecovered(files);
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        logger.info("[{}] server [{}] tasks recovered from {} log files ({} records), {} coalesced, {} submitted, {} ms, {} tasks/s",
+                sid, tasks.size(), files.size(), records, tasks.size() - replays.size(), submitted, millis, tasks.size() * 1000L / millis);
+    }
+
+    /**
+     * 每个日志文件一个线程解码
+     *
+     * @return 按文件顺序的解码结果，有文件读取出错时返回null
+     */
+    List<Decoded> decode(List<File> files, ClassLoader cl) {
+        if (files.isEmpty()) {
+            return new ArrayList<>();
+        }
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()),
+                r -> new Thread(r, "Edata-Recover[" + sid + "]-" + threadId.incrementAndGet()));
+        try {
+            List<Future<Decoded>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(pool.submit(() -> decode(file, cl)));
+            }
+            List<Decoded> decoded = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); ++i) {
+                try {
+                    decoded.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.error("server {} recover from log file {} error!", sid, files.get(i), e.getCause());
+                    return null;
+                }
             }
+            return decoded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("server {} recover from log interrupted!", sid);
             return null;
-        }, es, callback, callbackExecutor);
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
-    @Override
-    public <T> Future<Boolean> insertAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
-        final long tx = writeDBLog(DBService.DB_INSERT, t);
-        ExecutorService es = getExecutor(t.getClass());
-        return execute(() -> {
-            try {
-                return dbService.insertOrReplace(t, false);
-            } catch (Exception e) {
-                logger.error("sid {} addAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+    /**
+     * 按文件顺序合并解码结果，每个文件中的提交和提交水位只影响之前的文件中的事务
+     *
+     * @return 事务id -&gt; 没有提交的写操作，按日志顺序
+     */
+    static Map<Long, Task> uncommitted(List<Decoded> decoded) {
+        Map<Long, Task> tasks = new LinkedHashMap<>();
+        for (Decoded d : decoded) {
+            tasks.keySet().removeAll(d.commits);
+            for (FileDBLog.Watermark watermark : d.watermarks.values()) {
+                tasks.keySet().removeIf(watermark::isCommitted);
             }
-            return false;
-        }, es, callback, callbackExecutor);
+            tasks.putAll(d.tasks);
+        }
+        return tasks;
     }
 
-    @Override
-    public <T> Future<int[]> insertBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
-        final long tx = writeDBLog(DBService.DB_INSERT_BATCH, objs);
-        ExecutorService es = getExecutor(objs.get(0).getClass());
-        return execute(() -> {
-            try {
-                return dbService.batchInsertOrReplace(objs, false);
-            } catch (Exception e) {
-                logger.error("sid {} addBatchAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+    /**
+     * 解码一个日志文件，文件内的提交直接处理，其他提交（事务在之前的文件中）和提交水位留给合并时处理
+     */
+    private Decoded decode(File file, ClassLoader cl) throws IOException {
+        Decoded d = new Decoded();
+        // 没有注册表的是旧版本写入的日志
+        LogSerializer serializer = LogSerializer.unregistered(cl);
+        try (Input dataIn = new Input(new BufferedInputStream(new FileInputStream(file)))) {
+            long tx;
+            // 写满的段去掉了预分配的部分，在文件末尾结束
+            while (!dataIn.eof() && (tx = dataIn.readLong()) != 0) {
+                if (tx == LogSerializer.MAGIC) {
+                    serializer = LogSerializer.readHeader(dataIn, cl);
+                    continue;
+                }
+                d.maxTx = Math.max(d.maxTx, tx);
+                ++d.records;
+                byte op = dataIn.readByte();
+                if (op == DBService.DB_TX_COMMIT) {
+                    if (d.tasks.remove(tx) == null) {
+                        d.commits.add(tx);
+                    }
+                } else if (op == DBService.DB_TX_WATERMARK) {
+                    FileDBLog.Watermark watermark = (FileDBLog.Watermark) serializer.read(dataIn);
+                    d.tasks.keySet().removeIf(watermark::isCommitted);
+                    d.watermarks.merge(watermark.from, watermark, FileDBLog.Watermark::merge);
+                } else {
+                    d.tasks.put(tx, new Task(op, serializer.read(dataIn)));
+                }
             }
-            return null;
-        }, es, callback, callbackExecutor);
+        }
+        return d;
     }
 
-    @Override
-    public <T> Future<Boolean> replaceAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t) {
-        final long tx = writeDBLog(DBService.DB_INSERT, t);
-        ExecutorService es = getExecutor(t.getClass());
-        return execute(() -> {
-            try {
-                return dbService.insertOrReplace(t, true);
-            } catch (Exception e) {
-                logger.error("sid {} addAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+    /**
+     * 合并同一行（class、主键）连续的update、replace，只执行最后的状态（从日志恢复的更新写入所有列）；
+     * 同一行的insert、delete、upsert，同一个class的其他写操作和事务之前的不与之后的合并
+     *
+     * @return 按日志顺序需要重新执行的操作
+     */
+    List<Task> coalesce(Collection<Task> tasks) {
+        List<Task> list = new ArrayList<>(tasks);
+        Map<Class<?>, Map<Object, Integer>> rows = new HashMap<>();
+        for (int i = 0; i < list.size(); ++i) {
+            Task task = list.get(i);
+            Class<?> clazz = classOf(task);
+            if (clazz == null) {
+                rows.clear();
+                continue;
+            }
+            Object key = null;
+            switch (task.op) {
+                case DBService.DB_UPDATE:
+                case DBService.DB_REPLACE:
+                case DBService.DB_INSERT:
+                case DBService.DB_DELETE:
+                case DBService.DB_UPSERT:
+                    Object row = task.op == DBService.DB_UPSERT ? ((UpsertData) task.value).value : task.value;
+                    key = dbService.getEntityMeta(clazz).primaryKeyOf(row);
+                    break;
+                default:
+                    break;
+            }
+            if (key == null) {
+                rows.remove(clazz);
+            } else if (task.op == DBService.DB_UPDATE || task.op == DBService.DB_REPLACE) {
+                Integer prev = rows.computeIfAbsent(clazz, c -> new HashMap<>()).put(key, i);
+                if (prev != null) {
+                    // 之前是replace时合并后也是replace（行不存在时插入）
+                    if (list.set(prev, null).op == DBService.DB_REPLACE) {
+                        task.op = DBService.DB_REPLACE;
+                    }
+                }
+            } else {
+                Map<Object, Integer> keys = rows.get(clazz);
+                if (keys != null) {
+                    keys.remove(key);
+                }
             }
-            return false;
-        }, es, callback, callbackExecutor);
+        }
+        List<Task> replays = new ArrayList<>(list.size());
+        for (Task task : list) {
+            if (task != null) {
+                replays.add(task);
+            }
+        }
+        return replays;
     }
 
-    @Override
-    public <T> Future<int[]> replaceBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs) {
-        final long tx = writeDBLog(DBService.DB_INSERT_BATCH, objs);
-        ExecutorService es = getExecutor(objs.get(0).getClass());
-        return execute(() -> {
-            try {
-                return dbService.batchInsertOrReplace(objs, true);
-            } catch (Exception e) {
-                logger.error("sid {} addBatchAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
-            }
-            return null;
-        }, es, callback, callbackExecutor);
+    /**
+     * 写操作的表，涉及多个表的事务和不认识的操作返回null
+     */
+    private static Class<?> classOf(Task task) {
+        Object value = task.value;
+        switch (task.op) {
+            case DBService.DB_UPDATE_WHERE:
+            case DBService.DB_DELETE_WHERE:
+                return ((OperateData) value).clazz;
+            case DBService.DB_TRUNCATE:
+                return (Class<?>) value;
+            case DBService.DB_UPSERT:
+            case DBService.DB_UPSERT_BATCH:
+                value = ((UpsertData) value).value;
+                break;
+            case DBService.DB_TRANSACTION:
+                return null;
+            default:
+                break;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            return list.isEmpty() ? null : list.get(0).getClass();
+        }
+        return value == null ? null : value.getClass();
     }
 
-    @Override
-    public <T> Future<Boolean> deleteAsync(Consumer<Boolean> callback, Executor callbackExecutor, Class<T> clazz, DBWhere... wheres) {
-        final long tx = writeDBLog(DBService.DB_DELETE_WHERE, new OperateData(clazz, wheres));
-        ExecutorService es = getExecutor(clazz);
-        return execute(() -> {
+    /**
+     * 按顺序重新执行（见{@link #batches}），各个表在自己的执行线程中并行执行，等待全部执行完
+     *
+     * @return 提交的操作数
+     */
+    private int replayAll(List<Task> replays) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        AtomicInteger done = new AtomicInteger();
+        for (Task task : batches(replays, recoverBatch)) {
+            submit(task, futures, done);
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        long begin = System.nanoTime();
+        while (true) {
             try {
-                return dbService.delete(clazz, wheres);
-            } catch (Exception e) {
-                logger.error("sid {} deleteAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+                all.get(10, TimeUnit.SECONDS);
+                break;
+            } catch (TimeoutException e) {
+                long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - begin));
+                logger.info("[{}] server recovering from log: {}/{} done, {} ops/s", sid, done.get(), futures.size(), done.get() / seconds);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // 单个操作的错误已经记录
+                break;
             }
-            return false;
-        }, es, callback, callbackExecutor);
+        }
+        return futures.size();
     }
 
-    @Override
-    public <T> Future<Integer> updateAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, String name, Object value, DBWhere... wheres) {
-        final long tx = writeDBLog(DBService.DB_UPDATE_WHERE, new OperateData(name, value, clazz, wheres));
-        ExecutorService es = getExecutor(clazz);
-        return execute(() -> {
-            try {
-                return dbService.update(clazz, name, value, wheres);
-            } catch (Exception e) {
-                logger.error("sid {} updateAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
+    /**
+     * 同一个表连续的update（replace）合并成一个批量操作（值为对象列表，最多maxBatch个）；
+     * 同一个表的其他写操作（涉及多个表的事务为所有表）之前先结束该表的批量操作，保持顺序
+     *
+     * @return 按提交顺序排列的操作
+     */
+    @SuppressWarnings("unchecked")
+    static List<Task> batches(List<Task> replays, int maxBatch) {
+        List<Task> submits = new ArrayList<>();
+        Map<Class<?>, Task> batches = new LinkedHashMap<>();
+        for (Task task : replays) {
+            Class<?> clazz = classOf(task);
+            if (task.op == DBService.DB_UPDATE || task.op == DBService.DB_REPLACE) {
+                Task batch = batches.get(clazz);
+                if (batch != null && batch.op != task.op) {
+                    submits.add(batches.remove(clazz));
+                    batch = null;
+                }
+                if (batch == null) {
+                    batches.put(clazz, batch = new Task(task.op, new ArrayList<>()));
+                }
+                List<Object> objs = (List<Object>) batch.value;
+                objs.add(task.value);
+                if (objs.size() >= maxBatch) {
+                    submits.add(batches.remove(clazz));
+                }
+                continue;
             }
-            return -1;
-        }, es, callback, callbackExecutor);
+            if (clazz == null) {
+                submits.addAll(batches.values());
+                batches.clear();
+            } else if (batches.containsKey(clazz)) {
+                submits.add(batches.remove(clazz));
+            }
+            submits.add(task);
+        }
+        submits.addAll(batches.values());
+        return submits;
     }
 
-    @Override
-    public <T> Future<Boolean> truncateAsync(Consumer<Boolean> callback, Executor callbackExecutor, Class<T> clazz) {
-        final long tx = writeDBLog(DBService.DB_TRUNCATE, clazz);
-        ExecutorService es = getExecutor(clazz);
-        return execute(() -> {
-            try {
-                return dbService.truncate(clazz);
-            } catch (Exception e) {
-                logger.error("sid {} truncateAsync error!", sid, e);
-            } finally {
-                dbSyncSuccess(tx);
-            }
-            return false;
-        }, es, callback, callbackExecutor);
+    @SuppressWarnings("unchecked")
+    private void submit(Task task, List<CompletableFuture<?>> futures, AtomicInteger done) {
+        Future<?> f;
+        List<?> objs = task.value instanceof List ? (List<?>) task.value : null;
+        if (task.op == DBService.DB_UPDATE && objs != null) {
+            f = objs.size() == 1 ? updateAsync(null, null, objs.get(0)) : updateBatchAsync(null, null, objs);
+        } else if (task.op == DBService.DB_REPLACE && objs != null) {
+            f = objs.size() == 1 ? replaceAsync(null, null, objs.get(0)) : replaceBatchAsync(null, null, objs);
+        } else {
+            f = replay(task.getOp(), task.getValue());
+        }
+        if (f != null) {
+            futures.add(((CompletableFuture<Object>) f).whenComplete((v, e) -> done.incrementAndGet()));
+        }
+    }
+
+    /**
+     * 按日志重新执行一个写操作（从日志恢复、溢出日志）
+     *
+     * @return 写操作的结果，不认识的操作类型返回null
+     */
+    @SuppressWarnings("unchecked")
+    private Future<?> replay(byte op, Object obj) {
+        switch (op) {
+            case DBService.DB_INSERT:
+                return insertAsync(null, null, obj);
+            case DBService.DB_REPLACE:
+                return replaceAsync(null, null, obj);
+            case DBService.DB_INSERT_BATCH:
+                return insertBatchAsync(null, null, (List<?>) obj);
+            case DBService.DB_REPLACE_BATCH:
+                return replaceBatchAsync(null, null, (List<?>) obj);
+            case DBService.DB_UPDATE:
+                return updateAsync(null, null, obj);
+            case DBService.DB_UPDATE_BATCH:
+                return updateBatchAsync(null, null, (List<?>) obj);
+            case DBService.DB_UPDATE_WHERE:
+                OperateData data = (OperateData) obj;
+                return updateAsync(null, null, data.clazz, data.name, data.value, data.wheres);
+            case DBService.DB_DELETE:
+                return deleteAsync(null, null, obj);
+            case DBService.DB_DELETE_BATCH:
+                return deleteBatchAsync(null, null, (List<?>) obj);
+            case DBService.DB_DELETE_WHERE:
+                data = (OperateData) obj;
+                return deleteAsync(null, null, data.clazz, data.wheres);
+            case DBService.DB_TRUNCATE:
+                return truncateAsync(null, null, (Class) obj);
+            case DBService.DB_UPSERT:
+                UpsertData upsert = (UpsertData) obj;
+                return upsertAsync(null, null, upsert.value, upsert.columns);
+            case DBService.DB_UPSERT_BATCH:
+                upsert = (UpsertData) obj;
+                return upsertBatchAsync(null, null, (List<?>) upsert.value, upsert.columns);
+            case DBService.DB_TRANSACTION:
+                return transactionAsync(null, null, new DBTransaction((List<DBTransaction.Op>) obj));
+            default:
+                return null;
+        }
     }
 
     static class OperateData {
@@ -335,6 +605,37 @@ public final class DBServiceWithLogProxy extends AbstractDBServiceProxy {
         }
     }
 
+    /**
+     * upsert的日志数据（新增的类，不修改OperateData，旧的日志文件仍然可以恢复）
+     */
+    static class UpsertData {
+        Object value;
+        List<String> columns;
+
+        UpsertData() {
+        }
+
+        UpsertData(Object value, List<String> columns) {
+            this.value = value;
+            // 调用方传入的List（例如Arrays.asList）不一定能反序列化
+            this.columns = columns == null ? null : new ArrayList<>(columns);
+        }
+    }
+
+    /**
+     * 一个日志文件的解码结果
+     */
+    static class Decoded {
+        final Map<Long, Task> tasks = new LinkedHashMap<>();
+        /**
+         * 事务在之前的文件中的提交，以及每次启动的提交水位（同一次启动的合并为一条）
+         */
+        final Set<Long> commits = new HashSet<>();
+        final Map<Long, FileDBLog.Watermark> watermarks = new HashMap<>();
+        long maxTx;
+        long records;
+    }
+
     static class Task {
         byte op;
         Object value;
@@ -0,0 +1,166 @@
+package com.dd.edata.db;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 一组在同一个连接、同一个事务中执行的写操作
+ * <p>
+ * 操作先记录下来，提交后按添加的顺序执行，只提交一次；任何一个操作出错时整个事务回滚。
+ * 添加之后、执行之前不要再修改对象
+ *
+ * @author wangshupeng
+ */
+public final class DBTransaction {
+    static final byte INSERT = 0;
+    static final byte REPLACE = 1;
+    static final byte UPDATE = 2;
+    static final byte DELETE = 3;
+    static final byte UPSERT = 4;
+    static final byte UPDATE_WHERE = 5;
+    static final byte DELETE_WHERE = 6;
+
+    private final List<Op> ops;
+
+    public DBTransaction() {
+        this.ops = new ArrayList<>();
+    }
+
+    /**
+     * 从日志中恢复的事务
+     */
+    DBTransaction(List<Op> ops) {
+        this.ops = ops;
+    }
+
+    /**
+     * 插入一条数据
+     */
+    public <T> DBTransaction insert(T t) {
+        return add(new Op(INSERT, t));
+    }
+
+    /**
+     * 替换一条数据（REPLACE）
+     */
+    public <T> DBTransaction replace(T t) {
+        return add(new Op(REPLACE, t));
+    }
+
+    /**
+     * 按主键更新一条数据
+     */
+    public <T> DBTransaction update(T t) {
+        return add(new Op(UPDATE, t));
+    }
+
+    /**
+     * 按主键删除一条数据
+     */
+    public <T> DBTransaction delete(T t) {
+        return add(new Op(DELETE, t));
+    }
+
+    /**
+     * 插入或更新一条数据，冲突时更新所有非主键字段
+     */
+    public <T> DBTransaction upsert(T t) {
+        return upsert(t, null);
+    }
+
+    /**
+     * 插入或更新一条数据
+     *
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     */
+    public <T> DBTransaction upsert(T t, List<String> columns) {
+        Op op = new Op(UPSERT, t);
+        // 写日志时需要可以反序列化的List
+        op.columnNames = columns == null ? null : new ArrayList<>(columns);
+        return add(op);
+    }
+
+    /**
+     * 按条件更新一个字段
+     *
+     * @param clazz  表映射的class
+     * @param name   字段名
+     * @param value  字段值
+     * @param wheres 条件
+     */
+    public <T> DBTransaction update(Class<T> clazz, String name, Object value, DBWhere... wheres) {
+        Op op = new Op(UPDATE_WHERE, null);
+        op.clazz = clazz;
+        op.name = name;
+        op.value = value;
+        op.wheres = wheres;
+        return add(op);
+    }
+
+    /**
+     * 按条件删除数据
+     *
+     * @param clazz  表映射的class
+     * @param wheres 条件
+     */
+    public <T> DBTransaction delete(Class<T> clazz, DBWhere... wheres) {
+        Op op = new Op(DELETE_WHERE, null);
+        op.clazz = clazz;
+        op.wheres = wheres;
+        return add(op);
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    List<Op> getOps() {
+        return ops;
+    }
+
+    private DBTransaction add(Op op) {
+        ops.add(op);
+        return this;
+    }
+
+    /**
+     * 事务中的一个操作，同时也是写日志的数据
+     */
+    static final class Op {
+        byte kind;
+        Object bean;
+        Class<?> clazz;
+        String name;
+        Object value;
+        DBWhere[] wheres;
+        /**
+         * upsert冲突时更新的字段
+         */
+        List<String> columnNames;
+        /**
+         * 提交时计算的更新的列序号（update的修改记录、upsert的columnNames），null表示所有列
+         */
+        transient BitSet columns;
+        /**
+         * 提交时取出的修改记录，事务回滚时恢复
+         */
+        transient Set<String> dirtyFields;
+
+        Op() {
+        }
+
+        Op(byte kind, Object bean) {
+            this.kind = kind;
+            this.bean = bean;
+        }
+
+        /**
+         * 操作的表映射的class
+         */
+        Class<?> type() {
+            return bean == null ? clazz : bean.getClass();
+        }
+    }
+}
@@ -72,6 +72,27 @@ public class DBWhere {
         return new DBWhere(null, value, WhereCond.LIMIT);
     }
 
+    /**
+     * 配置了从库时，强制本次查询在主库执行（不影响生成的SQL）
+     */
+    public static DBWhere PRIMARY() {
+        return new DBWhere(null, null, WhereCond.PRIMARY);
+    }
+
+    /**
+     * 是否包含{@link #PRIMARY()}条件
+     */
+    static boolean isPrimary(DBWhere[] wheres) {
+        if (wheres != null) {
+            for (DBWhere where : wheres) {
+                if (where.cond == WhereCond.PRIMARY) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
 
     public String getName() {
         return name;
@@ -86,6 +107,6 @@ public class DBWhere {
     }
 
     public enum WhereCond {
-        EQ, NEQ, IN, LT, LE, GT, GE, LIKE, ORDER_ASC, ORDER_DESC, LIMIT
+        EQ, NEQ, IN, LT, LE, GT, GE, LIKE, ORDER_ASC, ORDER_DESC, LIMIT, PRIMARY
     }
 }
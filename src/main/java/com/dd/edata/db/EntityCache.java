@@ -0,0 +1,115 @@
+package com.dd.edata.db;
+
+import com.dd.edata.db.annotation.TableCache;
+import com.esotericsoftware.kryo.Kryo;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按主键缓存的实体对象（@TableCache）
+ * <p>
+ * 缓存中保存的是对象的拷贝，读取时也返回拷贝，调用方修改返回的对象不会影响缓存；
+ * key见{@link EntityMeta#primaryKeyOf(Object)}
+ *
+ * @author wangshupeng
+ */
+final class EntityCache<T> {
+    private static final ThreadLocal<Kryo> kryoHolder = ThreadLocal.withInitial(Kryo::new);
+
+    private final EntityMeta<T> meta;
+    private final Cache<Object, T> cache;
+
+    EntityCache(EntityMeta<T> meta, TableCache conf) {
+        this.meta = meta;
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+        if (conf.expireAfterAccess() > 0) {
+            builder.expireAfterAccess(conf.expireAfterAccess(), TimeUnit.SECONDS);
+        }
+        if (conf.maxWeight() > 0) {
+            this.cache = builder.maximumWeight(conf.maxWeight()).<Object, T>weigher((k, v) -> meta.estimateSize(v)).build();
+        } else {
+            this.cache = builder.maximumSize(conf.maxSize()).build();
+        }
+    }
+
+    Object keyOf(Object bean) {
+        return meta.primaryKeyOf(bean);
+    }
+
+    Object keyOf(DBWhere[] wheres) {
+        return meta.primaryKeyOf(wheres);
+    }
+
+    /**
+     * 读取缓存，返回缓存对象的拷贝
+     */
+    T get(Object key) {
+        T t = cache.getIfPresent(key);
+        return t == null ? null : copy(t);
+    }
+
+    /**
+     * 读取一组key，全部命中时按keys的顺序返回拷贝，否则返回null
+     */
+    Map<Object, T> getAll(Collection<Object> keys) {
+        Map<Object, T> ret = new LinkedHashMap<>();
+        for (Object key : keys) {
+            T t = cache.getIfPresent(key);
+            if (t == null) {
+                return null;
+            }
+            ret.put(key, t);
+        }
+        for (Map.Entry<Object, T> e : ret.entrySet()) {
+            e.setValue(copy(e.getValue()));
+        }
+        return ret;
+    }
+
+    /**
+     * 写入对象的拷贝
+     */
+    void put(T bean) {
+        Object key = keyOf(bean);
+        if (key != null) {
+            cache.put(key, copy(bean));
+        }
+    }
+
+    /**
+     * 从数据库加载的对象写入缓存，已有数据（例如还没有执行的更新）时不覆盖
+     */
+    void putIfAbsent(Object key, T bean) {
+        cache.asMap().putIfAbsent(key, copy(bean));
+    }
+
+    void invalidate(Object bean) {
+        Object key = keyOf(bean);
+        if (key != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    long estimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Kryo深拷贝，延迟写缓冲区的读取也使用
+     */
+    static <T> T copy(T bean) {
+        return kryoHolder.get().copy(bean);
+    }
+}
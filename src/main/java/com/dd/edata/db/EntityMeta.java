@@ -0,0 +1,436 @@
+package com.dd.edata.db;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 数据库实体类（@Table）的元数据，每个实体类在启动时生成一次
+ *
+ * @author wangshupeng
+ */
+final class EntityMeta<T> {
+    private final Class<T> clazz;
+    private final MethodHandle constructor;
+    private final ColumnMeta[] columns;
+    private final ColumnMeta[] primaryKeys;
+    private final ColumnMeta[] insertColumns;
+    private final ColumnMeta autoIncrementColumn;
+    private final Map<String, ColumnMeta> columnsByName = new HashMap<>();
+    private final Map<String, ColumnMeta> columnsByField = new HashMap<>();
+    private final String selectList;
+    private final ConcurrentMap<String, RowMapper<T>> rowMappers = new ConcurrentHashMap<>();
+
+    EntityMeta(Class<T> clazz, Collection<Field> fields, Collection<Field> pks) throws IllegalAccessException {
+        this.clazz = clazz;
+        this.constructor = findConstructor(clazz);
+        this.columns = new ColumnMeta[fields.size()];
+        int i = 0;
+        for (Field f : fields) {
+            ColumnMeta column = new ColumnMeta(f, i);
+            columns[i++] = column;
+            columnsByName.put(column.getName().toUpperCase(), column);
+            columnsByField.put(f.getName(), column);
+        }
+        this.primaryKeys = new ColumnMeta[pks.size()];
+        i = 0;
+        for (Field f : pks) {
+            primaryKeys[i++] = columnsByField.get(f.getName());
+        }
+        List<ColumnMeta> inserts = new ArrayList<>();
+        ColumnMeta autoIncr = null;
+        for (ColumnMeta column : columns) {
+            if (column.isAutoIncrement()) {
+                autoIncr = column;
+            } else {
+                inserts.add(column);
+            }
+        }
+        this.insertColumns = inserts.toArray(new ColumnMeta[0]);
+        this.autoIncrementColumn = autoIncr;
+        StringJoiner select = new StringJoiner(",");
+        for (ColumnMeta column : columns) {
+            select.add(column.getName());
+        }
+        this.selectList = select.toString();
+    }
+
+    private static MethodHandle findConstructor(Class<?> clazz) throws IllegalAccessException {
+        try {
+            Constructor<?> c = clazz.getDeclaredConstructor();
+            c.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    Class<T> getEntityClass() {
+        return clazz;
+    }
+
+    ColumnMeta[] getColumns() {
+        return columns;
+    }
+
+    ColumnMeta[] getPrimaryKeys() {
+        return primaryKeys;
+    }
+
+    /**
+     * insert/replace语句中的列（不包含自增列）
+     */
+    ColumnMeta[] getInsertColumns() {
+        return insertColumns;
+    }
+
+    ColumnMeta getAutoIncrementColumn() {
+        return autoIncrementColumn;
+    }
+
+    ColumnMeta getColumnByName(String columnName) {
+        return columnsByName.get(columnName.toUpperCase());
+    }
+
+    ColumnMeta getColumnByField(String fieldName) {
+        return columnsByField.get(fieldName);
+    }
+
+    /**
+     * 按字段估算对象占用的字节数（缓存的权重、执行线程排队的字节数）
+     */
+    int estimateSize(Object bean) {
+        int size = 16;
+        for (ColumnMeta column : columns) {
+            switch (column.getKind()) {
+                case STRING:
+                case JSON:
+                case BYTES: {
+                    Object v;
+                    try {
+                        v = column.get(bean);
+                    } catch (Throwable t) {
+                        v = null;
+                    }
+                    if (v instanceof String) {
+                        size += 40 + (((String) v).length() << 1);
+                    } else if (v instanceof byte[]) {
+                        size += 16 + ((byte[]) v).length;
+                    } else if (v != null) {
+                        size += 64;
+                    }
+                    break;
+                }
+                default:
+                    size += 8;
+                    break;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 对象的主键，主键字段为null时返回null；
+     * 单主键时是主键值本身，联合主键时是按@TablePrimaryKey顺序的主键值列表
+     */
+    Object primaryKeyOf(Object bean) {
+        try {
+            if (primaryKeys.length == 1) {
+                return primaryKeys[0].get(bean);
+            }
+            Object[] values = new Object[primaryKeys.length];
+            for (int i = 0; i < primaryKeys.length; ++i) {
+                if ((values[i] = primaryKeys[i].get(bean)) == null) {
+                    return null;
+                }
+            }
+            return Arrays.asList(values);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * 查询条件对应的主键，只有所有条件都是主键的EQ条件时才返回，否则返回null
+     */
+    Object primaryKeyOf(DBWhere[] wheres) {
+        if (wheres == null || wheres.length != primaryKeys.length) {
+            return null;
+        }
+        Object[] values = new Object[primaryKeys.length];
+        for (DBWhere where : wheres) {
+            if (where.getCond() != DBWhere.WhereCond.EQ || where.getValue() == null) {
+                return null;
+            }
+            int i = indexOfPrimaryKey(where.getName());
+            if (i < 0 || values[i] != null) {
+                return null;
+            }
+            values[i] = normalizeKey(primaryKeys[i], where.getValue());
+        }
+        return primaryKeys.length == 1 ? values[0] : Arrays.asList(values);
+    }
+
+    /**
+     * 把调用方传入的主键转换成和{@link #primaryKeyOf(Object)}相同的形式
+     *
+     * @param id 单主键时是主键值，联合主键时是按@TablePrimaryKey顺序的List或者Object[]
+     */
+    Object toKey(Object id) {
+        if (primaryKeys.length == 1) {
+            return normalizeKey(primaryKeys[0], id);
+        }
+        List<?> values = id instanceof Object[] ? Arrays.asList((Object[]) id) : id instanceof List ? (List<?>) id : null;
+        if (values == null || values.size() != primaryKeys.length) {
+            throw new IllegalArgumentException("error:primary key of " + clazz.getName() + " must be List or Object[] of " + primaryKeys.length + " values, but " + id);
+        }
+        Object[] key = new Object[primaryKeys.length];
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = normalizeKey(primaryKeys[i], values.get(i));
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * 单主键IN查询条件中的主键列表，其他查询条件返回null
+     */
+    List<Object> primaryKeysOf(DBWhere[] wheres) {
+        if (primaryKeys.length != 1 || wheres == null || wheres.length != 1) {
+            return null;
+        }
+        DBWhere where = wheres[0];
+        if (where.getCond() != DBWhere.WhereCond.IN || indexOfPrimaryKey(where.getName()) != 0) {
+            return null;
+        }
+        List<?> values = (List<?>) where.getValue();
+        List<Object> keys = new ArrayList<>(values.size());
+        for (Object v : values) {
+            keys.add(normalizeKey(primaryKeys[0], v));
+        }
+        return keys;
+    }
+
+    /**
+     * 字段名（或列名）在主键中的序号，不是主键时返回-1
+     */
+    int indexOfPrimaryKey(String name) {
+        ColumnMeta column = getColumnByField(name);
+        if (column == null) {
+            column = getColumnByName(name);
+        }
+        for (int i = 0; i < primaryKeys.length; ++i) {
+            if (primaryKeys[i] == column) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查询条件中的数字转换成字段的类型，保证和从对象上取得的主键相等
+     */
+    static Object normalizeKey(ColumnMeta column, Object v) {
+        if (!(v instanceof Number)) {
+            return v;
+        }
+        Number n = (Number) v;
+        switch (column.getKind()) {
+            case BYTE:
+                return n.byteValue();
+            case SHORT:
+                return n.shortValue();
+            case INT:
+                return n.intValue();
+            case LONG:
+                return n.longValue();
+            case FLOAT:
+                return n.floatValue();
+            case DOUBLE:
+                return n.doubleValue();
+            default:
+                return v;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T newInstance() throws Exception {
+        if (constructor == null) {
+            throw new InstantiationException(clazz.getName() + " has no default constructor");
+        }
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InstantiationException(t.toString());
+        }
+    }
+
+    /**
+     * 绑定insert/replace语句的参数
+     */
+    void bindInsert(PreparedStatement stmt, Object bean) throws SQLException {
+        bind(stmt, 1, insertColumns, bean);
+    }
+
+    /**
+     * 绑定update语句的参数：所有列，然后是where条件中的主键
+     */
+    void bindUpdate(PreparedStatement stmt, Object bean) throws SQLException {
+        int index = bind(stmt, 1, columns, bean);
+        bind(stmt, index, primaryKeys, bean);
+    }
+
+    /**
+     * 绑定只更新部分列的update语句的参数：指定的列，然后是where条件中的主键
+     *
+     * @param updateColumns 更新的列序号，null表示所有列
+     */
+    void bindUpdate(PreparedStatement stmt, Object bean, BitSet updateColumns) throws SQLException {
+        if (updateColumns == null) {
+            bindUpdate(stmt, bean);
+            return;
+        }
+        int index = 1;
+        try {
+            for (int i = updateColumns.nextSetBit(0); i >= 0; i = updateColumns.nextSetBit(i + 1)) {
+                columns[i].bind(stmt, index++, bean);
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new SQLException(t);
+        }
+        bind(stmt, index, primaryKeys, bean);
+    }
+
+    /**
+     * 修改过的字段对应的需要更新的列（不包含主键）
+     *
+     * @param fields java字段名或者列名
+     * @return 列序号，fields为空或者包含所有列时返回null（更新所有列）
+     */
+    BitSet updateColumnsOf(Collection<String> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        BitSet set = new BitSet(columns.length);
+        for (String name : fields) {
+            ColumnMeta column = columnsByField.get(name);
+            if (column == null) {
+                column = getColumnByName(name);
+            }
+            if (column == null) {
+                throw new IllegalArgumentException("error:dirty field " + name + " is not a column of " + clazz.getName());
+            }
+            set.set(column.getIndex());
+        }
+        for (ColumnMeta pk : primaryKeys) {
+            set.clear(pk.getIndex());
+        }
+        return set.isEmpty() || set.cardinality() >= columns.length - primaryKeys.length ? null : set;
+    }
+
+    /**
+     * 绑定以主键为条件的语句参数（例如delete）
+     *
+     * @return 下一个参数的序号
+     */
+    int bindPrimaryKeys(PreparedStatement stmt, int index, Object bean) throws SQLException {
+        return bind(stmt, index, primaryKeys, bean);
+    }
+
+    /**
+     * 绑定keyset分页条件 (pk1 > ?) OR (pk1 = ? AND pk2 > ?) OR ... 的参数
+     *
+     * @return 下一个参数的序号
+     */
+    int bindKeyset(PreparedStatement stmt, int index, Object bean) throws SQLException {
+        try {
+            for (int i = 0; i < primaryKeys.length; ++i) {
+                for (int j = 0; j < i; ++j) {
+                    primaryKeys[j].bind(stmt, index++, bean);
+                }
+                primaryKeys[i].bind(stmt, index++, bean);
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new SQLException(t);
+        }
+        return index;
+    }
+
+    /**
+     * 把数据库生成的自增主键写回bean
+     */
+    void readGeneratedKey(ResultSet keys, Object bean) throws SQLException {
+        try {
+            autoIncrementColumn.read(keys, 1, bean);
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new SQLException(t);
+        }
+    }
+
+    private static int bind(PreparedStatement stmt, int index, ColumnMeta[] columns, Object bean) throws SQLException {
+        try {
+            for (ColumnMeta column : columns) {
+                column.bind(stmt, index++, bean);
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new SQLException(t);
+        }
+        return index;
+    }
+
+    /**
+     * 查询所有列时的列名列表（按字段声明顺序），代替SELECT *，
+     * 避免按月/日分表、从库中列的顺序不同导致映射错位
+     */
+    String getSelectList() {
+        return selectList;
+    }
+
+    /**
+     * 获取查询形态对应的映射器，列的位置由生成的SQL决定，与表中列的实际顺序无关
+     *
+     * @param columns 查询的列（字段名或列名），null或者空表示查询所有列（{@link #getSelectList()}）
+     * @return
+     */
+    RowMapper<T> getRowMapper(List<String> columns) {
+        String shape = columns == null || columns.isEmpty() ? "*" : String.join(",", columns);
+        RowMapper<T> mapper = rowMappers.get(shape);
+        if (mapper == null) {
+            ColumnMeta[] projection;
+            if (columns == null || columns.isEmpty()) {
+                projection = this.columns;
+            } else {
+                projection = new ColumnMeta[columns.size()];
+                for (int i = 0; i < projection.length; ++i) {
+                    String column = columns.get(i);
+                    ColumnMeta meta = getColumnByField(column);
+                    // 不是实体的字段（例如表达式）时为null，映射时跳过
+                    projection[i] = meta != null ? meta : getColumnByName(column);
+                }
+            }
+            mapper = new RowMapper<>(this, projection);
+            RowMapper<T> old = rowMappers.putIfAbsent(shape, mapper);
+            if (old != null) {
+                mapper = old;
+            }
+        }
+        return mapper;
+    }
+}
@@ -1,73 +1,671 @@
 package com.dd.edata.db;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.LongStream;
 
 /**
  * 数据库日志文件
+ * <p>
+ * 调用线程序列化记录后写入环形队列，日志写线程批量取出，一次write写入多条记录（group commit），
+ * 按db.log.syncMillis、db.log.syncRecords刷盘，db.log.syncStrict时每次写入后都刷盘；
+ * 文件格式不变（txid、操作类型、对象）
+ * <p>
+ * 日志分段写入log.[sid].[段号].data，超过db.log.segmentBytes后换下一段；日志写线程记录每段中还没有提交的事务数，
+ * 前面的段全部提交后写检查点（log.[sid].checkpoint：需要恢复的第一段、最小的未提交事务id），然后删除这些段，
+ * 恢复时只读检查点之后的段
+ * <p>
+ * 提交的事务（{@link #commit(long)}）不再每个写一条DB_TX_COMMIT，刷盘时写一条提交水位（DB_TX_WATERMARK）：
+ * 最小的未提交事务id和本次启动之后写入、还没有提交的事务id
+ * <p>
+ * 每段开头是{@link LogSerializer}的注册表，之后的记录中的实体类只写注册的id
  *
  * @author wangshupeng
  */
 public class FileDBLog {
-    private static long forceSyncTime = 1 * 1000;
+    private static final Logger logger = LoggerFactory.getLogger(FileDBLog.class);
+    private static final ThreadLocal<Output> outputHolder = ThreadLocal.withInitial(() -> new Output(1024, -1));
+    private static final int MAX_GROUP = 4096;
     private FilePadding filePadding = new FilePadding();
-    private volatile FileOutputStream fos = null;
-    private volatile Output out = null;
+    private FileOutputStream fos = null;
+    private FileChannel channel = null;
     private File logDir;
-    private long lastForceSyncTime = 0;
     private int sid;
-    private Kryo kryo = new Kryo();
+    private final Pattern segmentName;
+    /**
+     * 刷盘策略：距上次刷盘的毫秒数、未刷盘的记录数（0表示不按记录数），strict时每次写入后刷盘
+     */
+    private long syncMillis = 1000;
+    private int syncRecords = 0;
+    private boolean syncStrict = false;
+    private int ringSize = 65536;
+    private long segmentBytes = 64L * 1024 * 1024;
+    /**
+     * 本次启动写入的第一段，之前的段在恢复后删除
+     */
+    private final long firstSegment;
+    /**
+     * 以下只在日志写线程中访问：正在写的段，段号 -&gt; {未提交的事务数}，未提交的事务id -&gt; 段号
+     */
+    private long segment;
+    private final TreeMap<Long, int[]> segments = new TreeMap<>();
+    private final TreeMap<Long, Long> pending = new TreeMap<>();
+    /**
+     * 以下只在日志写线程中访问：先于记录写入的提交，已经提交、还没有低于提交水位的事务，写入过的最大事务id，上次写提交水位之后是否有新的提交
+     */
+    private final HashSet<Long> early = new HashSet<>();
+    private final TreeSet<Long> done = new TreeSet<>();
+    private long maxTx;
+    private boolean dirty;
+    /**
+     * 已经提交、还没有写入提交水位的事务，以及本次启动的第一个事务id（之前的事务不受本次的提交水位影响）
+     */
+    private final ConcurrentLinkedQueue<Long> commits = new ConcurrentLinkedQueue<>();
+    private long firstTx = 1;
+    private volatile LogSerializer serializer = LogSerializer.of(Collections.emptyList(), FileDBLog.class.getClassLoader());
+    private volatile LogRing<Record> ring;
+    private Thread writer;
+    private volatile boolean closed;
+    /**
+     * 正在写入环形队列的线程数，关闭时写线程等这些记录写入后再退出
+     */
+    private final AtomicInteger producers = new AtomicInteger();
+    private IOException writerError;
 
     public FileDBLog(int sid, File logDir) {
         this.logDir = logDir;
         this.sid = sid;
+        this.segmentName = Pattern.compile("log\\." + sid + "\\.(\\d+)\\.data");
+        long last = 0;
+        for (long n : listSegments().keySet()) {
+            last = Math.max(last, n);
+        }
+        this.firstSegment = last + 1;
+    }
+
+    /**
+     * 读取刷盘策略、环形队列大小和分段大小（db.log.syncMillis、db.log.syncRecords、db.log.syncStrict、db.log.ringSize、db.log.segmentBytes），在写日志之前调用
+     */
+    public synchronized void configure(Properties props) {
+        syncMillis = Math.max(0, Long.parseLong(props.getProperty("db.log.syncMillis", "1000")));
+        syncRecords = Math.max(0, Integer.parseInt(props.getProperty("db.log.syncRecords", "0")));
+        syncStrict = Boolean.parseBoolean(props.getProperty("db.log.syncStrict", "false"));
+        ringSize = Math.max(2, Integer.parseInt(props.getProperty("db.log.ringSize", "65536")));
+        segmentBytes = Math.max(1024 * 1024, Long.parseLong(props.getProperty("db.log.segmentBytes", "67108864")));
     }
 
-    public synchronized void close() throws IOException {
-        if (fos != null) {
-            fos.getChannel().force(false);
+    /**
+     * 启动时需要恢复的日志文件：旧版本的log.[sid].data，以及检查点之后、本次启动之前写入的段，按写入顺序
+     */
+    public List<File> recoveryFiles() {
+        List<File> files = new ArrayList<>();
+        File legacy = new File(logDir, "log." + sid + ".data");
+        if (legacy.exists()) {
+            files.add(legacy);
         }
-        if (out != null) {
-            out.close();
+        long from = 0;
+        File checkpoint = checkpointFile();
+        if (checkpoint.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(checkpoint))) {
+                from = in.readLong();
+                logger.info("sid {} db log checkpoint: segment {}, lowest uncommitted tx {}", sid, from, in.readLong());
+            } catch (IOException e) {
+                logger.error("sid {} read db log checkpoint error, recover from all segments!", sid, e);
+            }
         }
-        if (fos != null) {
-            fos.close();
+        for (Map.Entry<Long, File> e : listSegments().entrySet()) {
+            if (e.getKey() >= from && e.getKey() < firstSegment) {
+                files.add(e.getValue());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 恢复的写操作已经写入本次启动的日志并刷盘，删除之前的日志文件
+     */
+    public void discardRecovered() throws IOException {
+        sync();
+        new File(logDir, "log." + sid + ".data").delete();
+        for (Map.Entry<Long, File> e : listSegments().entrySet()) {
+            if (e.getKey() < firstSegment) {
+                e.getValue().delete();
+            }
+        }
+    }
+
+    /**
+     * 恢复失败时保留之前的日志文件（加上时间后缀，不会再被恢复或删除）
+     */
+    public void keepRecovered(List<File> files) {
+        String strDate = new SimpleDateFormat(".yyyy-MM-dd-HH-mm-ss").format(new Date());
+        for (File file : files) {
+            file.renameTo(new File(file.getPath() + strDate));
+        }
+    }
+
+    /**
+     * 等待之前写入的记录刷盘
+     */
+    public void sync() throws IOException {
+        if (ring == null) {
+            return;
         }
+        Record barrier = new Record(0, (byte) 0, null, new CompletableFuture<>());
+        put(barrier);
+        try {
+            barrier.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 写入队列中的记录、刷盘后关闭
+     */
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = writer;
+        }
+        if (t != null) {
+            ring.wakeup();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writerError != null) {
+            throw writerError;
+        }
+    }
+
+    public boolean append(long txid, byte op, Object obj) throws IOException {
+        append(txid, op, obj, false);
+        return true;
+    }
+
+    public boolean append(long txid, byte op) throws IOException {
+        return append(txid, op, null);
     }
 
-    public synchronized boolean append(long txid, byte op, Object obj) throws IOException {
-        if (out == null) {
-            fos = new FileOutputStream(new File(logDir, ("log." + sid + ".data")));
-            out = new Output(fos);
-            filePadding.setCurrentSize(fos.getChannel().position());
+    /**
+     * 注册实体类（@Table扫描到的），在写日志之前调用，开始写日志之后不再修改（当前段的注册表已经写入）
+     */
+    public synchronized void register(Collection<Class<?>> entities, ClassLoader cl) {
+        if (ring != null) {
+            logger.warn("sid {} db log already started, ignore entity registration", sid);
+            return;
         }
-        filePadding.padFile(fos.getChannel());
+        serializer = LogSerializer.of(entities, cl);
+    }
+
+    /**
+     * 本次启动的第一个事务id，在写日志之前调用
+     */
+    public synchronized void setFirstTx(long txid) {
+        this.firstTx = txid;
+    }
+
+    /**
+     * 事务已经提交（不写日志，下次刷盘时写入提交水位）
+     */
+    public void commit(long txid) {
+        commits.offer(txid);
+    }
+
+    /**
+     * 在调用线程中序列化后写入队列，由日志写线程写入文件
+     *
+     * @param durable 是否需要知道记录什么时候刷盘
+     * @return 记录刷盘后完成，写入出错时异常完成；durable为false时返回null
+     */
+    public CompletableFuture<Void> append(long txid, byte op, Object obj, boolean durable) throws IOException {
+        Output out = outputHolder.get();
+        out.clear();
         out.writeLong(txid);
         out.writeByte(op);
         if (obj != null) {
-            kryo.writeClassAndObject(out, obj);
+            serializer.write(out, obj);
+        }
+        Record record = new Record(txid, op, out.toBytes(), durable ? new CompletableFuture<>() : null);
+        put(record);
+        return record.future;
+    }
+
+    /**
+     * 写入环形队列：先计入正在写入的线程再检查是否已关闭，写线程退出前等待这些线程写完
+     */
+    private void put(Record record) throws IOException {
+        producers.incrementAndGet();
+        try {
+            if (!start().put(record)) {
+                throw new IOException("db log writer stopped");
+            }
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    private LogRing<Record> start() throws IOException {
+        LogRing<Record> r = ring;
+        if (r != null && !closed) {
+            return r;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("db log closed");
+            }
+            if (ring == null) {
+                open(firstSegment);
+                ring = new LogRing<>(ringSize);
+                writer = new Thread(this::run, "Edata-Log[" + sid + "]");
+                writer.setDaemon(true);
+                writer.start();
+            }
+            return ring;
         }
-        commit();
+    }
+
+    private void open(long n) throws IOException {
+        fos = new FileOutputStream(new File(logDir, "log." + sid + "." + n + ".data"));
+        channel = fos.getChannel();
+        filePadding = new FilePadding();
+        filePadding.setCurrentSize(channel.position());
+        ByteBuffer header = ByteBuffer.wrap(serializer.header());
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        segment = n;
+        segments.put(n, new int[1]);
+    }
+
+    /**
+     * 日志写线程：批量取出记录，写入文件，按策略刷盘后完成等待刷盘的记录，写满的段换下一段
+     */
+    private void run() {
+        List<CompletableFuture<Void>> waiting = new ArrayList<>();
+        Throwable error = null;
+        try {
+            writeRecords(waiting);
+        } catch (Throwable t) {
+            // Error等没有处理的异常，写线程退出，之后的写入直接失败
+            logger.error("sid {} db log writer stopped!", sid, t);
+            error = t;
+            complete(waiting, t);
+        } finally {
+            stopRing(error);
+        }
+    }
+
+    private void writeRecords(List<CompletableFuture<Void>> waiting) {
+        List<Record> group = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        long lastSync = System.nanoTime();
+        long lastWatermark = lastSync;
+        long syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        int unsynced = 0;
+        while (true) {
+            boolean closing = closed && producers.get() == 0;
+            group.clear();
+            if (ring.drainTo(group, MAX_GROUP) == 0) {
+                if (closing) {
+                    break;
+                }
+                long wait = unsynced > 0 ? Math.max(0, syncNanos - (System.nanoTime() - lastSync)) : TimeUnit.MILLISECONDS.toNanos(100);
+                if (wait > 0) {
+                    ring.await(wait);
+                }
+            }
+            try {
+                boolean barrier = false;
+                if (!group.isEmpty()) {
+                    buf = write(group, buf);
+                    for (Record record : group) {
+                        if (record.data == null) {
+                            barrier = true;
+                        } else {
+                            track(record);
+                            ++unsynced;
+                        }
+                        if (record.future != null) {
+                            waiting.add(record.future);
+                        }
+                    }
+                }
+                drainCommits();
+                long now = System.nanoTime();
+                // 提交水位最多每db.log.syncMillis写一条（strict时也是）
+                boolean watermark = dirty && (barrier || now - lastWatermark >= syncNanos);
+                if (barrier || watermark || (unsynced > 0 && (syncStrict || now - lastSync >= syncNanos || (syncRecords > 0 && unsynced >= syncRecords) || channel.position() >= segmentBytes))) {
+                    if (watermark) {
+                        buf = write(Collections.singletonList(watermark()), buf);
+                        lastWatermark = now;
+                    }
+                    channel.force(false);
+                    lastSync = now;
+                    unsynced = 0;
+                    complete(waiting, null);
+                    if (channel.position() >= segmentBytes) {
+                        roll();
+                    }
+                    checkpoint();
+                }
+            } catch (Exception e) {
+                logger.error("sid {} write db log error!", sid, e);
+                complete(waiting, e);
+            }
+        }
+        try {
+            drainCommits();
+            if (dirty) {
+                write(Collections.singletonList(watermark()), buf);
+            }
+            channel.force(false);
+            complete(waiting, null);
+            checkpoint();
+            channel.close();
+            fos.close();
+        } catch (IOException e) {
+            writerError = e;
+            complete(waiting, e);
+        }
+    }
+
+    /**
+     * 写线程退出后关闭环形队列，等待正在写入的线程结束；剩余的记录（只有写线程异常退出时才有）没有写入，刷盘结果异常完成
+     */
+    private void stopRing(Throwable error) {
+        ring.close();
+        while (producers.get() > 0) {
+            Thread.yield();
+        }
+        List<Record> left = new ArrayList<>();
+        ring.drainTo(left, Integer.MAX_VALUE);
+        if (left.isEmpty()) {
+            return;
+        }
+        logger.error("sid {} {} records not written to db log", sid, left.size());
+        IOException e = new IOException("db log writer stopped", error);
+        for (Record record : left) {
+            if (record.future != null) {
+                record.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 记录事务写在哪一段，提交后从所在的段中减去
+     */
+    private void track(Record record) {
+        if (record.op == DBService.DB_TX_COMMIT) {
+            committed(record.tx);
+        } else {
+            maxTx = Math.max(maxTx, record.tx);
+            if (early.remove(record.tx)) {
+                // 已经提交，之后的提交水位中列为已提交
+                done.add(record.tx);
+                dirty = true;
+            } else {
+                pending.put(record.tx, segment);
+                ++segments.get(segment)[0];
+            }
+        }
+    }
+
+    private void drainCommits() {
+        Long tx;
+        while ((tx = commits.poll()) != null) {
+            if (!committed(tx)) {
+                // 记录还在环形队列中（另一个线程先占了前面的位置），写入时不再记为未提交
+                early.add(tx);
+            }
+        }
+    }
+
+    private boolean committed(long tx) {
+        Long n = pending.remove(tx);
+        if (n == null) {
+            return false;
+        }
+        --segments.get(n)[0];
+        done.add(tx);
+        dirty = true;
         return true;
     }
 
-    public boolean append(long txid, byte op) throws IOException {
-        return append(txid, op, null);
+    /**
+     * 提交水位记录：txid为最小的未提交事务id（没有时为写入过的最大事务id+1），之前写入的本次启动的事务中低于它的都已经提交，
+     * 高于它的只列出已经提交的（MySQL不可用时没有新的提交，记录不随未提交的事务增长）
+     */
+    private Record watermark() {
+        long low = pending.isEmpty() ? maxTx + 1 : pending.firstKey();
+        done.headSet(low).clear();
+        long[] ids = new long[done.size()];
+        int i = 0;
+        for (long tx : done) {
+            ids[i++] = tx;
+        }
+        Output out = outputHolder.get();
+        out.clear();
+        out.writeLong(low);
+        out.writeByte(DBService.DB_TX_WATERMARK);
+        serializer.write(out, new Watermark(firstTx, low, ids));
+        dirty = false;
+        return new Record(low, DBService.DB_TX_WATERMARK, out.toBytes(), null);
+    }
+
+    /**
+     * 当前段（已刷盘）去掉预分配的部分后关闭，写下一段
+     */
+    private void roll() throws IOException {
+        channel.truncate(channel.position());
+        channel.close();
+        fos.close();
+        open(segment + 1);
     }
 
-    private void commit() throws IOException {
-        if (out != null) {
-            out.flush();
+    /**
+     * 删除最前面全部提交的段（不包括正在写的段），删除之前写检查点
+     */
+    private void checkpoint() throws IOException {
+        List<Long> done = new ArrayList<>();
+        while (segments.size() > 1 && segments.firstEntry().getValue()[0] == 0) {
+            done.add(segments.pollFirstEntry().getKey());
+        }
+        if (done.isEmpty()) {
+            return;
+        }
+        File tmp = new File(logDir, "log." + sid + ".checkpoint.tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(segments.firstKey());
+            data.writeLong(pending.isEmpty() ? 0 : pending.firstKey());
+            data.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), checkpointFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long n : done) {
+            new File(logDir, "log." + sid + "." + n + ".data").delete();
         }
-        fos.flush();
-        long now = System.currentTimeMillis();
-        if (now - lastForceSyncTime > forceSyncTime) {
-            fos.getChannel().force(false);
-            lastForceSyncTime = now;
+    }
+
+    private File checkpointFile() {
+        return new File(logDir, "log." + sid + ".checkpoint");
+    }
+
+    /**
+     * 段号 -&gt; 日志目录中的段文件
+     */
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] list = logDir.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                Matcher m = segmentName.matcher(file.getName());
+                if (m.matches()) {
+                    files.put(Long.parseLong(m.group(1)), file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 一组记录用尽量少的write写入
+     *
+     * @return 写缓冲区（记录超过缓冲区大小时扩大）
+     */
+    private ByteBuffer write(List<Record> group, ByteBuffer buf) throws IOException {
+        filePadding.padFile(channel);
+        buf.clear();
+        for (Record record : group) {
+            if (record.data == null) {
+                continue;
+            }
+            if (record.data.length > buf.remaining()) {
+                flush(buf);
+                if (record.data.length > buf.capacity()) {
+                    buf = ByteBuffer.allocateDirect(Integer.highestOneBit(record.data.length) << 1);
+                }
+            }
+            buf.put(record.data);
+        }
+        flush(buf);
+        return buf;
+    }
+
+    private void flush(ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private static void complete(List<CompletableFuture<Void>> waiting, Throwable error) {
+        for (CompletableFuture<Void> future : waiting) {
+            if (error == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(error);
+            }
+        }
+        waiting.clear();
+    }
+
+    /**
+     * 提交水位：from之后（包括from）的事务中，写在这条记录之前的低于low的都已经提交，高于low的只有committed（升序）已经提交；
+     * committed按与前一个的差值变长编码
+     */
+    static class Watermark implements KryoSerializable {
+        long from;
+        long low;
+        long[] committed;
+
+        Watermark() {
+        }
+
+        Watermark(long from, long low, long[] committed) {
+            this.from = from;
+            this.low = low;
+            this.committed = committed;
+        }
+
+        /**
+         * 写在这条记录之前的事务是否已经提交
+         */
+        boolean isCommitted(long tx) {
+            return tx >= from && (tx < low || Arrays.binarySearch(committed, tx) >= 0);
+        }
+
+        /**
+         * 合并同一次启动的两条提交水位，结果包含两者确认的提交，对写在两条记录之前的事务有效
+         */
+        Watermark merge(Watermark other) {
+            long max = Math.max(low, other.low);
+            long[] ids = LongStream.concat(Arrays.stream(committed), Arrays.stream(other.committed))
+                    .filter(tx -> tx > max).sorted().distinct().toArray();
+            return new Watermark(from, max, ids);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeVarLong(from, true);
+            output.writeVarLong(low, true);
+            output.writeVarInt(committed.length, true);
+            long last = low;
+            for (long tx : committed) {
+                output.writeVarLong(tx - last, true);
+                last = tx;
+            }
+        }
+
+        @Override
+        public void read(Kryo kryo, Input input) {
+            from = input.readVarLong(true);
+            low = input.readVarLong(true);
+            committed = new long[input.readVarInt(true)];
+            long last = low;
+            for (int i = 0; i < committed.length; ++i) {
+                committed[i] = last += input.readVarLong(true);
+            }
+        }
+    }
+
+    private static final class Record {
+        final long tx;
+        final byte op;
+        /**
+         * null表示只等待之前的记录刷盘（{@link #sync()}）
+         */
+        final byte[] data;
+        final CompletableFuture<Void> future;
+
+        Record(long tx, byte op, byte[] data, CompletableFuture<Void> future) {
+            this.tx = tx;
+            this.op = op;
+            this.data = data;
+            this.future = future;
         }
     }
 }
@@ -1,6 +1,9 @@
 package com.dd.edata.db;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
@@ -61,6 +64,79 @@ public interface IDBProxy {
      */
     <T> Future<List<T>> selectListAsync(Consumer<List<T>> callback, Executor callbackExecutor, Class<T> clazz, List<String> columns, DBWhere... wheres);
 
+    /**
+     * 按一组主键查询对象
+     *
+     * @param clazz 对象class
+     * @param ids   主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return 按ids的顺序排列的 主键-&gt;对象，不存在的主键不包含在内
+     * @throws Exception
+     */
+    <T> Map<Object, T> selectByIds(Class<T> clazz, Collection<?> ids) throws Exception;
+
+    /**
+     * 异步按一组主键查询对象
+     *
+     * @param callback         查询回调接口
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param ids              主键列表，联合主键时每个元素是按@TablePrimaryKey顺序的List或者Object[]
+     * @return
+     */
+    <T> Future<Map<Object, T>> selectByIdsAsync(Consumer<Map<Object, T>> callback, Executor callbackExecutor, Class<T> clazz, Collection<?> ids);
+
+    /**
+     * 流式查询一组对象，逐行回调，内存占用与数据量无关
+     *
+     * @param clazz    对象class
+     * @param consumer 每一行数据的处理接口
+     * @param columns  只查询指定列
+     * @param wheres   查询条件
+     * @return 处理的数据行数
+     * @throws Exception
+     */
+    <T> int selectForEach(Class<T> clazz, Consumer<? super T> consumer, List<String> columns, DBWhere... wheres) throws Exception;
+
+    /**
+     * 异步流式查询一组对象，逐行回调，内存占用与数据量无关
+     *
+     * @param callback         查询结束的回调接口，参数为处理的数据行数
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param consumer         每一行数据的处理接口
+     * @param columns          只查询指定列
+     * @param wheres           查询条件
+     * @return
+     */
+    <T> Future<Integer> selectForEachAsync(Consumer<Integer> callback, Executor callbackExecutor, Class<T> clazz, Consumer<? super T> consumer, List<String> columns, DBWhere... wheres);
+
+    /**
+     * 按主键顺序（keyset分页）查询一页对象
+     *
+     * @param clazz    对象class
+     * @param after    上一页的最后一条数据，null表示查询第一页
+     * @param pageSize 每页数据条数
+     * @param columns  只查询指定列（必须包含主键）
+     * @param wheres   查询条件（不能包含排序和LIMIT）
+     * @return
+     * @throws Exception
+     */
+    <T> List<T> selectPage(Class<T> clazz, T after, int pageSize, List<String> columns, DBWhere... wheres) throws Exception;
+
+    /**
+     * 异步按主键顺序（keyset分页）查询一页对象
+     *
+     * @param callback         查询回调接口
+     * @param callbackExecutor 回调方法执行器
+     * @param clazz            对象class
+     * @param after            上一页的最后一条数据，null表示查询第一页
+     * @param pageSize         每页数据条数
+     * @param columns          只查询指定列（必须包含主键）
+     * @param wheres           查询条件（不能包含排序和LIMIT）
+     * @return
+     */
+    <T> Future<List<T>> selectPageAsync(Consumer<List<T>> callback, Executor callbackExecutor, Class<T> clazz, T after, int pageSize, List<String> columns, DBWhere... wheres);
+
     /**
      * 查询对象数量
      *
@@ -237,6 +313,88 @@ public interface IDBProxy {
      */
     <T> Future<int[]> replaceBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs);
 
+    /**
+     * 插入或更新一条数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param t       数据
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return 执行成功返回true
+     * @throws Exception
+     */
+    <T> boolean upsert(T t, List<String> columns) throws Exception;
+
+    /**
+     * 异步插入或更新一条数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param callback         回调接口
+     * @param callbackExecutor 回调接口执行器
+     * @param t                数据
+     * @param columns          主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return
+     */
+    <T> Future<Boolean> upsertAsync(Consumer<Boolean> callback, Executor callbackExecutor, T t, List<String> columns);
+
+    /**
+     * 插入或更新一组数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param objs    数据列表
+     * @param columns 主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return 每条数据影响的行数：1表示插入，2表示更新，0表示已存在并且没有变化
+     * @throws Exception
+     */
+    <T> int[] upsertBatch(List<T> objs, List<String> columns) throws Exception;
+
+    /**
+     * 异步插入或更新一组数据（INSERT ... ON DUPLICATE KEY UPDATE）
+     *
+     * @param callback         回调接口
+     * @param callbackExecutor 回调接口执行器
+     * @param objs             数据列表
+     * @param columns          主键或唯一索引冲突时更新的字段，null或者空表示所有非主键字段
+     * @return
+     */
+    <T> Future<int[]> upsertBatchAsync(Consumer<int[]> callback, Executor callbackExecutor, List<T> objs, List<String> columns);
+
+    /**
+     * 在同一个连接、同一个事务中执行一组写操作
+     *
+     * @param transaction 事务中的操作
+     * @return 每个操作影响的行数，事务回滚时返回null
+     * @throws Exception
+     */
+    int[] transaction(DBTransaction transaction) throws Exception;
+
+    /**
+     * 异步在同一个连接、同一个事务中执行一组写操作
+     *
+     * @param callback         回调接口，参数为每个操作影响的行数，事务回滚时为null
+     * @param callbackExecutor 回调接口执行器
+     * @param transaction      事务中的操作
+     * @return
+     */
+    Future<int[]> transactionAsync(Consumer<int[]> callback, Executor callbackExecutor, DBTransaction transaction);
+
+    /**
+     * 批量导入数据（LOAD DATA LOCAL INFILE，不支持时分段批量REPLACE），冲突时替换已有数据，不写日志
+     *
+     * @param clazz 表映射的class
+     * @param rows  数据
+     * @return 导入的行数，出错时返回-1
+     * @throws Exception
+     */
+    <T> long bulkLoad(Class<T> clazz, Iterator<? extends T> rows) throws Exception;
+
+    /**
+     * 异步批量导入数据（LOAD DATA LOCAL INFILE，不支持时分段批量REPLACE），冲突时替换已有数据，不写日志
+     *
+     * @param callback         回调接口，参数为导入的行数，出错时为-1
+     * @param callbackExecutor 回调接口执行器
+     * @param clazz            表映射的class
+     * @param rows             数据，在执行线程中读取
+     * @return
+     */
+    <T> Future<Long> bulkLoadAsync(Consumer<Long> callback, Executor callbackExecutor, Class<T> clazz, Iterator<? extends T> rows);
+
     /**
      * 删除表中所有数据（慎重，再慎重！！！）
      *
@@ -0,0 +1,75 @@
+package com.dd.edata.db;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 按主键分配执行线程（db.lane.keyAffinity）时，整个表的操作（按条件的update/delete、truncate、批量写入、非主键查询）的执行器，
+ * 以及涉及多个执行线程的事务的执行器
+ * <p>
+ * 任务排在所有（或者指定的几个）执行线程之后：每个执行线程执行完之前提交的操作后在屏障处等待，
+ * 全部到达后在第一个执行线程中执行任务，执行结束后其他执行线程继续；
+ * 提交过程加锁，保证多个屏障在所有执行线程中的顺序相同
+ *
+ * @author wangshupeng
+ */
+final class LaneBarrier implements Executor {
+    private final ExecutorService[] lanes;
+
+    LaneBarrier(ExecutorService[] lanes) {
+        this.lanes = lanes;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(Arrays.asList(lanes), task);
+    }
+
+    /**
+     * 在指定的几个执行线程之后执行任务
+     *
+     * @param lanes 执行线程，不能重复
+     */
+    synchronized void execute(List<? extends Executor> lanes, Runnable task) {
+        CountDownLatch arrived = new CountDownLatch(lanes.size() - 1);
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            for (int i = 1; i < lanes.size(); ++i) {
+                lanes.get(i).execute(() -> {
+                    arrived.countDown();
+                    awaitUninterruptibly(done);
+                });
+            }
+            lanes.get(0).execute(() -> {
+                awaitUninterruptibly(arrived);
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            });
+        } catch (RuntimeException e) {
+            // 提交失败（例如已经关闭）时放行已经提交的等待
+            done.countDown();
+            throw e;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.dd.edata.db;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * 单条写操作的微批（db.batch.size）
+ * <p>
+ * 同一个class同一个执行线程的单条insert/replace/update/delete先放入当前批次，批次提交到执行线程后，
+ * 相邻的同类操作合并成一次批量执行；该class的其他操作提交前先封闭当前批次，保证执行顺序与提交顺序一致
+ *
+ * @author wangshupeng
+ */
+final class LaneBatcher {
+    static final byte INSERT = 0;
+    static final byte REPLACE = 1;
+    static final byte UPDATE = 2;
+    static final byte DELETE = 3;
+    static final byte UPSERT = 4;
+    private static final String[] NAMES = {"addAsync", "replaceAsync", "updateAsync", "deleteAsync", "upsertAsync"};
+
+    private final int batchSize;
+    private final long lingerMillis;
+    private final Runner runner;
+    private final ScheduledExecutorService timer;
+    /**
+     * class -> 执行线程 -> 当前批次，按主键分配执行线程（db.lane.keyAffinity）时一个class有多个执行线程
+     */
+    private final ConcurrentMap<Class<?>, ConcurrentMap<Executor, Lane>> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * @param batchSize    每批最多的操作数
+     * @param lingerMillis 批次提交前等待更多操作的毫秒数，0表示立即提交（执行线程繁忙时自然形成批次）
+     * @param runner       在执行线程中执行一组相邻的同类操作
+     */
+    LaneBatcher(int sid, int batchSize, long lingerMillis, Runner runner) {
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.runner = runner;
+        this.timer = lingerMillis <= 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Edata-Batch[" + sid + "]");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static String nameOf(byte kind) {
+        return NAMES[kind];
+    }
+
+    /**
+     * @param executor 操作所在的执行线程
+     */
+    void add(Class<?> clazz, Executor executor, Op op) {
+        Lane lane = lanes.computeIfAbsent(clazz, k -> new ConcurrentHashMap<>()).computeIfAbsent(executor, Lane::new);
+        synchronized (lane) {
+            Batch batch = lane.open;
+            if (batch == null) {
+                batch = lane.open = new Batch(DBPriority.current());
+                if (timer == null) {
+                    submit(clazz, lane, batch);
+                } else {
+                    final Batch b = batch;
+                    timer.schedule(() -> {
+                        synchronized (lane) {
+                            submit(clazz, lane, b);
+                        }
+                    }, lingerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            batch.ops.add(op);
+            if (batch.ops.size() >= batchSize) {
+                submit(clazz, lane, batch);
+                lane.open = null;
+            }
+        }
+    }
+
+    /**
+     * 封闭当前批次，之后的单条操作进入新的批次；在该class的其他操作提交到执行线程之前调用
+     */
+    void seal(Class<?> clazz) {
+        Map<Executor, Lane> executors = lanes.get(clazz);
+        if (executors == null) {
+            return;
+        }
+        for (Lane lane : executors.values()) {
+            synchronized (lane) {
+                if (lane.open != null) {
+                    submit(clazz, lane, lane.open);
+                    lane.open = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 提交所有等待中的批次（关闭前调用）
+     */
+    void shutdown() {
+        for (Class<?> clazz : lanes.keySet()) {
+            seal(clazz);
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private void submit(Class<?> clazz, Lane lane, Batch batch) {
+        if (batch.submitted) {
+            return;
+        }
+        batch.submitted = true;
+        LaneExecutor.execute(lane.executor, () -> {
+            synchronized (lane) {
+                if (lane.open == batch) {
+                    lane.open = null;
+                }
+            }
+            run(clazz, batch.ops);
+        }, clazz, batch.priority);
+    }
+
+    /**
+     * 按相邻的同类操作分组执行，upsert还需要冲突时更新的列相同
+     */
+    private void run(Class<?> clazz, List<Op> ops) {
+        int start = 0;
+        for (int i = 1; i <= ops.size(); ++i) {
+            if (i == ops.size() || !ops.get(i).sameBatch(ops.get(start))) {
+                runner.run(clazz, ops.get(start).kind, ops.subList(start, i));
+                start = i;
+            }
+        }
+    }
+
+    interface Runner {
+        void run(Class<?> clazz, byte kind, List<Op> ops);
+    }
+
+    static final class Op {
+        final byte kind;
+        final Object bean;
+        /**
+         * update更新的列、upsert冲突时更新的列，null表示所有列
+         */
+        final BitSet columns;
+        /**
+         * 执行结束后在执行线程中调用，参数为影响的行数，出错时为0
+         */
+        final IntConsumer done;
+
+        Op(byte kind, Object bean, BitSet columns, IntConsumer done) {
+            this.kind = kind;
+            this.bean = bean;
+            this.columns = columns;
+            this.done = done;
+        }
+
+        boolean sameBatch(Op o) {
+            return kind == o.kind && (kind != UPSERT || Objects.equals(columns, o.columns));
+        }
+    }
+
+    private static final class Lane {
+        final Executor executor;
+        Batch open;
+
+        Lane(Executor executor) {
+            this.executor = executor;
+        }
+    }
+
+    private static final class Batch {
+        final List<Op> ops = new ArrayList<>();
+        /**
+         * 创建批次的操作的优先级
+         */
+        final DBPriority priority;
+        boolean submitted;
+
+        Batch(DBPriority priority) {
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.dd.edata.db;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单线程的执行线程，记录排队（包括正在执行）的任务数和写操作估算的字节数，用于写操作的流量控制（db.lane.maxDepth、db.lane.maxBytes）
+ * <p>
+ * 队列本身不限制长度，内部的任务（微批、延迟写、屏障）提交时不会阻塞或者失败，只在写操作提交前检查；
+ * 任务按优先级排队，见{@link LaneQueue}
+ *
+ * @author wangshupeng
+ */
+final class LaneExecutor extends ThreadPoolExecutor {
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Object lock = new Object();
+    private volatile Thread thread;
+
+    /**
+     * @param maxWaitMillis 低优先级任务最多被插队的毫秒数（db.lane.priority.maxWaitMillis）
+     */
+    LaneExecutor(ThreadFactory threadFactory, long maxWaitMillis) {
+        super(1, 1, 0L, TimeUnit.MILLISECONDS, new LaneQueue(maxWaitMillis), threadFactory);
+    }
+
+    /**
+     * 没有key的任务，不能与其他任务交换顺序
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(task, 0, null, DBPriority.NORMAL);
+    }
+
+    /**
+     * @param size     任务估算的字节数，执行结束后释放
+     * @param key      保持顺序的key（表映射的class），同一个key的任务按提交顺序执行，null表示不能与任何任务交换顺序
+     * @param priority 优先级
+     */
+    void execute(Runnable task, long size, Object key, DBPriority priority) {
+        depth.incrementAndGet();
+        bytes.addAndGet(size);
+        try {
+            super.execute(new LaneQueue.Task(() -> {
+                try {
+                    task.run();
+                } finally {
+                    release(size);
+                }
+            }, key, priority));
+        } catch (RuntimeException e) {
+            release(size);
+            throw e;
+        }
+    }
+
+    /**
+     * 提交到执行器，执行线程时记录key和优先级
+     */
+    static void execute(Executor es, Runnable task, Object key, DBPriority priority) {
+        if (es instanceof LaneExecutor) {
+            ((LaneExecutor) es).execute(task, 0, key, priority);
+        } else {
+            es.execute(task);
+        }
+    }
+
+    void setMaxWaitMillis(long maxWaitMillis) {
+        ((LaneQueue) getQueue()).setMaxWaitMillis(maxWaitMillis);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        thread = t;
+    }
+
+    private void release(long size) {
+        depth.decrementAndGet();
+        bytes.addAndGet(-size);
+        if (waiters.get() > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 排队（包括正在执行）的任务数
+     */
+    int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * 排队的写操作估算的字节数
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * 是否在该执行线程中（执行线程中提交写操作时不能等待自己）
+     */
+    boolean inLane() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 是否可以再提交一个写操作，队列为空时总是可以提交
+     *
+     * @param maxDepth 最大任务数，0表示不限制
+     * @param maxBytes 最大字节数，0表示不限制
+     * @param size     写操作估算的字节数
+     */
+    boolean hasCapacity(int maxDepth, long maxBytes, long size) {
+        int d = depth.get();
+        if (d == 0) {
+            return true;
+        }
+        return (maxDepth <= 0 || d < maxDepth) && (maxBytes <= 0 || bytes.get() + size <= maxBytes);
+    }
+
+    /**
+     * 等待到可以提交
+     */
+    void awaitCapacity(int maxDepth, long maxBytes, long size) throws InterruptedException {
+        if (hasCapacity(maxDepth, maxBytes, size)) {
+            return;
+        }
+        waiters.incrementAndGet();
+        try {
+            synchronized (lock) {
+                while (!hasCapacity(maxDepth, maxBytes, size) && !isShutdown()) {
+                    lock.wait(100);
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.dd.edata.db;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 执行线程的任务队列，按优先级（{@link DBPriority}）取出任务
+ * <p>
+ * 队列分成若干段：没有key的任务（例如屏障、内部任务）单独成为一段，前后的任务不能越过它；
+ * 其他段中每个优先级一个先进先出队列，同一个key（表）排队的任务总是在同一个优先级的队列中（后提交的高优先级任务把同一个key之前的任务一起提升），
+ * 所以同一个key的任务按提交顺序执行；优先取高优先级的任务，等待超过maxWaitMillis的任务先取
+ *
+ * @author wangshupeng
+ */
+final class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private static final int LEVELS = DBPriority.values().length;
+
+    private volatile long maxWaitNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long seq;
+    private int count;
+
+    /**
+     * @param maxWaitMillis 低优先级任务最多被插队的毫秒数
+     */
+    LaneQueue(long maxWaitMillis) {
+        setMaxWaitMillis(maxWaitMillis);
+    }
+
+    /**
+     * @param maxWaitMillis 低优先级任务最多被插队的毫秒数，0表示按提交顺序执行
+     */
+    void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        Task task = r instanceof Task ? (Task) r : new Task(r, null, DBPriority.NORMAL);
+        lock.lock();
+        try {
+            task.seq = ++seq;
+            task.enqueueTime = System.nanoTime();
+            Segment tail = segments.peekLast();
+            if (task.key == null) {
+                segments.addLast(new Segment(task));
+            } else {
+                if (tail == null || tail.fence != null) {
+                    segments.addLast(tail = new Segment(null));
+                }
+                tail.add(task);
+            }
+            ++count;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Segment head = segments.peekFirst();
+            return head == null ? null : head.peek(System.nanoTime(), maxWaitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (Iterator<Segment> it = segments.iterator(); it.hasNext(); ) {
+                Segment segment = it.next();
+                if (segment.remove(o)) {
+                    if (segment.isEmpty()) {
+                        it.remove();
+                    }
+                    --count;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按段的顺序返回所有任务的快照
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> tasks = new ArrayList<>(count);
+            for (Segment segment : segments) {
+                segment.collect(tasks);
+            }
+            return tasks.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            Runnable r;
+            while (n < maxElements && (r = dequeue()) != null) {
+                c.add(r);
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Runnable dequeue() {
+        Segment head;
+        while ((head = segments.peekFirst()) != null && head.isEmpty()) {
+            segments.pollFirst();
+        }
+        if (head == null) {
+            return null;
+        }
+        Task task = head.poll(System.nanoTime(), maxWaitNanos);
+        if (head.isEmpty()) {
+            segments.pollFirst();
+        }
+        --count;
+        return task;
+    }
+
+    /**
+     * 队列中的任务
+     */
+    static final class Task implements Runnable {
+        final Runnable task;
+        /**
+         * 保持顺序的key（表映射的class），null表示不能与任何任务交换顺序
+         */
+        final Object key;
+        final DBPriority priority;
+        long seq;
+        long enqueueTime;
+
+        Task(Runnable task, Object key, DBPriority priority) {
+            this.task = task;
+            this.key = key;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static final class Segment {
+        /**
+         * 没有key的任务，单独成为一段
+         */
+        Task fence;
+        final ArrayDeque<Task>[] queues;
+        /**
+         * key -&gt; {所在的优先级, 排队的任务数}
+         */
+        final Map<Object, int[]> keys;
+        int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Segment(Task fence) {
+            this.fence = fence;
+            if (fence == null) {
+                queues = new ArrayDeque[LEVELS];
+                for (int i = 0; i < LEVELS; ++i) {
+                    queues[i] = new ArrayDeque<>();
+                }
+                keys = new HashMap<>();
+            } else {
+                queues = null;
+                keys = null;
+                size = 1;
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(Task task) {
+            int level = task.priority.ordinal();
+            int[] k = keys.get(task.key);
+            if (k == null) {
+                keys.put(task.key, k = new int[]{level, 0});
+            } else if (level < k[0]) {
+                // 提升同一个key之前的任务，保持它们的顺序
+                for (Iterator<Task> it = queues[k[0]].iterator(); it.hasNext(); ) {
+                    Task t = it.next();
+                    if (t.key.equals(task.key)) {
+                        it.remove();
+                        queues[level].addLast(t);
+                    }
+                }
+                k[0] = level;
+            }
+            queues[k[0]].addLast(task);
+            ++k[1];
+            ++size;
+        }
+
+        Task peek(long now, long maxWaitNanos) {
+            if (fence != null) {
+                return fence;
+            }
+            int level = select(now, maxWaitNanos);
+            return level < 0 ? null : queues[level].peekFirst();
+        }
+
+        Task poll(long now, long maxWaitNanos) {
+            if (fence != null) {
+                Task t = fence;
+                fence = null;
+                size = 0;
+                return t;
+            }
+            int level = select(now, maxWaitNanos);
+            if (level < 0) {
+                return null;
+            }
+            Task t = queues[level].pollFirst();
+            removed(t);
+            return t;
+        }
+
+        /**
+         * 等待超时的任务中最早提交的优先，否则优先级最高的
+         */
+        private int select(long now, long maxWaitNanos) {
+            int level = -1;
+            int oldest = -1;
+            for (int i = 0; i < LEVELS; ++i) {
+                Task t = queues[i].peekFirst();
+                if (t == null) {
+                    continue;
+                }
+                if (level < 0) {
+                    level = i;
+                }
+                if (now - t.enqueueTime >= maxWaitNanos && (oldest < 0 || t.seq < queues[oldest].peekFirst().seq)) {
+                    oldest = i;
+                }
+            }
+            return oldest >= 0 ? oldest : level;
+        }
+
+        boolean remove(Object o) {
+            if (fence != null) {
+                if (fence == o) {
+                    fence = null;
+                    size = 0;
+                    return true;
+                }
+                return false;
+            }
+            for (ArrayDeque<Task> queue : queues) {
+                if (queue.removeFirstOccurrence(o)) {
+                    removed((Task) o);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void removed(Task t) {
+            int[] k = keys.get(t.key);
+            if (--k[1] == 0) {
+                keys.remove(t.key);
+            }
+            --size;
+        }
+
+        void collect(List<Runnable> tasks) {
+            if (fence != null) {
+                tasks.add(fence);
+            } else {
+                for (ArrayDeque<Task> queue : queues) {
+                    tasks.addAll(queue);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.dd.edata.db;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 多生产者、单消费者的有界环形队列（不加锁），日志写线程从中批量取出记录
+ * <p>
+ * 每个槽位有一个序号：等于写入位置时可以写入，写入后设置为位置+1，消费者取出后设置为位置+容量
+ *
+ * @author wangshupeng
+ */
+final class LogRing<E> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 只在消费者线程中访问
+     */
+    private long head;
+    private volatile Thread consumer;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity 容量，向上取2的幂
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * 写入一个元素，队列满时等待消费者取出
+     *
+     * @return 队列已关闭（消费者已退出）时返回false
+     */
+    boolean put(E e) {
+        long pos;
+        while (true) {
+            if (closed) {
+                return false;
+            }
+            pos = tail.get();
+            long dif = sequences.get((int) pos & mask) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                // 队列满
+                wakeup();
+                LockSupport.parkNanos(10_000L);
+            }
+        }
+        int i = (int) pos & mask;
+        items[i] = e;
+        sequences.set(i, pos + 1);
+        if (sleeping) {
+            wakeup();
+        }
+        return true;
+    }
+
+    /**
+     * 按写入的顺序取出所有已写入的元素（只能在消费者线程中调用）
+     *
+     * @return 取出的数量
+     */
+    @SuppressWarnings("unchecked")
+    int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        while (n < maxElements) {
+            int i = (int) head & mask;
+            if (sequences.get(i) != head + 1) {
+                break;
+            }
+            c.add((E) items[i]);
+            items[i] = null;
+            sequences.set(i, head + mask + 1);
+            ++head;
+            ++n;
+        }
+        return n;
+    }
+
+    /**
+     * 消费者在队列为空时等待，有新元素、{@link #wakeup()}或者超时后返回
+     */
+    void await(long nanos) {
+        consumer = Thread.currentThread();
+        sleeping = true;
+        try {
+            if (sequences.get((int) head & mask) != head + 1) {
+                return;
+            }
+            LockSupport.parkNanos(this, nanos);
+        } finally {
+            sleeping = false;
+        }
+    }
+
+    /**
+     * 消费者退出时调用，之后的{@link #put}返回false；已经占用位置的元素仍然可以取出
+     */
+    void close() {
+        closed = true;
+    }
+
+    void wakeup() {
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.dd.edata.db;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 数据库日志的序列化
+ * <p>
+ * 实体类（@Table扫描到的，按类名排序）和日志中的内部类按固定的id注册，记录中只写id不写类名；
+ * 注册表写在每个日志段的开头，恢复时按段中的注册表解码，之后增减实体类不影响已经写入的段。
+ * Kryo实例放在池中由多个线程共用，每个实例缓存自己的字段序列化器
+ *
+ * @author wangshupeng
+ */
+final class LogSerializer {
+    private static final Logger logger = LoggerFactory.getLogger(LogSerializer.class);
+    /**
+     * 日志段开头的标记（负数，不会是事务id）
+     */
+    static final long MAGIC = 0xEDA7A106L | Long.MIN_VALUE;
+    private static final int VERSION = 1;
+    /**
+     * 注册的id从这里开始，之前的留给Kryo默认注册的类型
+     */
+    private static final int FIRST_ID = 100;
+    private static final Class<?>[] BUILTIN = {
+            ArrayList.class, Class.class, Date.class, long[].class,
+            DBWhere.class, DBWhere[].class, DBWhere.WhereCond.class, DBTransaction.Op.class, FileDBLog.Watermark.class,
+            DBServiceWithLogProxy.OperateData.class, DBServiceWithLogProxy.UpsertData.class
+    };
+
+    /**
+     * 下标+FIRST_ID为注册的id，找不到的类为null
+     */
+    private final String[] names;
+    private final Class<?>[] classes;
+    private final ClassLoader classLoader;
+    private final KryoPool pool;
+
+    private LogSerializer(String[] names, Class<?>[] classes, ClassLoader classLoader) {
+        this.names = names;
+        this.classes = classes;
+        this.classLoader = classLoader;
+        this.pool = new KryoPool.Builder(this::newKryo).softReferences().build();
+    }
+
+    /**
+     * 写日志使用：注册内部类和实体类
+     */
+    static LogSerializer of(Collection<Class<?>> entities, ClassLoader cl) {
+        List<Class<?>> list = new ArrayList<>(entities);
+        list.sort((a, b) -> a.getName().compareTo(b.getName()));
+        list.addAll(0, Arrays.asList(BUILTIN));
+        Class<?>[] classes = list.toArray(new Class<?>[0]);
+        String[] names = new String[classes.length];
+        for (int i = 0; i < classes.length; ++i) {
+            names[i] = classes[i].getName();
+        }
+        return new LogSerializer(names, classes, cl);
+    }
+
+    /**
+     * 没有注册表的日志文件（旧版本写入的）使用：不注册任何类
+     */
+    static LogSerializer unregistered(ClassLoader cl) {
+        return new LogSerializer(new String[0], new Class<?>[0], cl);
+    }
+
+    /**
+     * 读取日志段开头的注册表（{@link #MAGIC}之后）
+     */
+    static LogSerializer readHeader(Input in, ClassLoader cl) {
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IllegalStateException("unsupported db log version " + version);
+        }
+        String[] names = new String[in.readInt()];
+        Class<?>[] classes = new Class<?>[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = in.readString();
+            try {
+                classes[i] = Class.forName(names[i], false, cl);
+            } catch (ClassNotFoundException e) {
+                // 只有段中有这个类的记录时才会解码失败
+                logger.warn("db log class {} not found", names[i]);
+            }
+        }
+        return new LogSerializer(names, classes, cl);
+    }
+
+    /**
+     * 写在日志段开头的注册表
+     */
+    byte[] header() {
+        Output out = new Output(256, -1);
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeString(name);
+        }
+        return out.toBytes();
+    }
+
+    void write(Output out, Object obj) {
+        Kryo kryo = pool.borrow();
+        try {
+            kryo.writeClassAndObject(out, obj);
+        } finally {
+            pool.release(kryo);
+        }
+    }
+
+    Object read(Input in) {
+        Kryo kryo = pool.borrow();
+        try {
+            return kryo.readClassAndObject(in);
+        } finally {
+            pool.release(kryo);
+        }
+    }
+
+    private Kryo newKryo() {
+        Kryo kryo = new Kryo();
+        if (classLoader != null) {
+            kryo.setClassLoader(classLoader);
+        }
+        for (int i = 0; i < classes.length; ++i) {
+            if (classes[i] != null) {
+                kryo.register(classes[i], FIRST_ID + i);
+            }
+        }
+        return kryo;
+    }
+}
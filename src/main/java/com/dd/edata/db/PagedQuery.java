@@ -0,0 +1,94 @@
+package com.dd.edata.db;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * 按主键顺序（keyset分页）遍历一张表的分页迭代器
+ * <p>
+ * 每一页用上一页最后一条数据的主键作为查询条件（pk > ?），查询代价与页的深度无关；
+ * 开启预取时，取得当前页后立即在该class的执行线程中异步查询下一页。
+ * 迭代器本身不是线程安全的
+ *
+ * @author wangshupeng
+ */
+public final class PagedQuery<T> implements Iterator<List<T>> {
+    private final IDBProxy proxy;
+    private final Class<T> clazz;
+    private final int pageSize;
+    private final boolean prefetch;
+    private final List<String> columns;
+    private final DBWhere[] wheres;
+
+    private T last;
+    private List<T> page;
+    private Future<List<T>> pending;
+    private boolean finished;
+
+    public PagedQuery(IDBProxy proxy, Class<T> clazz, int pageSize, boolean prefetch, List<String> columns, DBWhere... wheres) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("error:pageSize must be positive " + pageSize);
+        }
+        this.proxy = proxy;
+        this.clazz = clazz;
+        this.pageSize = pageSize;
+        this.prefetch = prefetch;
+        this.columns = columns;
+        this.wheres = wheres;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page == null && !finished) {
+            Future<List<T>> f = pending != null ? pending : fetch();
+            pending = null;
+            List<T> rows = await(f);
+            if (rows.isEmpty()) {
+                finished = true;
+            } else {
+                page = rows;
+                last = rows.get(rows.size() - 1);
+                if (rows.size() < pageSize) {
+                    finished = true;
+                } else if (prefetch) {
+                    pending = fetch();
+                }
+            }
+        }
+        return page != null;
+    }
+
+    @Override
+    public List<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<T> ret = page;
+        page = null;
+        return ret;
+    }
+
+    private Future<List<T>> fetch() {
+        return proxy.selectPageAsync(null, null, clazz, last, pageSize, columns, wheres);
+    }
+
+    private List<T> await(Future<List<T>> f) {
+        List<T> rows;
+        try {
+            rows = f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("error:paged query interrupted @" + clazz.getName(), e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("error:paged query failed @" + clazz.getName(), e.getCause());
+        }
+        if (rows == null) {
+            finished = true;
+            throw new IllegalStateException("error:paged query failed @" + clazz.getName());
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,236 @@
+package com.dd.edata.db;
+
+import com.dd.edata.redis.IRedisService;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 按主键缓存在redis中的实体对象（@TableRedisCache），多个进程共享
+ * <p>
+ * key为 前缀:表名:版本号:主键（联合主键用:连接），value为Kryo序列化的对象；
+ * 从数据库加载的数据只在key不存在时写入，避免覆盖其他进程刚刚写入的新数据。
+ * <p>
+ * 版本号保存在 前缀:表名:gen 中，清空整张表的缓存时INCR版本号（O(1)），
+ * 旧版本的key不再被访问，等待过期后由redis删除；版本号在本地缓存{@link #GEN_REFRESH_MILLIS}，
+ * 其他进程清空后最多这么长时间内仍然读到旧版本的数据
+ *
+ * @author wangshupeng
+ */
+final class RedisEntityCache<T> {
+    private static final Logger logger = LoggerFactory.getLogger(RedisEntityCache.class);
+    private static final ThreadLocal<Kryo> kryoHolder = ThreadLocal.withInitial(Kryo::new);
+    private static final ThreadLocal<Output> outputHolder = ThreadLocal.withInitial(() -> new Output(256, -1));
+
+    private final EntityMeta<T> meta;
+    private final String tableName;
+    private final int expire;
+    /**
+     * 本地缓存的版本号的有效时间
+     */
+    static final long GEN_REFRESH_MILLIS = 1000;
+
+    private volatile String keyPrefix;
+    /**
+     * 本地缓存的当前版本的key前缀，null表示需要重新读取
+     */
+    private volatile Gen gen;
+    private volatile IRedisService redis;
+
+    RedisEntityCache(EntityMeta<T> meta, String tableName, int expire) {
+        this.meta = meta;
+        this.tableName = tableName;
+        this.expire = expire;
+        this.keyPrefix = "edata:" + tableName + ":";
+    }
+
+    void configure(String prefix, IRedisService redis) {
+        this.keyPrefix = prefix + ":" + tableName + ":";
+        this.gen = null;
+        this.redis = redis;
+    }
+
+    boolean isAvailable() {
+        return redis != null;
+    }
+
+    T get(Object key) {
+        IRedisService r = redis;
+        if (r == null) {
+            return null;
+        }
+        byte[] k = keyBytes(genPrefix(r), key);
+        byte[] v = r.get(k);
+        return v == null ? null : deserialize(r, k, v);
+    }
+
+    /**
+     * 批量读取（pipeline）
+     *
+     * @return 只包含命中的key
+     */
+    Map<Object, T> getAll(Collection<Object> keys) {
+        IRedisService r = redis;
+        Map<Object, T> ret = new HashMap<>();
+        if (r == null || keys.isEmpty()) {
+            return ret;
+        }
+        String prefix = genPrefix(r);
+        List<byte[]> ks = new ArrayList<>(keys.size());
+        for (Object key : keys) {
+            ks.add(keyBytes(prefix, key));
+        }
+        List<byte[]> vs = r.getPipeline(ks);
+        int i = 0;
+        for (Object key : keys) {
+            byte[] v = vs.get(i);
+            if (v != null) {
+                T t = deserialize(r, ks.get(i), v);
+                if (t != null) {
+                    ret.put(key, t);
+                }
+            }
+            ++i;
+        }
+        return ret;
+    }
+
+    /**
+     * 写入更新后的数据
+     */
+    void put(T bean) {
+        IRedisService r = redis;
+        Object key = meta.primaryKeyOf(bean);
+        if (r != null && key != null) {
+            r.set(keyBytes(genPrefix(r), key), serialize(bean), expire);
+        }
+    }
+
+    /**
+     * 写入从数据库加载的数据，key已存在时不覆盖
+     */
+    void putIfAbsent(T bean) {
+        IRedisService r = redis;
+        Object key = meta.primaryKeyOf(bean);
+        if (r != null && key != null) {
+            r.setIfAbsent(keyBytes(genPrefix(r), key), serialize(bean), expire);
+        }
+    }
+
+    void putAllIfAbsent(Collection<T> beans) {
+        IRedisService r = redis;
+        if (r == null || beans.isEmpty()) {
+            return;
+        }
+        String prefix = genPrefix(r);
+        List<byte[]> ks = new ArrayList<>(beans.size());
+        List<byte[]> vs = new ArrayList<>(beans.size());
+        for (T bean : beans) {
+            Object key = meta.primaryKeyOf(bean);
+            if (key != null) {
+                ks.add(keyBytes(prefix, key));
+                vs.add(serialize(bean));
+            }
+        }
+        r.setIfAbsentPipeline(ks, vs, expire);
+    }
+
+    void evict(Object bean) {
+        IRedisService r = redis;
+        Object key = meta.primaryKeyOf(bean);
+        if (r != null && key != null) {
+            r.del(keyBytes(genPrefix(r), key));
+        }
+    }
+
+    void evictAll(List<?> beans) {
+        IRedisService r = redis;
+        if (r == null) {
+            return;
+        }
+        String prefix = genPrefix(r);
+        List<byte[]> ks = new ArrayList<>(beans.size());
+        for (Object bean : beans) {
+            Object key = meta.primaryKeyOf(bean);
+            if (key != null) {
+                ks.add(keyBytes(prefix, key));
+            }
+        }
+        r.delPipeline(ks);
+    }
+
+    /**
+     * 使该表的所有缓存失效：版本号加1，之后所有进程都使用新版本的key
+     */
+    void clear() {
+        IRedisService r = redis;
+        if (r != null) {
+            long n = r.incr(keyPrefix + "gen");
+            // 出错时返回0，下次重新读取
+            gen = n > 0 ? new Gen(keyPrefix + n + ":", System.currentTimeMillis() + GEN_REFRESH_MILLIS) : null;
+        }
+    }
+
+    /**
+     * 当前版本的key前缀，本地缓存过期后才从redis读取版本号
+     */
+    private String genPrefix(IRedisService r) {
+        Gen g = gen;
+        long now = System.currentTimeMillis();
+        if (g == null || now >= g.expireAt) {
+            String n = r.get(keyPrefix + "gen");
+            gen = g = new Gen(keyPrefix + (n == null ? "0" : n) + ":", now + GEN_REFRESH_MILLIS);
+        }
+        return g.prefix;
+    }
+
+    private static final class Gen {
+        final String prefix;
+        final long expireAt;
+
+        Gen(String prefix, long expireAt) {
+            this.prefix = prefix;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static byte[] keyBytes(String prefix, Object key) {
+        StringBuilder sb = new StringBuilder(prefix);
+        if (key instanceof List) {
+            String delimiter = "";
+            for (Object v : (List<?>) key) {
+                sb.append(delimiter).append(v);
+                delimiter = ":";
+            }
+        } else {
+            sb.append(key);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] serialize(T bean) {
+        Kryo kryo = kryoHolder.get();
+        Output output = outputHolder.get();
+        output.clear();
+        kryo.writeObject(output, bean);
+        return output.toBytes();
+    }
+
+    private T deserialize(IRedisService r, byte[] key, byte[] value) {
+        Kryo kryo = kryoHolder.get();
+        kryo.setClassLoader(meta.getEntityClass().getClassLoader());
+        try (Input input = new Input(value)) {
+            return kryo.readObject(input, meta.getEntityClass());
+        } catch (Exception e) {
+            // 实体类的字段修改后旧数据无法反序列化，删除后重新从数据库加载
+            logger.warn("deserialize {} from redis error, evicted!", new String(key, StandardCharsets.UTF_8), e);
+            r.del(key);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+package com.dd.edata.db;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从库（db.replica.urls）的负载均衡
+ * <p>
+ * 按轮询或者最少活跃连接选择从库；获取连接失败的从库被剔除，
+ * 后台定时检查被剔除的从库，恢复后重新加入
+ *
+ * @author wangshupeng
+ */
+final class ReplicaRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+    static final String BALANCE_ROUND_ROBIN = "roundRobin";
+    static final String BALANCE_LEAST_IN_FLIGHT = "leastInFlight";
+
+    private final int sid;
+    private final Replica[] replicas;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService checker;
+    private volatile boolean leastInFlight;
+
+    ReplicaRouter(int sid, List<String> urls, List<HikariDataSource> dataSources, long checkMillis) {
+        this.sid = sid;
+        this.replicas = new Replica[dataSources.size()];
+        for (int i = 0; i < replicas.length; ++i) {
+            replicas[i] = new Replica(urls.get(i), dataSources.get(i));
+        }
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Edata-Replica[" + sid + "]");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void setBalance(String balance) {
+        leastInFlight = BALANCE_LEAST_IN_FLIGHT.equalsIgnoreCase(balance);
+    }
+
+    /**
+     * 从一个可用的从库获取连接
+     *
+     * @return 没有可用的从库时返回null
+     */
+    Connection getConnection() {
+        for (int i = 0; i < replicas.length; ++i) {
+            Replica replica = choose();
+            if (replica == null) {
+                return null;
+            }
+            try {
+                return replica.dataSource.getConnection();
+            } catch (SQLException e) {
+                eject(replica, e);
+            }
+        }
+        return null;
+    }
+
+    private Replica choose() {
+        if (leastInFlight) {
+            Replica best = null;
+            int min = Integer.MAX_VALUE;
+            for (Replica replica : replicas) {
+                if (replica.healthy) {
+                    int active = replica.inFlight();
+                    if (active < min) {
+                        min = active;
+                        best = replica;
+                    }
+                }
+            }
+            return best;
+        }
+        int start = next.getAndIncrement() & 0x7fffffff;
+        for (int i = 0; i < replicas.length; ++i) {
+            Replica replica = replicas[(start + i) % replicas.length];
+            if (replica.healthy) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private void eject(Replica replica, Exception e) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            logger.error("sid {} replica {} ejected!", sid, replica.url, e);
+        }
+    }
+
+    /**
+     * 检查被剔除的从库
+     */
+    private void check() {
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                continue;
+            }
+            try (Connection conn = replica.dataSource.getConnection()) {
+                if (conn.isValid(1)) {
+                    replica.healthy = true;
+                    logger.info("sid {} replica {} recovered", sid, replica.url);
+                }
+            } catch (Exception e) {
+                logger.debug("sid {} replica {} still unavailable", sid, replica.url, e);
+            }
+        }
+    }
+
+    void close() {
+        checker.shutdownNow();
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private static final class Replica {
+        final String url;
+        final HikariDataSource dataSource;
+        volatile boolean healthy = true;
+
+        Replica(String url, HikariDataSource dataSource) {
+            this.url = url;
+            this.dataSource = dataSource;
+        }
+
+        /**
+         * 正在使用的连接数
+         */
+        int inFlight() {
+            HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+            return pool == null ? 0 : pool.getActiveConnections();
+        }
+    }
+}
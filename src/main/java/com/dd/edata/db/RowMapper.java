@@ -0,0 +1,38 @@
+package com.dd.edata.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 结果集到实体对象的映射器
+ * <p>
+ * 每种查询形态（查询列）生成一次，SQL中列的顺序在生成时就已对应到字段访问器
+ *
+ * @author wangshupeng
+ */
+final class RowMapper<T> {
+    private final EntityMeta<T> meta;
+    private final ColumnMeta[] columns;
+
+    RowMapper(EntityMeta<T> meta, ColumnMeta[] columns) {
+        this.meta = meta;
+        this.columns = columns;
+    }
+
+    T map(ResultSet rs) throws Exception {
+        T bean = meta.newInstance();
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                ColumnMeta column = columns[i];
+                if (column != null) {
+                    column.read(rs, i + 1, bean);
+                }
+            }
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new SQLException(t);
+        }
+        return bean;
+    }
+}
@@ -0,0 +1,101 @@
+package com.dd.edata.db;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 溢出日志（db.lane.overflow=spill）：执行线程已满时写操作序列化后追加到文件，不再占用内存，之后按顺序取出重新执行；
+ * 重新执行时需要使用调用者原来的对象的写操作，数据为null，只用来保持顺序
+ * <p>
+ * 转入溢出日志的写操作在数据库日志中还没有提交，进程退出时没有重新执行的写操作在下次启动时从数据库日志恢复，
+ * 所以溢出日志不刷盘，启动时清空；全部取出后文件截断为0
+ *
+ * @author wangshupeng
+ */
+final class SpillLog {
+    private final File file;
+    private final RandomAccessFile raf;
+    private final Kryo kryo = new Kryo();
+    private final Output out = new Output(4096, -1);
+    private long readPos;
+    private long writePos;
+    private int size;
+    private boolean closed;
+
+    SpillLog(File file, ClassLoader cl) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.kryo.setClassLoader(cl);
+    }
+
+    synchronized void append(long tx, byte op, Object data) throws IOException {
+        out.clear();
+        out.writeLong(tx);
+        out.writeByte(op);
+        kryo.writeClassAndObject(out, data);
+        raf.seek(writePos);
+        raf.writeInt(out.position());
+        raf.write(out.getBuffer(), 0, out.position());
+        writePos += 4 + out.position();
+        ++size;
+        notifyAll();
+    }
+
+    /**
+     * 按追加的顺序取出下一个写操作，没有时等待
+     *
+     * @return 关闭后返回null
+     */
+    synchronized Record take() throws IOException, InterruptedException {
+        while (size == 0 && !closed) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+        raf.seek(readPos);
+        byte[] buf = new byte[raf.readInt()];
+        raf.readFully(buf);
+        readPos += 4 + buf.length;
+        if (--size == 0) {
+            raf.setLength(0);
+            readPos = writePos = 0;
+        }
+        Input in = new Input(buf);
+        Record record = new Record(in.readLong(), in.readByte());
+        try {
+            record.data = kryo.readClassAndObject(in);
+        } catch (RuntimeException e) {
+            record.error = e;
+        }
+        return record;
+    }
+
+    synchronized void close() throws IOException {
+        closed = true;
+        notifyAll();
+        raf.close();
+        file.delete();
+    }
+
+    static final class Record {
+        final long tx;
+        final byte op;
+        Object data;
+        /**
+         * 反序列化失败的原因
+         */
+        RuntimeException error;
+
+        Record(long tx, byte op) {
+            this.tx = tx;
+            this.op = op;
+        }
+    }
+}
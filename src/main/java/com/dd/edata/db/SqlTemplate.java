@@ -0,0 +1,183 @@
+package com.dd.edata.db;
+
+import com.dd.edata.db.DBWhere.WhereCond;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 缓存的SQL语句模板
+ * <p>
+ * 模板由“表名之前的部分”和“表名之后的部分”组成，按天/按月建表的表名是唯一的动态部分；
+ * 同时记录了where条件排序后的参数绑定顺序，命中缓存时不需要再排序和拼接SQL
+ *
+ * @author wangshupeng
+ */
+final class SqlTemplate {
+    static final byte SELECT = 0;
+    static final byte COUNT = 1;
+    static final byte DELETE_WHERE = 2;
+    static final byte UPDATE_WHERE = 3;
+    static final byte DELETE = 4;
+    static final byte UPDATE = 5;
+    static final byte INSERT = 6;
+    static final byte REPLACE = 7;
+    static final byte SELECT_PAGE = 8;
+    static final byte SELECT_BY_KEYS = 9;
+    static final byte UPSERT = 10;
+
+    private static final int[] NO_BINDS = new int[0];
+
+    private final String head;
+    private final String tail;
+    private final String tableName;
+    private final String sql;
+    private final int[] bindOrder;
+    private volatile RowMapper<?> rowMapper;
+
+    SqlTemplate(String head, String tableName, String tail, DBWhere[] sortedWheres, DBWhere[] wheres) {
+        this.head = head;
+        this.tail = tail;
+        this.tableName = tableName;
+        this.sql = head + tableName + tail;
+        this.bindOrder = bindOrder(sortedWheres, wheres);
+    }
+
+    SqlTemplate(String head, String tableName, String tail) {
+        this(head, tableName, tail, null, null);
+    }
+
+    /**
+     * where条件按{@link DBWhere#comparator}排序后，需要绑定参数的条件在原数组中的位置
+     */
+    private static int[] bindOrder(DBWhere[] sortedWheres, DBWhere[] wheres) {
+        if (sortedWheres == null || sortedWheres.length == 0) {
+            return NO_BINDS;
+        }
+        int[] order = new int[sortedWheres.length];
+        boolean[] used = new boolean[wheres.length];
+        int n = 0;
+        for (DBWhere where : sortedWheres) {
+            if (!isBindable(where.getCond())) {
+                break;
+            }
+            for (int i = 0; i < wheres.length; ++i) {
+                if (!used[i] && wheres[i] == where) {
+                    used[i] = true;
+                    order[n++] = i;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(order, n);
+    }
+
+    private static boolean isBindable(WhereCond cond) {
+        return cond != WhereCond.LIMIT && cond != WhereCond.ORDER_ASC && cond != WhereCond.ORDER_DESC && cond != WhereCond.PRIMARY;
+    }
+
+    /**
+     * 生成指定表名的SQL语句
+     */
+    String getSql(String tableName) {
+        if (Objects.equals(this.tableName, tableName)) {
+            return sql;
+        }
+        return head + tableName + tail;
+    }
+
+    /**
+     * 查询语句对应的结果集映射器，第一次执行查询后设置
+     */
+    @SuppressWarnings("unchecked")
+    <T> RowMapper<T> getRowMapper() {
+        return (RowMapper<T>) rowMapper;
+    }
+
+    void setRowMapper(RowMapper<?> rowMapper) {
+        this.rowMapper = rowMapper;
+    }
+
+    /**
+     * 按模板记录的顺序绑定where条件的参数
+     *
+     * @return 下一个参数的序号
+     */
+    int bindWheres(PreparedStatement stmt, int index, DBWhere[] wheres) throws SQLException {
+        for (int i : bindOrder) {
+            DBWhere where = wheres[i];
+            if (where.getCond() == WhereCond.IN) {
+                List<?> values = (List<?>) where.getValue();
+                for (int j = 0; j < values.size(); ++j) {
+                    stmt.setObject(index++, values.get(j));
+                }
+            } else {
+                stmt.setObject(index++, where.getValue());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 模板缓存的key：语句类型、实体类、查询列（或更新的字段）以及where条件的形态
+     */
+    static final class Key {
+        private final byte type;
+        private final Class<?> clazz;
+        private final Object extra;
+        private final Object[] shape;
+        private final int hash;
+
+        Key(byte type, Class<?> clazz, Object extra, DBWhere[] wheres) {
+            this.type = type;
+            this.clazz = clazz;
+            this.extra = extra;
+            this.shape = shapeOf(wheres);
+            int h = type;
+            h = 31 * h + clazz.hashCode();
+            h = 31 * h + Objects.hashCode(extra);
+            h = 31 * h + Arrays.hashCode(shape);
+            this.hash = h;
+        }
+
+        Key(byte type, Class<?> clazz) {
+            this(type, clazz, null, null);
+        }
+
+        private static Object[] shapeOf(DBWhere[] wheres) {
+            if (wheres == null || wheres.length == 0) {
+                return null;
+            }
+            Object[] shape = new Object[wheres.length * 3];
+            int i = 0;
+            for (DBWhere where : wheres) {
+                shape[i++] = where.getName();
+                shape[i++] = where.getCond();
+                if (where.getCond() == WhereCond.IN) {
+                    shape[i++] = ((List<?>) where.getValue()).size();
+                } else if (where.getCond() == WhereCond.LIMIT) {
+                    shape[i++] = where.getValue();
+                } else {
+                    i++;
+                }
+            }
+            return shape;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && type == k.type && clazz == k.clazz && Objects.equals(extra, k.extra) && Arrays.equals(shape, k.shape);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.dd.edata.db;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * 延迟写（db.writeBehind.enable）的合并缓冲区
+ * <p>
+ * 同一个class同一个主键的多次update/replace合并成一条，只保留最新的对象，
+ * 由定时任务或者同一个class的其他写操作触发，按class批量提交到执行线程
+ *
+ * @author wangshupeng
+ */
+final class WriteBehindBuffer {
+    private final ConcurrentMap<Class<?>, Map<Object, Entry>> pending = new ConcurrentHashMap<>();
+    /**
+     * 提交一个class合并后的数据，在该class的锁内调用，保证提交顺序
+     */
+    private final BiConsumer<Class<?>, List<Entry>> flusher;
+    private final int maxBatch;
+
+    WriteBehindBuffer(BiConsumer<Class<?>, List<Entry>> flusher, int maxBatch) {
+        this.flusher = flusher;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * 加入一次更新，已有相同主键的数据时合并
+     *
+     * @param key         主键
+     * @param bean        最新的对象
+     * @param replace     是否为replace（与update合并后仍为replace）
+     * @param tx          写日志的事务id
+     * @param columns     更新的列序号，null表示所有列
+     * @param dirtyFields 取出的修改记录，写入失败时恢复
+     * @return 合并后的数据，写入数据库后完成
+     */
+    Entry add(Class<?> clazz, Object key, Object bean, boolean replace, long tx, BitSet columns, Set<String> dirtyFields) {
+        Map<Object, Entry> entries = pending.computeIfAbsent(clazz, k -> new LinkedHashMap<>());
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(bean, replace, columns);
+                entries.put(key, entry);
+            } else {
+                entry.bean = bean;
+                entry.snapshot = EntityCache.copy(bean);
+                entry.replace |= replace;
+                // 合并后更新两次修改的列的并集，任何一次更新所有列时更新所有列
+                if (entry.replace || columns == null) {
+                    entry.columns = null;
+                } else if (entry.columns != null) {
+                    entry.columns.or(columns);
+                }
+            }
+            if (dirtyFields != null && !dirtyFields.isEmpty()) {
+                if (entry.dirtyFields == null) {
+                    entry.dirtyFields = new LinkedHashSet<>();
+                }
+                entry.dirtyFields.addAll(dirtyFields);
+            }
+            entry.txs.add(tx);
+            if (entries.size() >= maxBatch) {
+                flush(clazz, entries);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * 合并中的最新对象的拷贝（按主键读取时直接返回，不需要先提交），与一级缓存一样，调用方修改返回的对象不影响其他读取
+     * <p>
+     * 在锁内读取，返回null时之前提交的同一个class的合并数据都已加入执行线程，之后加入该执行线程的读操作能读到
+     *
+     * @return 没有合并中的数据时返回null
+     */
+    Object get(Class<?> clazz, Object key) {
+        Map<Object, Entry> entries = pending.get(clazz);
+        if (entries == null) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            return entry == null ? null : EntityCache.copy(entry.snapshot);
+        }
+    }
+
+    /**
+     * 提交一个class所有合并中的数据
+     */
+    void flush(Class<?> clazz) {
+        Map<Object, Entry> entries = pending.get(clazz);
+        if (entries != null) {
+            synchronized (entries) {
+                flush(clazz, entries);
+            }
+        }
+    }
+
+    void flushAll() {
+        for (Class<?> clazz : pending.keySet()) {
+            flush(clazz);
+        }
+    }
+
+    private void flush(Class<?> clazz, Map<Object, Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Entry> list = new ArrayList<>(entries.values());
+        entries.clear();
+        flusher.accept(clazz, list);
+    }
+
+    static final class Entry {
+        Object bean;
+        /**
+         * 加入时（在写线程中）的拷贝，读取时再拷贝一次返回，不与写线程共用对象
+         */
+        Object snapshot;
+        boolean replace;
+        BitSet columns;
+        Set<String> dirtyFields;
+        final List<Long> txs = new ArrayList<>(2);
+        /**
+         * 影响的行数，出错时为0
+         */
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        Entry(Object bean, boolean replace, BitSet columns) {
+            this.bean = bean;
+            this.snapshot = EntityCache.copy(bean);
+            this.replace = replace;
+            this.columns = replace ? null : columns;
+        }
+    }
+}
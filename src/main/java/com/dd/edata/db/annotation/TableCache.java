@@ -0,0 +1,41 @@
+package com.dd.edata.db.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 按主键缓存表数据（进程内缓存，W-TinyLFU淘汰）；
+ * 只有声明了@TablePrimaryKey的表才能缓存，按主键查询全部列时命中缓存
+ * </pre>
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+public @interface TableCache {
+
+    /**
+     * 最多缓存的数据条数
+     *
+     * @return
+     */
+    public long maxSize() default 10000;
+
+    /**
+     * 最大权重（按字段估算的字节数），大于0时代替maxSize限制缓存大小
+     *
+     * @return
+     */
+    public long maxWeight() default 0;
+
+    /**
+     * 最后一次访问后过期的秒数，0表示不过期
+     *
+     * @return
+     */
+    public long expireAfterAccess() default 0;
+}
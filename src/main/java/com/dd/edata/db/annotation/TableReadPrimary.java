@@ -0,0 +1,20 @@
+package com.dd.edata.db.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 配置了从库（db.replica.urls）时，该表的查询始终在主库执行；
+ * 用于不能容忍主从同步延迟的表
+ * </pre>
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+public @interface TableReadPrimary {
+}
@@ -0,0 +1,27 @@
+package com.dd.edata.db.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 按主键在redis中缓存表数据（二级缓存，多个进程共享）；
+ * 只有声明了@TablePrimaryKey并且不按月/按天建表的表才能缓存，按主键查询全部列时先查询redis
+ * </pre>
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+public @interface TableRedisCache {
+
+    /**
+     * 缓存过期的秒数，0表示不过期（不过期时，按条件更新/删除、清空表后旧版本的key不会被删除）
+     *
+     * @return
+     */
+    public int expire() default 3600;
+}
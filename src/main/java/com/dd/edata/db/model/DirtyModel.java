@@ -0,0 +1,36 @@
+package com.dd.edata.db.model;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * {@link IDirtyModel}的默认实现，子类在setter中调用{@link #markDirty(String)}
+ * <p>
+ * 修改记录是transient字段，不会写入日志，从日志恢复的更新写入所有列
+ */
+public abstract class DirtyModel implements IDirtyModel {
+    private transient Set<String> dirtyFields;
+
+    protected synchronized void markDirty(String field) {
+        if (dirtyFields == null) {
+            dirtyFields = new LinkedHashSet<>();
+        }
+        dirtyFields.add(field);
+    }
+
+    @Override
+    public synchronized void markDirty(Collection<String> fields) {
+        if (dirtyFields == null) {
+            dirtyFields = new LinkedHashSet<>();
+        }
+        dirtyFields.addAll(fields);
+    }
+
+    @Override
+    public synchronized Set<String> takeDirtyFields() {
+        Set<String> fields = dirtyFields;
+        dirtyFields = null;
+        return fields;
+    }
+}
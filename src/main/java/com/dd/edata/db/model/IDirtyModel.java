@@ -0,0 +1,25 @@
+package com.dd.edata.db.model;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * 记录修改字段的model，update时只更新修改过的列
+ */
+public interface IDirtyModel extends IModel {
+
+    /**
+     * 取出上次取出以来修改过的字段（java字段名或者列名），并清空修改记录；
+     * 返回null或者空集合时更新所有列
+     *
+     * @return
+     */
+    Set<String> takeDirtyFields();
+
+    /**
+     * 重新标记为已修改（更新失败时调用，下次update时重新写入）
+     *
+     * @param fields 字段名
+     */
+    void markDirty(Collection<String> fields);
+}
@@ -102,5 +102,31 @@ public interface IRedisService {
 
     long del(String key);
 
+    long incr(String key);
+
     boolean exists(String key);
+
+    // binary
+    byte[] get(byte[] key);
+
+    void set(byte[] key, byte[] value, int cacheSeconds);
+
+    /**
+     * key不存在时才写入
+     *
+     * @return 是否写入
+     */
+    boolean setIfAbsent(byte[] key, byte[] value, int cacheSeconds);
+
+    void setIfAbsentPipeline(List<byte[]> keys, List<byte[]> values, int cacheSeconds);
+
+    /**
+     * @param keys
+     * @return 和keys顺序一致，不存在的key对应null
+     */
+    List<byte[]> getPipeline(List<byte[]> keys);
+
+    long del(byte[] key);
+
+    void delPipeline(List<byte[]> keys);
 }
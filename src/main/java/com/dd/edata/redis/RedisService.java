@@ -14,9 +14,12 @@ import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
 import redis.clients.jedis.ShardedJedisPipeline;
 import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
 
 public class RedisService implements IRedisService {
     private static final Logger logger = LoggerFactory.getLogger(RedisService.class);
+    private static final byte[] NX = SafeEncoder.encode("NX");
+    private static final byte[] EX = SafeEncoder.encode("EX");
     private RedisPool redisPool;
 
     public RedisService(RedisPool redisPool) {
@@ -455,6 +458,16 @@ public class RedisService implements IRedisService {
         return result;
     }
 
+    @Override
+    public long incr(String key) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            return jedis.incr(key);
+        } catch (Exception e) {
+            logger.error("failed: incr {}", key, e);
+        }
+        return 0;
+    }
+
     @Override
     public boolean exists(String key) {
         try (ShardedJedis jedis = redisPool.getJedis()) {
@@ -464,4 +477,106 @@ public class RedisService implements IRedisService {
         }
         return false;
     }
+
+    @Override
+    public byte[] get(byte[] key) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            return jedis.get(key);
+        } catch (Exception e) {
+            logger.error("failed: get key:{}", SafeEncoder.encode(key), e);
+        }
+        return null;
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value, int cacheSeconds) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            if (cacheSeconds != 0) {
+                jedis.setex(key, cacheSeconds, value);
+            } else {
+                jedis.set(key, value);
+            }
+        } catch (Exception e) {
+            logger.error("failed: set key:{}", SafeEncoder.encode(key), e);
+        }
+    }
+
+    @Override
+    public boolean setIfAbsent(byte[] key, byte[] value, int cacheSeconds) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            String ret;
+            if (cacheSeconds != 0) {
+                ret = jedis.set(key, value, NX, EX, cacheSeconds);
+            } else {
+                ret = jedis.setnx(key, value) == 1 ? "OK" : null;
+            }
+            return "OK".equals(ret);
+        } catch (Exception e) {
+            logger.error("failed: setIfAbsent key:{}", SafeEncoder.encode(key), e);
+        }
+        return false;
+    }
+
+    @Override
+    public void setIfAbsentPipeline(List<byte[]> keys, List<byte[]> values, int cacheSeconds) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            ShardedJedisPipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < keys.size(); ++i) {
+                if (cacheSeconds != 0) {
+                    pipeline.set(keys.get(i), values.get(i), NX, EX, cacheSeconds);
+                } else {
+                    pipeline.setnx(keys.get(i), values.get(i));
+                }
+            }
+            pipeline.sync();
+        } catch (Exception e) {
+            logger.error("failed: setIfAbsentPipeline size:{}", keys.size(), e);
+        }
+    }
+
+    @Override
+    public List<byte[]> getPipeline(List<byte[]> keys) {
+        List<byte[]> list = Lists.newArrayListWithCapacity(keys.size());
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            List<Response<byte[]>> responseList = Lists.newArrayListWithCapacity(keys.size());
+            ShardedJedisPipeline pipeline = jedis.pipelined();
+            for (byte[] key : keys) {
+                responseList.add(pipeline.get(key));
+            }
+            pipeline.sync();
+            for (Response<byte[]> response : responseList) {
+                list.add(response.get());
+            }
+        } catch (Exception e) {
+            logger.error("failed: getPipeline size:{}", keys.size(), e);
+            list.clear();
+            for (int i = 0; i < keys.size(); ++i) {
+                list.add(null);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public long del(byte[] key) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            return jedis.del(key);
+        } catch (Exception e) {
+            logger.error("failed: del {}", SafeEncoder.encode(key), e);
+        }
+        return 0;
+    }
+
+    @Override
+    public void delPipeline(List<byte[]> keys) {
+        try (ShardedJedis jedis = redisPool.getJedis()) {
+            ShardedJedisPipeline pipeline = jedis.pipelined();
+            for (byte[] key : keys) {
+                pipeline.del(key);
+            }
+            pipeline.sync();
+        } catch (Exception e) {
+            logger.error("failed: delPipeline size:{}", keys.size(), e);
+        }
+    }
 }
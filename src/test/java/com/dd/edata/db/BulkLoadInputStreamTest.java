@@ -0,0 +1,97 @@
+package com.dd.edata.db;
+
+import com.dd.edata.db.annotation.Column;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkLoadInputStreamTest {
+
+    static class Row {
+        @Column
+        private long id;
+        @Column
+        private String name;
+        @Column
+        private Boolean flag;
+        @Column
+        private byte[] data;
+
+        Row(long id, String name, Boolean flag, byte[] data) {
+            this.id = id;
+            this.name = name;
+            this.flag = flag;
+            this.data = data;
+        }
+    }
+
+    @Test
+    public void writesTabSeparatedRows() throws Exception {
+        assertEquals("1\tname\t1\t\\N\n2\t\\N\t0\t\\N\n",
+                load(new Row(1, "name", true, null), new Row(2, null, false, null)));
+    }
+
+    @Test
+    public void escapesSpecialCharacters() throws Exception {
+        assertEquals("1\ta\\\\b\\tc\\nd\\re\\0f\t\\N\t\\N\n", load(new Row(1, "a\\b\tc\nd\re\0f", null, null)));
+        assertEquals("2\t\\N\t\\N\t\\t\\\\x\n", load(new Row(2, null, null, new byte[]{'\t', '\\', 'x'})));
+    }
+
+    @Test
+    public void keepsMultiByteCharacters() throws Exception {
+        assertEquals("3\t数据\t\\N\t\\N\n", load(new Row(3, "数据", null, null)));
+    }
+
+    @Test
+    public void readsRowsLazily() throws Exception {
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            rows.add(new Row(i, "row" + i, null, null));
+        }
+        BulkLoadInputStream in = new BulkLoadInputStream(columns(), rows.iterator());
+        assertEquals(0, in.getRowCount());
+        in.read();
+        // 每次最多填充64K
+        long count = in.getRowCount();
+        assertTrue(count > 0 && count < rows.size());
+        drain(in);
+        assertEquals(rows.size(), in.getRowCount());
+    }
+
+    private static String load(Row... rows) throws IOException {
+        Iterator<Row> it = Arrays.asList(rows).iterator();
+        return new String(drain(new BulkLoadInputStream(columns(), it)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static ColumnMeta[] columns() {
+        List<ColumnMeta> columns = new ArrayList<>();
+        try {
+            for (String name : Arrays.asList("id", "name", "flag", "data")) {
+                columns.add(new ColumnMeta(Row.class.getDeclaredField(name), columns.size()));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return columns.toArray(new ColumnMeta[0]);
+    }
+}
@@ -0,0 +1,235 @@
+package com.dd.edata.db;
+
+import com.dd.edata.test.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过FileDBLog写入日志段，检查恢复时保留哪些写操作以及顺序
+ */
+public class DBLogRecoveryTest {
+    private static final ClassLoader CL = DBLogRecoveryTest.class.getClassLoader();
+    private File dir;
+    private File proxyDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("edata-log").toFile();
+        proxyDir = Files.createTempDirectory("edata-proxy").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+        delete(proxyDir);
+    }
+
+    @Test
+    public void uncommittedTasksInLogOrder() throws Exception {
+        FileDBLog log = open(0);
+        for (long tx = 1; tx <= 6; ++tx) {
+            log.append(tx, DBService.DB_UPDATE, new User(tx, "u" + tx));
+        }
+        log.commit(1);
+        log.commit(3);
+        log.commit(5);
+        log.close();
+
+        Map<Long, DBServiceWithLogProxy.Task> tasks = recover();
+        assertEquals(Arrays.asList(2L, 4L, 6L), new ArrayList<>(tasks.keySet()));
+        assertEquals("u4", ((User) tasks.get(4L).getValue()).getName());
+    }
+
+    @Test
+    public void earlyCommitIsNotRecovered() throws Exception {
+        FileDBLog log = open(0);
+        log.append(1, DBService.DB_UPDATE, new User(1, "a"));
+        log.sync();
+        // 提交先于记录到达写线程
+        log.commit(3);
+        log.sync();
+        log.append(2, DBService.DB_UPDATE, new User(2, "b"));
+        log.append(3, DBService.DB_UPDATE, new User(3, "c"));
+        log.commit(1);
+        log.close();
+
+        assertEquals(Collections.singletonList(2L), new ArrayList<>(recover().keySet()));
+    }
+
+    @Test
+    public void commitInLaterSegmentRemovesEarlierTask() throws Exception {
+        FileDBLog log = open(1024 * 1024);
+        char[] pad = new char[16 * 1024];
+        Arrays.fill(pad, 'x');
+        String name = new String(pad);
+        for (long tx = 1; tx <= 100; ++tx) {
+            log.append(tx, DBService.DB_UPDATE, new User(tx, name));
+        }
+        log.sync();
+        for (long tx = 2; tx <= 100; tx += 2) {
+            log.commit(tx);
+        }
+        log.close();
+
+        assertTrue(new FileDBLog(1, dir).recoveryFiles().size() > 1);
+        List<Long> expected = new ArrayList<>();
+        for (long tx = 1; tx <= 100; tx += 2) {
+            expected.add(tx);
+        }
+        assertEquals(expected, new ArrayList<>(recover().keySet()));
+    }
+
+    @Test
+    public void watermarkDoesNotGrowWithPendingWrites() throws Exception {
+        FileDBLog log = open(0);
+        int n = 10000;
+        for (long tx = 1; tx <= n; ++tx) {
+            log.append(tx, DBService.DB_UPDATE, new User(tx, "u" + tx));
+        }
+        log.sync();
+        File segment = new FileDBLog(1, dir).recoveryFiles().get(0);
+        long written = dataLength(segment);
+        // MySQL很慢时只有少量乱序的提交，每次刷盘写一条提交水位
+        for (long tx = 2; tx <= 40; tx += 2) {
+            log.commit(tx);
+            log.sync();
+        }
+        // 提交水位只列出低水位之上已经提交的事务，与未提交的事务数无关
+        assertTrue(dataLength(segment) - written < 20 * 64);
+        log.commit(1);
+        log.sync();
+
+        // 不关闭日志（模拟宕机），只靠提交水位确定提交
+        Map<Long, DBServiceWithLogProxy.Task> tasks = recover();
+        log.close();
+        List<Long> expected = new ArrayList<>();
+        for (long tx = 3; tx <= n; ++tx) {
+            if (tx > 40 || tx % 2 == 1) {
+                expected.add(tx);
+            }
+        }
+        assertEquals(expected, new ArrayList<>(tasks.keySet()));
+    }
+
+    @Test
+    public void coalesceKeepsLastStateOfEachRow() throws Exception {
+        DBServiceWithLogProxy proxy = new DBServiceWithLogProxy(1, proxyDir.getPath());
+        // 只用到实体类的元数据，没有数据源（建表失败只记录日志）
+        proxy.dbService = new DBService(proxy, "com.dd.edata.test", CL, null, false);
+        List<DBServiceWithLogProxy.Task> tasks = new ArrayList<>();
+        tasks.add(task(DBService.DB_UPDATE, new User(1, "a")));
+        tasks.add(task(DBService.DB_REPLACE, new User(2, "x")));
+        tasks.add(task(DBService.DB_REPLACE, new User(1, "b")));
+        tasks.add(task(DBService.DB_UPDATE, new User(2, "y")));
+        tasks.add(task(DBService.DB_DELETE, new User(2, "d")));
+        tasks.add(task(DBService.DB_UPDATE, new User(2, "z")));
+        tasks.add(task(DBService.DB_UPDATE, new User(1, "c")));
+
+        List<DBServiceWithLogProxy.Task> replays = proxy.coalesce(tasks);
+        assertEquals(4, replays.size());
+        // 之前有replace时合并后也是replace
+        assertTask(replays.get(0), DBService.DB_REPLACE, "y");
+        assertTask(replays.get(1), DBService.DB_DELETE, "d");
+        assertTask(replays.get(2), DBService.DB_UPDATE, "z");
+        assertTask(replays.get(3), DBService.DB_REPLACE, "c");
+    }
+
+    @Test
+    public void batchesFlushBeforeOtherWritesOfTheTable() {
+        List<DBServiceWithLogProxy.Task> tasks = new ArrayList<>();
+        tasks.add(task(DBService.DB_UPDATE, new User(1, "a")));
+        tasks.add(task(DBService.DB_UPDATE, new User(2, "b")));
+        tasks.add(task(DBService.DB_REPLACE, new User(3, "c")));
+        tasks.add(task(DBService.DB_DELETE, new User(4, "d")));
+        tasks.add(task(DBService.DB_UPDATE, new User(5, "e")));
+        tasks.add(task(DBService.DB_UPDATE, new User(6, "f")));
+        tasks.add(task(DBService.DB_UPDATE, new User(7, "g")));
+        tasks.add(task(DBService.DB_UPDATE, new User(8, "h")));
+        tasks.add(task(DBService.DB_TRANSACTION, new ArrayList<>()));
+        tasks.add(task(DBService.DB_REPLACE, new User(9, "i")));
+
+        List<DBServiceWithLogProxy.Task> submits = DBServiceWithLogProxy.batches(tasks, 3);
+        assertEquals(7, submits.size());
+        assertBatch(submits.get(0), DBService.DB_UPDATE, "a", "b");
+        assertBatch(submits.get(1), DBService.DB_REPLACE, "c");
+        assertTask(submits.get(2), DBService.DB_DELETE, "d");
+        assertBatch(submits.get(3), DBService.DB_UPDATE, "e", "f", "g");
+        assertBatch(submits.get(4), DBService.DB_UPDATE, "h");
+        assertEquals(DBService.DB_TRANSACTION, submits.get(5).getOp());
+        assertBatch(submits.get(6), DBService.DB_REPLACE, "i");
+    }
+
+    private FileDBLog open(long segmentBytes) {
+        FileDBLog log = new FileDBLog(1, dir);
+        Properties props = new Properties();
+        if (segmentBytes > 0) {
+            props.setProperty("db.log.segmentBytes", String.valueOf(segmentBytes));
+        }
+        log.configure(props);
+        log.register(Collections.singletonList(User.class), CL);
+        log.setFirstTx(1);
+        return log;
+    }
+
+    private Map<Long, DBServiceWithLogProxy.Task> recover() {
+        DBServiceWithLogProxy proxy = new DBServiceWithLogProxy(1, proxyDir.getPath());
+        List<DBServiceWithLogProxy.Decoded> decoded = proxy.decode(new FileDBLog(1, dir).recoveryFiles(), CL);
+        assertNotNull(decoded);
+        return DBServiceWithLogProxy.uncommitted(decoded);
+    }
+
+    /**
+     * 段文件中写入的长度（之后是预分配的0）
+     */
+    private static long dataLength(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            --end;
+        }
+        return end;
+    }
+
+    private static DBServiceWithLogProxy.Task task(byte op, Object value) {
+        return new DBServiceWithLogProxy.Task(op, value);
+    }
+
+    private static void assertTask(DBServiceWithLogProxy.Task task, byte op, String name) {
+        assertEquals(op, task.getOp());
+        assertEquals(name, ((User) task.getValue()).getName());
+    }
+
+    private static void assertBatch(DBServiceWithLogProxy.Task task, byte op, String... names) {
+        assertEquals(op, task.getOp());
+        List<String> actual = new ArrayList<>();
+        for (Object o : (List<?>) task.getValue()) {
+            actual.add(((User) o).getName());
+        }
+        assertEquals(Arrays.asList(names), actual);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
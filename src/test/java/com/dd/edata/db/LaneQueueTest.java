@@ -0,0 +1,118 @@
+package com.dd.edata.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LaneQueueTest {
+    private final List<String> ran = new ArrayList<>();
+
+    @Test
+    public void higherPriorityRunsFirst() {
+        LaneQueue queue = new LaneQueue(TimeUnit.MINUTES.toMillis(1));
+        queue.offer(task("a", "A", DBPriority.BACKGROUND));
+        queue.offer(task("b", "B", DBPriority.NORMAL));
+        queue.offer(task("c", "C", DBPriority.INTERACTIVE));
+        assertEquals(3, queue.size());
+        runAll(queue);
+        assertEquals(Arrays.asList("c", "b", "a"), ran);
+    }
+
+    @Test
+    public void promotionKeepsPerKeyOrder() {
+        LaneQueue queue = new LaneQueue(TimeUnit.MINUTES.toMillis(1));
+        queue.offer(task("a1", "A", DBPriority.BACKGROUND));
+        queue.offer(task("b1", "B", DBPriority.NORMAL));
+        queue.offer(task("a2", "A", DBPriority.NORMAL));
+        queue.offer(task("c1", "C", DBPriority.INTERACTIVE));
+        queue.offer(task("a3", "A", DBPriority.INTERACTIVE));
+        // 之后提交的低优先级任务留在已经提升的优先级
+        queue.offer(task("a4", "A", DBPriority.BACKGROUND));
+        runAll(queue);
+        assertEquals(Arrays.asList("c1", "a1", "a2", "a3", "a4", "b1"), ran);
+    }
+
+    @Test
+    public void noTaskCrossesFence() {
+        LaneQueue queue = new LaneQueue(TimeUnit.MINUTES.toMillis(1));
+        queue.offer(task("a1", "A", DBPriority.BACKGROUND));
+        queue.offer(task("fence", null, DBPriority.NORMAL));
+        queue.offer(task("b1", "B", DBPriority.INTERACTIVE));
+        queue.offer(task("a2", "A", DBPriority.INTERACTIVE));
+        // 普通的Runnable也是屏障
+        queue.offer(() -> ran.add("plain"));
+        queue.offer(task("c1", "C", DBPriority.INTERACTIVE));
+        runAll(queue);
+        assertEquals(Arrays.asList("a1", "fence", "b1", "a2", "plain", "c1"), ran);
+    }
+
+    @Test
+    public void waitingTooLongRunsFirst() throws Exception {
+        LaneQueue queue = new LaneQueue(20);
+        queue.offer(task("old", "A", DBPriority.BACKGROUND));
+        Thread.sleep(50);
+        queue.offer(task("new", "B", DBPriority.INTERACTIVE));
+        runAll(queue);
+        assertEquals(Arrays.asList("old", "new"), ran);
+
+        ran.clear();
+        queue.setMaxWaitMillis(TimeUnit.MINUTES.toMillis(1));
+        queue.offer(task("old", "A", DBPriority.BACKGROUND));
+        Thread.sleep(50);
+        queue.offer(task("new", "B", DBPriority.INTERACTIVE));
+        runAll(queue);
+        assertEquals(Arrays.asList("new", "old"), ran);
+    }
+
+    @Test
+    public void zeroWaitKeepsSubmitOrder() {
+        LaneQueue queue = new LaneQueue(0);
+        queue.offer(task("a", "A", DBPriority.BACKGROUND));
+        queue.offer(task("b", "B", DBPriority.NORMAL));
+        queue.offer(task("c", "C", DBPriority.INTERACTIVE));
+        runAll(queue);
+        assertEquals(Arrays.asList("a", "b", "c"), ran);
+    }
+
+    @Test
+    public void removeAndDrain() {
+        LaneQueue queue = new LaneQueue(TimeUnit.MINUTES.toMillis(1));
+        LaneQueue.Task a1 = task("a1", "A", DBPriority.NORMAL);
+        LaneQueue.Task fence = task("fence", null, DBPriority.NORMAL);
+        queue.offer(a1);
+        queue.offer(task("a2", "A", DBPriority.NORMAL));
+        queue.offer(fence);
+        queue.offer(task("b1", "B", DBPriority.NORMAL));
+        assertTrue(queue.remove(a1));
+        assertTrue(queue.remove(fence));
+        assertFalse(queue.remove(fence));
+        assertEquals(2, queue.size());
+
+        List<Runnable> out = new ArrayList<>();
+        assertEquals(1, queue.drainTo(out, 1));
+        assertEquals(1, queue.drainTo(out));
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+        out.forEach(Runnable::run);
+        assertEquals(Arrays.asList("a2", "b1"), ran);
+    }
+
+    private LaneQueue.Task task(String name, Object key, DBPriority priority) {
+        return new LaneQueue.Task(() -> ran.add(name), key, priority);
+    }
+
+    private static void runAll(LaneQueue queue) {
+        Runnable r;
+        while ((r = queue.poll()) != null) {
+            r.run();
+        }
+    }
+}
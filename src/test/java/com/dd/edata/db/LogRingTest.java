@@ -0,0 +1,101 @@
+package com.dd.edata.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogRingTest {
+
+    @Test
+    public void drainsInPutOrder() {
+        LogRing<Integer> ring = new LogRing<>(4);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.put(i));
+        }
+        List<Integer> out = new ArrayList<>();
+        assertEquals(3, ring.drainTo(out, 3));
+        assertEquals(1, ring.drainTo(out, 10));
+        assertEquals(0, ring.drainTo(out, 10));
+        assertEquals(Arrays.asList(0, 1, 2, 3), out);
+    }
+
+    @Test
+    public void fullRingWaitsForConsumer() throws Exception {
+        // 容量向上取2的幂
+        LogRing<Integer> ring = new LogRing<>(3);
+        for (int i = 0; i < 4; ++i) {
+            ring.put(i);
+        }
+        Thread producer = new Thread(() -> ring.put(4));
+        producer.start();
+        producer.join(50);
+        assertTrue(producer.isAlive());
+
+        List<Integer> out = new ArrayList<>();
+        ring.drainTo(out, 1);
+        producer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(producer.isAlive());
+        ring.drainTo(out, 10);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), out);
+    }
+
+    @Test
+    public void closedRingRejectsPutAndKeepsWrittenElements() throws Exception {
+        LogRing<Integer> ring = new LogRing<>(2);
+        ring.put(0);
+        ring.put(1);
+        Thread producer = new Thread(() -> assertFalse(ring.put(2)));
+        producer.start();
+        ring.close();
+        producer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(producer.isAlive());
+        assertFalse(ring.put(3));
+
+        List<Integer> out = new ArrayList<>();
+        ring.drainTo(out, 10);
+        assertEquals(Arrays.asList(0, 1), out);
+    }
+
+    @Test
+    public void multipleProducersKeepPerProducerOrder() throws Exception {
+        final int producers = 4;
+        final int count = 100000;
+        LogRing<long[]> ring = new LogRing<>(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int id = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < count; ++i) {
+                    ring.put(new long[]{id, i});
+                }
+            });
+            threads[p].start();
+        }
+        long[] next = new long[producers];
+        List<long[]> out = new ArrayList<>();
+        int received = 0;
+        while (received < producers * count) {
+            out.clear();
+            if (ring.drainTo(out, 1024) == 0) {
+                ring.await(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            for (long[] e : out) {
+                assertEquals(next[(int) e[0]]++, e[1]);
+            }
+            received += out.size();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (long n : next) {
+            assertEquals(count, n);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.dd.edata.db;
+
+import com.dd.edata.test.User;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindBufferTest {
+    private final List<List<WriteBehindBuffer.Entry>> flushed = new ArrayList<>();
+
+    @Test
+    public void mergesUpdatedColumns() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer((c, entries) -> flushed.add(entries), 100);
+        User u = new User(1, "a");
+        WriteBehindBuffer.Entry entry = buffer.add(User.class, 1L, u, false, 1, columns(1), Collections.singleton("name"));
+        assertSame(entry, buffer.add(User.class, 1L, u, false, 2, columns(3), Collections.singleton("height")));
+        assertEquals(columns(1, 3), entry.columns);
+        assertEquals(2, entry.dirtyFields.size());
+        assertEquals(2, entry.txs.size());
+
+        // 任何一次更新所有列时更新所有列
+        buffer.add(User.class, 1L, u, false, 3, null, null);
+        assertNull(entry.columns);
+        buffer.add(User.class, 1L, u, false, 4, columns(2), null);
+        assertNull(entry.columns);
+    }
+
+    @Test
+    public void replaceIsSticky() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer((c, entries) -> flushed.add(entries), 100);
+        User u = new User(1, "a");
+        WriteBehindBuffer.Entry entry = buffer.add(User.class, 1L, u, true, 1, null, null);
+        buffer.add(User.class, 1L, u, false, 2, columns(1), null);
+        assertTrue(entry.replace);
+        assertNull(entry.columns);
+
+        WriteBehindBuffer.Entry update = buffer.add(User.class, 2L, new User(2, "b"), false, 3, columns(1), null);
+        buffer.add(User.class, 2L, new User(2, "c"), true, 4, columns(1), null);
+        assertTrue(update.replace);
+        assertNull(update.columns);
+    }
+
+    @Test
+    public void readReturnsCopyOfLatestState() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer((c, entries) -> flushed.add(entries), 100);
+        assertNull(buffer.get(User.class, 1L));
+        User u = new User(1, "a");
+        buffer.add(User.class, 1L, u, false, 1, null, null);
+        // 加入之后的修改在下一次加入前不可见
+        u.setName("b");
+        User read = (User) buffer.get(User.class, 1L);
+        assertNotSame(u, read);
+        assertEquals("a", read.getName());
+        assertNotSame(read, buffer.get(User.class, 1L));
+
+        buffer.add(User.class, 1L, u, false, 2, null, null);
+        assertEquals("b", ((User) buffer.get(User.class, 1L)).getName());
+
+        buffer.flush(User.class);
+        assertNull(buffer.get(User.class, 1L));
+        assertEquals(1, flushed.size());
+        assertSame(u, flushed.get(0).get(0).bean);
+    }
+
+    @Test
+    public void flushesWhenBatchIsFull() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer((c, entries) -> flushed.add(entries), 2);
+        buffer.add(User.class, 1L, new User(1, "a"), false, 1, null, null);
+        buffer.add(User.class, 1L, new User(1, "b"), false, 2, null, null);
+        assertTrue(flushed.isEmpty());
+        buffer.add(User.class, 2L, new User(2, "c"), false, 3, null, null);
+        assertEquals(1, flushed.size());
+        assertEquals(2, flushed.get(0).size());
+        assertFalse(flushed.get(0).get(0).future.isDone());
+        buffer.flushAll();
+        assertEquals(1, flushed.size());
+    }
+
+    private static BitSet columns(int... indexes) {
+        BitSet set = new BitSet();
+        for (int i : indexes) {
+            set.set(i);
+        }
+        return set;
+    }
+}